@@ -0,0 +1,45 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+
+/**
+ * A connection to a stream being made.
+ */
+
+@Name ("uryPlayer.Connect")
+@Label ("Stream Connect")
+@Category ({ "URY Player", "Network" })
+@Description ("A connection to a stream being made")
+class ConnectEvent extends Event
+{
+  @Label ("URL")
+  String url;
+
+  @Label ("Connect Time")
+  @Timespan (Timespan.NANOSECONDS)
+  long connectTime;
+}
@@ -0,0 +1,68 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Timespan;
+
+
+/**
+ * What a player has received and decoded in the last second, and how full
+ * its buffer is.
+ */
+
+@Name ("uryPlayer.DecodeStats")
+@Label ("Decode Statistics")
+@Category ({ "URY Player", "Playback" })
+@Description ("What a player has received and decoded since the last of these events")
+@Period ("1 s")
+class DecodeStatsEvent extends Event
+{
+  @Label ("URL")
+  String url;
+
+  @Label ("Bytes Received")
+  @DataAmount
+  long bytesReceived;
+
+  @Label ("Frames Decoded")
+  long framesDecoded;
+
+  @Label ("Decode Time")
+  @Description ("Time spent decoding, not counting waiting for the network")
+  @Timespan (Timespan.NANOSECONDS)
+  long decodeTime;
+
+  @Label ("Underruns")
+  long underruns;
+
+  @Label ("Buffer Fill")
+  @Timespan (Timespan.MILLISECONDS)
+  long bufferFill;
+
+  @Label ("Buffer Target")
+  @Timespan (Timespan.MILLISECONDS)
+  long bufferTarget;
+}
@@ -0,0 +1,292 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.jfr;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import jdk.jfr.FlightRecorder;
+
+import uryPlayer.core.PlayerCoreMXBean;
+import uryPlayer.core.PlayerEvents;
+
+
+/**
+ * Reports what the player is doing to Java Flight Recorder.
+ *
+ * PlayerEvents.getDefault loads this by reflection, where Flight Recorder
+ * is available.  Each event is only filled in and committed if a
+ * recording has it enabled, so with no recording running, an event costs
+ * a single check.  Decoding statistics are taken by Flight Recorder
+ * itself, once a second, and then only while a recording wants them.
+ */
+
+public class FlightRecorderEvents extends PlayerEvents
+{
+  /**
+   * The counts last reported for each player, in the order bytes
+   * received, frames decoded, decode time and underruns.
+   */
+
+  private final Map<PlayerCoreMXBean, long[]> players;
+
+
+  /**
+   * Create a new Flight Recorder events reporter, and register to take
+   * decoding statistics.
+   */
+
+  public
+  FlightRecorderEvents ()
+  {
+    players = new IdentityHashMap<PlayerCoreMXBean, long[]> ();
+
+    FlightRecorder.addPeriodicEvent (DecodeStatsEvent.class, new Runnable ()
+    {
+      @Override
+      public void
+      run ()
+      {
+        reportDecodeStats ();
+      }
+    });
+  }
+
+
+  /**
+   * @see uryPlayer.core.PlayerEvents#connected(String, long)
+   */
+
+  @Override
+  public void
+  connected (String url, long connectNanos)
+  {
+    ConnectEvent event = new ConnectEvent ();
+
+    if (event.isEnabled ())
+      {
+        event.url = url;
+        event.connectTime = connectNanos;
+        event.commit ();
+      }
+  }
+
+
+  /**
+   * @see uryPlayer.core.PlayerEvents#firstByte(String, long)
+   */
+
+  @Override
+  public void
+  firstByte (String url, long waitNanos)
+  {
+    FirstByteEvent event = new FirstByteEvent ();
+
+    if (event.isEnabled ())
+      {
+        event.url = url;
+        event.waitTime = waitNanos;
+        event.commit ();
+      }
+  }
+
+
+  /**
+   * @see uryPlayer.core.PlayerEvents#firstAudio(String, long)
+   */
+
+  @Override
+  public void
+  firstAudio (String url, long waitNanos)
+  {
+    FirstAudioEvent event = new FirstAudioEvent ();
+
+    if (event.isEnabled ())
+      {
+        event.url = url;
+        event.waitTime = waitNanos;
+        event.commit ();
+      }
+  }
+
+
+  /**
+   * @see uryPlayer.core.PlayerEvents#underrun(long, int)
+   */
+
+  @Override
+  public void
+  underrun (long underruns, int targetMillis)
+  {
+    UnderrunEvent event = new UnderrunEvent ();
+
+    if (event.isEnabled ())
+      {
+        event.underruns = underruns;
+        event.bufferTarget = targetMillis;
+        event.commit ();
+      }
+  }
+
+
+  /**
+   * @see uryPlayer.core.PlayerEvents#reconnect(String, String, long)
+   */
+
+  @Override
+  public void
+  reconnect (String url, String cause, long delayMillis)
+  {
+    ReconnectEvent event = new ReconnectEvent ();
+
+    if (event.isEnabled ())
+      {
+        event.url = url;
+        event.cause = cause;
+        event.delay = delayMillis;
+        event.commit ();
+      }
+  }
+
+
+  /**
+   * @see uryPlayer.core.PlayerEvents#qualitySwitched(String, String)
+   */
+
+  @Override
+  public void
+  qualitySwitched (String fromURL, String toURL)
+  {
+    QualitySwitchEvent event = new QualitySwitchEvent ();
+
+    if (event.isEnabled ())
+      {
+        event.fromURL = fromURL;
+        event.toURL = toURL;
+        event.commit ();
+      }
+  }
+
+
+  /**
+   * @see uryPlayer.core.PlayerEvents#webcamFetched(String, long, long, boolean)
+   */
+
+  @Override
+  public void
+  webcamFetched (String url, long fetchNanos, long bytes, boolean succeeded)
+  {
+    WebcamFetchEvent event = new WebcamFetchEvent ();
+
+    if (event.isEnabled ())
+      {
+        event.url = url;
+        event.fetchTime = fetchNanos;
+        event.bytes = bytes;
+        event.succeeded = succeeded;
+        event.commit ();
+      }
+  }
+
+
+  /**
+   * @see uryPlayer.core.PlayerEvents#addPlayer(uryPlayer.core.PlayerCoreMXBean)
+   */
+
+  @Override
+  public synchronized void
+  addPlayer (PlayerCoreMXBean player)
+  {
+    players.put (player, counts (player));
+  }
+
+
+  /**
+   * @see uryPlayer.core.PlayerEvents#removePlayer(uryPlayer.core.PlayerCoreMXBean)
+   */
+
+  @Override
+  public synchronized void
+  removePlayer (PlayerCoreMXBean player)
+  {
+    players.remove (player);
+  }
+
+
+  /**
+   * Report what each player has done since the last report.  Flight
+   * Recorder calls this once a second while a recording wants decoding
+   * statistics.
+   */
+
+  private synchronized void
+  reportDecodeStats ()
+  {
+    for (Map.Entry<PlayerCoreMXBean, long[]> entry : players.entrySet ())
+      {
+        PlayerCoreMXBean player = entry.getKey ();
+        long[] last = entry.getValue ();
+        long[] now = counts (player);
+        DecodeStatsEvent event = new DecodeStatsEvent ();
+
+        event.url = player.getURL ();
+        event.bytesReceived = since (now[0], last[0]);
+        event.framesDecoded = since (now[1], last[1]);
+        event.decodeTime = since (now[2], last[2]);
+        event.underruns = since (now[3], last[3]);
+        event.bufferFill = player.getBufferFillMillis ();
+        event.bufferTarget = player.getBufferTargetMillis ();
+        event.commit ();
+
+        entry.setValue (now);
+      }
+  }
+
+
+  /**
+   * @param player  A player.
+   *
+   * @return  the player's counts, as kept in players.
+   */
+
+  private static long[]
+  counts (PlayerCoreMXBean player)
+  {
+    return new long[] { player.getBytesReceived (),
+                        player.getFramesDecoded (),
+                        player.getDecodeNanos (),
+                        player.getUnderruns () };
+  }
+
+
+  /**
+   * @param now   A count.
+   * @param last  The count when it was last reported.
+   *
+   * @return  the amount counted since it was last reported.  The count may
+   *          have started again from 0 in between (as underruns do when
+   *          the player is restarted), in which case this is the count.
+   */
+
+  private static long
+  since (long now, long last)
+  {
+    return (now >= last ? now - last : now);
+  }
+}
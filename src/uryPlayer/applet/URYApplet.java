@@ -19,9 +19,15 @@
 package uryPlayer.applet;
 import java.applet.Applet;
 import java.awt.HeadlessException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import uryPlayer.core.AbstractStreamPlayer;
 import uryPlayer.core.PlayerCore;
 import uryPlayer.core.URYStreamPlayer;
+import uryPlayer.core.Workers;
 
 
 /**
@@ -42,9 +48,75 @@ public class URYApplet extends Applet implements URYStreamPlayer, Runnable
   
   private static final long serialVersionUID = -3710033878028709433L;
 
+  
+  /**
+   * The kinds of command sent from the JavaScript controls to the 
+   * applet's control thread.
+   */
+  
+  private enum CommandType
+  {
+    PLAY (true),
+    VOLUME (true),
+    STREAM (true),
+    AUTO_QUALITY (true),
+    PAUSE (true),
+    REWIND (false),
+    LIVE (true);
+    
+    
+    /**
+     * Whether a run of commands of this kind can be cut down to the last 
+     * one (rewinds add up, so they can't).
+     */
+    
+    private final boolean coalesced;
+    
+    
+    /**
+     * @param coalesced  Whether a run of commands of this kind can be cut 
+     *                   down to the last one.
+     */
+    
+    private
+    CommandType (boolean coalesced)
+    {
+      this.coalesced = coalesced;
+    }
+  }
+  
+  
+  /**
+   * A command sent from the JavaScript controls to the applet's control 
+   * thread.
+   */
+  
+  private static class Command
+  {
+    private final CommandType type;
+    private final Object value;
+    
+    
+    /**
+     * Create a new command.
+     * 
+     * @param type   The kind of command.
+     * @param value  The value to set (a Boolean, Float, Integer or 
+     *               String, depending on the type), or null if there is 
+     *               none.
+     */
+    
+    private
+    Command (CommandType type, Object value)
+    {
+      this.type = type;
+      this.value = value;
+    }
+  }
+  
+  
+  private final BlockingQueue<Command> commands;
   private volatile PlayerCore player;
-  private volatile boolean isPlaying;
-  private volatile boolean stateChanged;
   private volatile Thread thread;
   
   
@@ -58,9 +130,10 @@ public class URYApplet extends Applet implements URYStreamPlayer, Runnable
   public
   URYApplet () throws HeadlessException
   {
+    commands = new LinkedBlockingQueue<Command> ();
     player = new PlayerCore (PlayerCore.HIGH_STREAM);
-    isPlaying = false;
-    stateChanged = false;
+    player.setTimeShift (AbstractStreamPlayer.TIME_SHIFT_SECONDS);
+    player.registerMBean ();
     thread = null;
   }
 
@@ -86,7 +159,7 @@ public class URYApplet extends Applet implements URYStreamPlayer, Runnable
   public void
   start ()
   {
-    thread = new Thread (this);
+    thread = Workers.getDefault ().newThread (this, "URYApplet");
     thread.start ();
   }
   
@@ -118,42 +191,95 @@ public class URYApplet extends Applet implements URYStreamPlayer, Runnable
    * 
    * Due to the Java security model, all code interfacing with the sound 
    * API (eg player starts and stops) has to run separately from the 
-   * JavaScript controls, so the applet start/stop functionality is 
-   * implemented as a state machine of sorts with the JavaScript-exposed
-   * functions changing the state.
+   * JavaScript controls, so the JavaScript-exposed functions queue up 
+   * commands, which this thread waits on and carries out in order.  When 
+   * several commands of the same kind are queued back to back (such as a 
+   * volume slider being dragged), only the last is carried out, except 
+   * for rewinds, which add up.
    */
   
   public void
   run ()
   {
     Thread thisThread = Thread.currentThread ();
+    List<Command> batch = new ArrayList<Command> ();
     
     // Run until thread becomes null/changes.
     
     while (thread == thisThread)
       {
-        if (stateChanged == true)
+        try
           {
-            stateChanged = false;
+            batch.add (commands.take ());
+            commands.drainTo (batch);
             
-            if (isPlaying == true)
-              player.start ();
-            else
-              player.stop ();
+            for (int i = 0; i < batch.size (); i++)
+              {
+                Command command = batch.get (i);
+                
+                if (i + 1 == batch.size () 
+                    || batch.get (i + 1).type != command.type
+                    || command.type.coalesced == false)
+                  execute (command);
+              }
           }
-        
-        try
+        catch (InterruptedException e)
           {
-            Thread.sleep (10);
+            // This is normal (it occurs when the applet is stopped).
           }
-        catch (InterruptedException e)
+        finally
           {
-            // Do nothing.
+            batch.clear ();
           }
       }
   }
   
   
+  /**
+   * Carry out a command.
+   * 
+   * @param command  The command.
+   */
+  
+  private void
+  execute (Command command)
+  {
+    switch (command.type)
+      {
+      case PLAY:
+        if ((Boolean) command.value)
+          player.start ();
+        else
+          player.stop ();
+        break;
+        
+      case VOLUME:
+        player.setVolume ((Float) command.value);
+        break;
+        
+      case STREAM:
+        player.setURL ((String) command.value);
+        break;
+        
+      case AUTO_QUALITY:
+        player.setAdaptive ((Boolean) command.value);
+        break;
+        
+      case PAUSE:
+        player.setPaused ((Boolean) command.value);
+        break;
+        
+      case REWIND:
+        player.rewind ((Integer) command.value);
+        break;
+        
+      case LIVE:
+        player.jumpToLive ();
+        break;
+      }
+  }
+  
+  
   /**
    * Start the attached player, if it is running.
    */
@@ -165,11 +291,7 @@ public class URYApplet extends Applet implements URYStreamPlayer, Runnable
     if (player == null)
       return false;
     else
-      {
-        isPlaying = true;
-        stateChanged = true;
-        return true;
-      }
+      return commands.offer (new Command (CommandType.PLAY, true));
   }
  
   
@@ -186,11 +308,7 @@ public class URYApplet extends Applet implements URYStreamPlayer, Runnable
     if (player == null)
       return false;
     else
-      {
-        isPlaying = false;
-        stateChanged = true;
-        return true;
-      }
+      return commands.offer (new Command (CommandType.PLAY, false));
   } 
   
   
@@ -233,7 +351,7 @@ public class URYApplet extends Applet implements URYStreamPlayer, Runnable
   setStream (String newURL)
   {
     if (player != null)
-      return player.setURL (newURL);
+      return commands.offer (new Command (CommandType.STREAM, newURL));
     else
       return false;
   }
@@ -259,6 +377,66 @@ public class URYApplet extends Applet implements URYStreamPlayer, Runnable
   public boolean
   setVolume (float volume)
   {
-    return player.setVolume (volume);
+    return commands.offer (new Command (CommandType.VOLUME, volume));
+  }
+
+
+  /**
+   * @see uryPlayer.core.URYStreamPlayer#setAutoQuality(boolean)
+   */
+  
+  @Override
+  public boolean
+  setAutoQuality (boolean isAutomatic)
+  {
+    if (player == null)
+      return false;
+    else
+      return commands.offer (new Command (CommandType.AUTO_QUALITY, isAutomatic));
+  }
+
+
+  /**
+   * @see uryPlayer.core.URYStreamPlayer#setPaused(boolean)
+   */
+  
+  @Override
+  public boolean
+  setPaused (boolean isPaused)
+  {
+    if (player == null)
+      return false;
+    else
+      return commands.offer (new Command (CommandType.PAUSE, isPaused));
+  }
+
+
+  /**
+   * @see uryPlayer.core.URYStreamPlayer#rewind(int)
+   */
+  
+  @Override
+  public boolean
+  rewind (int seconds)
+  {
+    if (player == null)
+      return false;
+    else
+      return commands.offer (new Command (CommandType.REWIND, seconds));
+  }
+
+
+  /**
+   * @see uryPlayer.core.URYStreamPlayer#jumpToLive()
+   */
+  
+  @Override
+  public boolean
+  jumpToLive ()
+  {
+    if (player == null)
+      return false;
+    else
+      return commands.offer (new Command (CommandType.LIVE, null));
   }
 }
@@ -0,0 +1,128 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+
+/**
+ * A minimal harness for benchmarking the audio path.
+ *
+ * Each benchmark processes some amount of audio per iteration.  The harness
+ * runs a number of warm-up iterations (to let the JIT settle), then times
+ * the measured iterations and reports the cost per second of audio, so that
+ * the figures mean the same thing whatever the iteration size.  Where the
+ * JVM supports it, the bytes allocated per second of audio are reported
+ * too.
+ */
+
+public abstract class Benchmark
+{
+  /**
+   * The default number of warm-up iterations.
+   */
+
+  public static final int DEFAULT_WARMUPS = 5;
+
+
+  /**
+   * The default number of measured iterations.
+   */
+
+  public static final int DEFAULT_ITERATIONS = 10;
+
+
+  /**
+   * @return  the name of the benchmark, as printed in its results.
+   */
+
+  public abstract String
+  getName ();
+
+
+  /**
+   * Run one iteration of the benchmark.
+   *
+   * @return  the number of seconds of audio processed.
+   *
+   * @throws Exception  if the benchmark fails.
+   */
+
+  public abstract double
+  runIteration () throws Exception;
+
+
+  /**
+   * Run the benchmark and print its results to standard output.
+   *
+   * @param warmups     The number of warm-up iterations.
+   * @param iterations  The number of measured iterations.
+   *
+   * @return  the results.
+   *
+   * @throws Exception  if the benchmark fails.
+   */
+
+  public BenchmarkResult
+  measure (int warmups, int iterations) throws Exception
+  {
+    for (int i = 0; i < warmups; i++)
+      runIteration ();
+
+    double[] nanosPerSecond = new double[iterations];
+    double[] bytesPerSecond = new double[iterations];
+
+    for (int i = 0; i < iterations; i++)
+      {
+        long startBytes = allocatedBytes ();
+        long startTime = System.nanoTime ();
+
+        double audioSeconds = runIteration ();
+
+        long elapsed = System.nanoTime () - startTime;
+        long allocated = allocatedBytes () - startBytes;
+
+        nanosPerSecond[i] = elapsed / audioSeconds;
+        bytesPerSecond[i] = allocated / audioSeconds;
+      }
+
+    BenchmarkResult result = new BenchmarkResult (getName (), nanosPerSecond, bytesPerSecond);
+    System.out.println (result);
+
+    return result;
+  }
+
+
+  /**
+   * @return  the number of bytes allocated so far by the current thread,
+   *          or 0 if the JVM cannot say.
+   */
+
+  private static long
+  allocatedBytes ()
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean ();
+
+    if (threads instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes (Thread.currentThread ().getId ());
+    else
+      return 0;
+  }
+}
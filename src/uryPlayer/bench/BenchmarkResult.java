@@ -0,0 +1,223 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.util.Arrays;
+
+
+/**
+ * The results of one benchmark: the cost and allocation rate per second of
+ * audio over each measured iteration.
+ *
+ * The median is used as the headline figure, as it is not thrown by the
+ * odd iteration interrupted by a GC or another process; the median
+ * absolute deviation shows how much the iterations disagreed, and so how
+ * far a difference between two builds can be trusted.
+ */
+
+public class BenchmarkResult
+{
+  private final String name;
+  private final double medianNanos;
+  private final double deviationNanos;
+  private final double minNanos;
+  private final double maxNanos;
+  private final double allocatedBytes;
+
+
+  /**
+   * Create a result from the measurements of each iteration.
+   *
+   * @param name            The name of the benchmark.
+   * @param nanosPerSecond  The cost of each iteration, in nanoseconds per
+   *                        second of audio.
+   * @param bytesPerSecond  The allocation of each iteration, in bytes per
+   *                        second of audio.
+   */
+
+  public
+  BenchmarkResult (String name, double[] nanosPerSecond, double[] bytesPerSecond)
+  {
+    this.name = name;
+
+    double[] nanos = nanosPerSecond.clone ();
+    double[] bytes = bytesPerSecond.clone ();
+    Arrays.sort (nanos);
+    Arrays.sort (bytes);
+
+    medianNanos = median (nanos);
+    minNanos = nanos[0];
+    maxNanos = nanos[nanos.length - 1];
+    allocatedBytes = median (bytes);
+
+    double[] deviations = new double[nanos.length];
+
+    for (int i = 0; i < nanos.length; i++)
+      deviations[i] = Math.abs (nanos[i] - medianNanos);
+
+    Arrays.sort (deviations);
+    deviationNanos = median (deviations);
+  }
+
+
+  /**
+   * Create a result from previously saved figures.
+   *
+   * @param name            The name of the benchmark.
+   * @param medianNanos     The median cost, in ns per second of audio.
+   * @param deviationNanos  The median absolute deviation of the cost.
+   * @param allocatedBytes  The median allocation, in bytes per second of
+   *                        audio.
+   */
+
+  public
+  BenchmarkResult (String name, double medianNanos, double deviationNanos, double allocatedBytes)
+  {
+    this.name = name;
+    this.medianNanos = medianNanos;
+    this.deviationNanos = deviationNanos;
+    this.minNanos = medianNanos;
+    this.maxNanos = medianNanos;
+    this.allocatedBytes = allocatedBytes;
+  }
+
+
+  /**
+   * Read a result from a line written by toCSV.
+   *
+   * @param line  The line.
+   *
+   * @return  the result, or null if the line is not a result.
+   */
+
+  public static BenchmarkResult
+  fromCSV (String line)
+  {
+    String[] fields = line.split (",");
+
+    if (fields.length != 4)
+      return null;
+
+    try
+      {
+        return new BenchmarkResult (fields[0],
+                                    Double.parseDouble (fields[1]),
+                                    Double.parseDouble (fields[2]),
+                                    Double.parseDouble (fields[3]));
+      }
+    catch (NumberFormatException e)
+      {
+        return null;
+      }
+  }
+
+
+  /**
+   * @return  the name of the benchmark.
+   */
+
+  public String
+  getName ()
+  {
+    return name;
+  }
+
+
+  /**
+   * @return  the median cost, in nanoseconds per second of audio.
+   */
+
+  public double
+  getMedianNanos ()
+  {
+    return medianNanos;
+  }
+
+
+  /**
+   * @return  the median absolute deviation of the cost, in nanoseconds per
+   *          second of audio.
+   */
+
+  public double
+  getDeviationNanos ()
+  {
+    return deviationNanos;
+  }
+
+
+  /**
+   * @return  the median allocation, in bytes per second of audio.
+   */
+
+  public double
+  getAllocatedBytes ()
+  {
+    return allocatedBytes;
+  }
+
+
+  /**
+   * @return  the result as a line of comma-separated values (name, median,
+   *          deviation, allocation).
+   */
+
+  public String
+  toCSV ()
+  {
+    return name + "," + medianNanos + "," + deviationNanos + "," + allocatedBytes;
+  }
+
+
+  /**
+   * @return  the result as a line of human-readable text.
+   */
+
+  @Override
+  public String
+  toString ()
+  {
+    return String.format ("%-40s %12.0f ns/s audio (+/- %.0f, min %.0f, max %.0f)  %6.3f%% of one core  %10.0f B/s audio allocated",
+                          name,
+                          medianNanos,
+                          deviationNanos,
+                          minNanos,
+                          maxNanos,
+                          medianNanos / 1e7,
+                          allocatedBytes);
+  }
+
+
+  /**
+   * @param sorted  A sorted array.
+   *
+   * @return  the median of the array.
+   */
+
+  private static double
+  median (double[] sorted)
+  {
+    int middle = sorted.length / 2;
+
+    if (sorted.length % 2 == 1)
+      return sorted[middle];
+    else
+      return (sorted[middle - 1] + sorted[middle]) / 2;
+  }
+}
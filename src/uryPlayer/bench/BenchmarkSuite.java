@@ -0,0 +1,267 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uryPlayer.core.StreamSource;
+
+
+/**
+ * Runs every benchmark of the decode and playback path and, optionally,
+ * compares the results against those saved from another build.
+ *
+ * Usage:
+ *
+ *   java uryPlayer.bench.BenchmarkSuite [--fixtures DIR] [--save FILE]
+ *                                       [--baseline FILE]
+ *
+ * The fixtures directory (bench/fixtures by default) should hold
+ * recordings of the three URY streams named live-high.mp3, live-low.mp3
+ * and live-mobile.mp3; any that are missing are skipped.  --save writes
+ * the results as CSV, and --baseline reads a file written by --save and
+ * reports the change in each benchmark, marking any that got
+ * significantly slower.
+ */
+
+public class BenchmarkSuite
+{
+  /**
+   * The fixtures decoded, one per URY stream quality.
+   */
+
+  public static final String[] FIXTURES =
+  {
+    "live-high.mp3",
+    "live-low.mp3",
+    "live-mobile.mp3"
+  };
+
+
+  /**
+   * The chunk sizes measured.
+   */
+
+  public static final int[] CHUNK_SIZES = { 1024, 4096, 16384, 65536 };
+
+
+  /**
+   * The fractional slowdown beyond which a benchmark is marked as a
+   * regression (if it is also well outside the measurement noise).
+   */
+
+  public static final double REGRESSION_THRESHOLD = 0.10;
+
+
+  /**
+   * This class is not meant to be instantiated.
+   */
+
+  private
+  BenchmarkSuite ()
+  {
+  }
+
+
+  /**
+   * Run the benchmark suite.
+   *
+   * @param args  The command-line arguments (see the class documentation).
+   *
+   * @throws Exception  if a benchmark fails.
+   */
+
+  public static void
+  main (String[] args) throws Exception
+  {
+    File fixtures = new File ("bench/fixtures");
+    File save = null;
+    File baseline = null;
+
+    for (int i = 0; i + 1 < args.length; i += 2)
+      {
+        if (args[i].equals ("--fixtures"))
+          fixtures = new File (args[i + 1]);
+        else if (args[i].equals ("--save"))
+          save = new File (args[i + 1]);
+        else if (args[i].equals ("--baseline"))
+          baseline = new File (args[i + 1]);
+        else
+          {
+            System.err.println ("Unknown option: " + args[i]);
+            return;
+          }
+      }
+
+    List<Benchmark> benchmarks = new ArrayList<Benchmark> ();
+
+    for (String fixture : FIXTURES)
+      {
+        File file = new File (fixtures, fixture);
+
+        if (file.isFile ())
+          benchmarks.add (new DecodeBenchmark (file, StreamSource.CHUNK_SIZE));
+        else
+          System.err.println ("Skipping missing fixture " + file);
+      }
+
+    File high = new File (fixtures, FIXTURES[0]);
+
+    for (int chunkSize : CHUNK_SIZES)
+      {
+        if (high.isFile () && chunkSize != StreamSource.CHUNK_SIZE)
+          benchmarks.add (new DecodeBenchmark (high, chunkSize));
+
+        benchmarks.add (new OutputChunkBenchmark (chunkSize));
+      }
+
+    benchmarks.add (new GainStageBenchmark ("unity", new float[] { 1 }));
+    benchmarks.add (new GainStageBenchmark ("steady 0.5", new float[] { 0.5f }));
+    benchmarks.add (new GainStageBenchmark ("ramping", new float[] { 0.2f, 0.8f }));
+
+    for (ResamplerBenchmark resampler : ResamplerBenchmark.all ())
+      benchmarks.add (resampler);
+
+    List<BenchmarkResult> results = new ArrayList<BenchmarkResult> ();
+
+    for (Benchmark benchmark : benchmarks)
+      {
+        // Start each benchmark from a clean heap, so one benchmark's 
+        // garbage isn't collected on another's time.
+
+        System.gc ();
+        results.add (benchmark.measure (Benchmark.DEFAULT_WARMUPS, Benchmark.DEFAULT_ITERATIONS));
+      }
+
+    if (save != null)
+      saveResults (results, save);
+
+    if (baseline != null)
+      compare (results, loadResults (baseline));
+  }
+
+
+  /**
+   * Print the change in each benchmark against a baseline.
+   *
+   * @param results   The results of this run.
+   * @param baseline  The baseline results, by name.
+   */
+
+  private static void
+  compare (List<BenchmarkResult> results, Map<String, BenchmarkResult> baseline)
+  {
+    System.out.println ();
+    System.out.println ("Change against baseline:");
+
+    for (BenchmarkResult result : results)
+      {
+        BenchmarkResult base = baseline.get (result.getName ());
+
+        if (base == null)
+          {
+            System.out.println (String.format ("%-40s (not in baseline)", result.getName ()));
+            continue;
+          }
+
+        double change = (result.getMedianNanos () - base.getMedianNanos ()) / base.getMedianNanos ();
+        double noise = 3 * (result.getDeviationNanos () + base.getDeviationNanos ());
+        boolean regressed = (change > REGRESSION_THRESHOLD
+                             && result.getMedianNanos () - base.getMedianNanos () > noise);
+
+        System.out.println (String.format ("%-40s %+7.1f%% time  %+10.0f B/s allocated%s",
+                                           result.getName (),
+                                           change * 100,
+                                           result.getAllocatedBytes () - base.getAllocatedBytes (),
+                                           regressed ? "  REGRESSION" : ""));
+      }
+  }
+
+
+  /**
+   * Save results as CSV.
+   *
+   * @param results  The results.
+   * @param file     The file to save them to.
+   *
+   * @throws IOException  if the file cannot be written.
+   */
+
+  private static void
+  saveResults (List<BenchmarkResult> results, File file) throws IOException
+  {
+    PrintWriter out = new PrintWriter (new FileWriter (file));
+
+    try
+      {
+        out.println ("# name,median ns/s audio,deviation ns/s audio,allocated B/s audio");
+
+        for (BenchmarkResult result : results)
+          out.println (result.toCSV ());
+      }
+    finally
+      {
+        out.close ();
+      }
+  }
+
+
+  /**
+   * Load results saved by saveResults.
+   *
+   * @param file  The file to load them from.
+   *
+   * @return  the results, by name.
+   *
+   * @throws IOException  if the file cannot be read.
+   */
+
+  private static Map<String, BenchmarkResult>
+  loadResults (File file) throws IOException
+  {
+    Map<String, BenchmarkResult> results = new HashMap<String, BenchmarkResult> ();
+    BufferedReader in = new BufferedReader (new FileReader (file));
+
+    try
+      {
+        for (String line = in.readLine (); line != null; line = in.readLine ())
+          {
+            BenchmarkResult result = BenchmarkResult.fromCSV (line);
+
+            if (result != null)
+              results.put (result.getName (), result);
+          }
+      }
+    finally
+      {
+        in.close ();
+      }
+
+    return results;
+  }
+}
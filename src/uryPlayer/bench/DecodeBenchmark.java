@@ -0,0 +1,143 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import javazoom.spi.mpeg.sampled.convert.MpegFormatConversionProvider;
+import javazoom.spi.mpeg.sampled.file.MpegAudioFileReader;
+
+
+/**
+ * Measures the cost of decoding an MP3 fixture to 16-bit PCM, the way the
+ * decode stage of a StreamSource does, reading the decoded audio out in
+ * chunks of a given size.
+ *
+ * The fixture is loaded into memory up front, so only the decoder is
+ * measured, not the disk.
+ */
+
+public class DecodeBenchmark extends Benchmark
+{
+  private final String name;
+  private final byte[] mp3;
+  private final byte[] chunk;
+
+
+  /**
+   * Create a new decode benchmark.
+   *
+   * @param fixture    The MP3 file to decode.
+   * @param chunkSize  The size of the chunks the decoded audio is read in.
+   *
+   * @throws IOException  if the fixture cannot be read.
+   */
+
+  public
+  DecodeBenchmark (File fixture, int chunkSize) throws IOException
+  {
+    name = "Decode " + fixture.getName () + " chunk=" + chunkSize;
+    mp3 = readFile (fixture);
+    chunk = new byte[chunkSize];
+  }
+
+
+  /**
+   * @see uryPlayer.bench.Benchmark#getName()
+   */
+
+  @Override
+  public String
+  getName ()
+  {
+    return name;
+  }
+
+
+  /**
+   * @see uryPlayer.bench.Benchmark#runIteration()
+   */
+
+  @Override
+  public double
+  runIteration () throws Exception
+  {
+    AudioInputStream in = new MpegAudioFileReader ().getAudioInputStream (new ByteArrayInputStream (mp3));
+    AudioFormat baseFormat = in.getFormat ();
+    AudioFormat decodedFormat = new AudioFormat (AudioFormat.Encoding.PCM_SIGNED,
+                                                 baseFormat.getSampleRate (),
+                                                 16,
+                                                 baseFormat.getChannels (),
+                                                 baseFormat.getChannels () * 2,
+                                                 baseFormat.getSampleRate (),
+                                                 false);
+    AudioInputStream din = new MpegFormatConversionProvider ().getAudioInputStream (decodedFormat, in);
+
+    long decodedBytes = 0;
+    int nBytesRead = 0;
+
+    while (nBytesRead != -1)
+      {
+        nBytesRead = din.read (chunk, 0, chunk.length);
+
+        if (nBytesRead > 0)
+          decodedBytes += nBytesRead;
+      }
+
+    din.close ();
+
+    return decodedBytes / (double) (decodedFormat.getFrameRate () * decodedFormat.getFrameSize ());
+  }
+
+
+  /**
+   * Read a whole file into memory.
+   *
+   * @param file  The file.
+   *
+   * @return  the contents of the file.
+   *
+   * @throws IOException  if the file cannot be read.
+   */
+
+  static byte[]
+  readFile (File file) throws IOException
+  {
+    byte[] contents = new byte[(int) file.length ()];
+    DataInputStream in = new DataInputStream (new FileInputStream (file));
+
+    try
+      {
+        in.readFully (contents);
+      }
+    finally
+      {
+        in.close ();
+      }
+
+    return contents;
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import uryPlayer.core.GainStage;
+import uryPlayer.core.StreamSource;
+
+
+/**
+ * Measures the cost of the software gain stage on 44.1kHz stereo audio,
+ * processed in the same chunk size as the output stage uses.
+ *
+ * Three cases are measured: unity gain (which should cost next to
+ * nothing), a steady reduced gain, and a gain that changes every 100ms
+ * (so that the stage is ramping a fifth of the time).
+ */
+
+public class GainStageBenchmark extends Benchmark
+{
+  /**
+   * The format of the audio processed.
+   */
+
+  public static final AudioFormat FORMAT = new AudioFormat (44100, 16, 2, true, false);
+
+
+  /**
+   * The amount of audio processed per iteration, in seconds.
+   */
+
+  public static final int SECONDS_PER_ITERATION = 60;
+
+
+  private final String name;
+  private final float[] gains;
+  private final byte[] chunk;
+  private final GainStage gainStage;
+
+
+  /**
+   * Create a new gain stage benchmark.
+   *
+   * @param name   The name of the case being measured.
+   * @param gains  The gains to cycle through, one every 100ms.
+   */
+
+  public
+  GainStageBenchmark (String name, float[] gains)
+  {
+    this.name = name;
+    this.gains = gains;
+
+    chunk = new byte[StreamSource.CHUNK_SIZE];
+    new Random (1).nextBytes (chunk);
+
+    gainStage = new GainStage (FORMAT, gains[0]);
+  }
+
+
+  /**
+   * @see uryPlayer.bench.Benchmark#getName()
+   */
+
+  @Override
+  public String
+  getName ()
+  {
+    return "GainStage " + name;
+  }
+
+
+  /**
+   * @see uryPlayer.bench.Benchmark#runIteration()
+   */
+
+  @Override
+  public double
+  runIteration ()
+  {
+    int bytesPerSecond = (int) FORMAT.getFrameRate () * FORMAT.getFrameSize ();
+    long bytesPerGain = bytesPerSecond / 10;
+    long total = (long) bytesPerSecond * SECONDS_PER_ITERATION;
+    int gainIndex = 0;
+
+    for (long done = 0; done < total; done += chunk.length)
+      {
+        if (done % bytesPerGain < chunk.length)
+          {
+            gainStage.setTarget (gains[gainIndex]);
+            gainIndex = (gainIndex + 1) % gains.length;
+          }
+
+        gainStage.process (chunk, 0, chunk.length);
+      }
+
+    return SECONDS_PER_ITERATION;
+  }
+
+
+  /**
+   * Run the gain stage benchmarks.
+   *
+   * @param args  Ignored.
+   *
+   * @throws Exception  if a benchmark fails.
+   */
+
+  public static void
+  main (String[] args) throws Exception
+  {
+    new GainStageBenchmark ("unity", new float[] { 1 }).measure (DEFAULT_WARMUPS, DEFAULT_ITERATIONS);
+    new GainStageBenchmark ("steady 0.5", new float[] { 0.5f }).measure (DEFAULT_WARMUPS, DEFAULT_ITERATIONS);
+    new GainStageBenchmark ("ramping", new float[] { 0.2f, 0.8f }).measure (DEFAULT_WARMUPS, DEFAULT_ITERATIONS);
+  }
+}
@@ -0,0 +1,308 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+
+import uryPlayer.core.NullSink;
+import uryPlayer.core.PacedSink;
+import uryPlayer.core.PlayerCore;
+import uryPlayer.core.Workers;
+
+
+/**
+ * Measures how many streams one machine can play at once, by running many
+ * headless PlayerCores side by side.
+ *
+ * Usage:
+ *
+ *   java uryPlayer.bench.LoadGenerator [--url URL] [--seconds S]
+ *                                      [--threads platform|virtual]
+ *                                      COUNT...
+ *
+ * For each COUNT in turn, that many players are started on the stream
+ * (by default, the high-quality URY stream; point it at a local
+ * TestStreamServer to test without a network), each playing in real time
+ * into a NullSink.  Once they have settled, they are measured for the
+ * given number of seconds (30 by default), and a line is printed with:
+ *
+ * - the CPU used per stream, as a percentage of one core;
+ * - the heap used per stream, after garbage collection, over what was
+ *   in use before any players started;
+ * - the number of live OS threads in the JVM, and of worker threads
+ *   (virtual or not) running the players;
+ * - how far, on average and at worst, playback has fallen behind real
+ *   time (the decode lag);
+ * - the total reconnects and underruns.
+ *
+ * The players run on ordinary platform threads by default, or on virtual
+ * threads (on JVMs that have them) with --threads virtual, so the two
+ * scaling curves can be compared.
+ */
+
+public class LoadGenerator
+{
+  /**
+   * How long the players are left to connect and settle before being
+   * measured, in milliseconds.
+   */
+
+  public static final int SETTLE_MILLIS = 5000;
+
+
+  /**
+   * The default length of each measurement, in seconds.
+   */
+
+  public static final int DEFAULT_SECONDS = 30;
+
+
+  private final String url;
+  private final Workers workers;
+  private final List<PlayerCore> players;
+  private final List<NullSink> sinks;
+  private final List<Long> startTimes;
+  private final long baselineHeap;
+
+
+  /**
+   * Create a new load generator.
+   *
+   * @param url      The stream URL to play.
+   * @param workers  The workers to run the players on.
+   */
+
+  public
+  LoadGenerator (String url, Workers workers)
+  {
+    this.url = url;
+    this.workers = workers;
+
+    players = new ArrayList<PlayerCore> ();
+    sinks = new ArrayList<NullSink> ();
+    startTimes = new ArrayList<Long> ();
+    baselineHeap = usedHeap ();
+  }
+
+
+  /**
+   * Run the load generator.
+   *
+   * @param args  The command-line arguments (see the class documentation).
+   *
+   * @throws InterruptedException  if the load generator is interrupted.
+   */
+
+  public static void
+  main (String[] args) throws InterruptedException
+  {
+    String url = PlayerCore.HIGH_STREAM;
+    int seconds = DEFAULT_SECONDS;
+    String threads = "platform";
+    List<Integer> counts = new ArrayList<Integer> ();
+
+    for (int i = 0; i < args.length; i++)
+      {
+        if (args[i].equals ("--url") && i + 1 < args.length)
+          url = args[++i];
+        else if (args[i].equals ("--seconds") && i + 1 < args.length)
+          seconds = Integer.parseInt (args[++i]);
+        else if (args[i].equals ("--threads") && i + 1 < args.length)
+          threads = args[++i];
+        else
+          counts.add (Integer.parseInt (args[i]));
+      }
+
+    Workers workers = new Workers (threads.equals ("virtual"));
+
+    if (threads.equals ("virtual") && workers.isVirtual () == false)
+      {
+        System.err.println ("This JVM does not support virtual threads.");
+        return;
+      }
+
+    if (counts.isEmpty ())
+      counts.add (1);
+
+    System.out.println ("Playing " + url + " on " + threads + " threads");
+    System.out.println (String.format ("%8s %10s %12s %8s %8s %10s %10s %10s %10s",
+                                       "streams", "cpu/stream", "heap/stream",
+                                       "threads", "workers", "mean lag", "max lag",
+                                       "reconnects", "underruns"));
+
+    LoadGenerator generator = new LoadGenerator (url, workers);
+
+    for (int count : counts)
+      {
+        generator.setPlayerCount (count);
+        Thread.sleep (SETTLE_MILLIS);
+        generator.measure (seconds);
+      }
+
+    generator.setPlayerCount (0);
+  }
+
+
+  /**
+   * Start or stop players until there are a given number running.
+   *
+   * @param count  The number of players to run.
+   */
+
+  public void
+  setPlayerCount (int count)
+  {
+    while (players.size () < count)
+      {
+        NullSink sink = new NullSink ();
+        PlayerCore player = new PlayerCore (url);
+
+        player.setSink (new PacedSink (sink));
+        player.setWorkers (workers);
+
+        players.add (player);
+        sinks.add (sink);
+        startTimes.add (System.nanoTime ());
+
+        player.start ();
+      }
+
+    while (players.size () > count)
+      {
+        int last = players.size () - 1;
+
+        players.remove (last).stop ();
+        sinks.remove (last);
+        startTimes.remove (last);
+      }
+  }
+
+
+  /**
+   * Measure the running players and print the results.
+   *
+   * @param seconds  How long to measure for, in seconds.
+   *
+   * @throws InterruptedException  if the thread is interrupted.
+   */
+
+  public void
+  measure (int seconds) throws InterruptedException
+  {
+    int count = players.size ();
+    long startCPU = processCPUTime ();
+    long startTime = System.nanoTime ();
+
+    Thread.sleep (seconds * 1000L);
+
+    double cpu = (double) (processCPUTime () - startCPU) / (System.nanoTime () - startTime);
+
+    long heap = Math.max (0, usedHeap () - baselineHeap);
+    int threads = ManagementFactory.getThreadMXBean ().getThreadCount ();
+    long totalLag = 0;
+    long maxLag = 0;
+    long reconnects = 0;
+    long underruns = 0;
+
+    for (int i = 0; i < count; i++)
+      {
+        long lag = lagMillis (i);
+
+        totalLag += lag;
+        maxLag = Math.max (maxLag, lag);
+        reconnects += players.get (i).getReconnects ();
+        underruns += players.get (i).getUnderruns ();
+      }
+
+    System.out.println (String.format ("%8d %9.2f%% %8.2f MiB %8d %8d %7d ms %7d ms %10d %10d",
+                                       count,
+                                       (cpu * 100) / count,
+                                       heap / (1024.0 * 1024.0 * count),
+                                       threads,
+                                       workers.getLiveThreads (),
+                                       totalLag / count,
+                                       maxLag,
+                                       reconnects,
+                                       underruns));
+  }
+
+
+  /**
+   * Work out how far a player has fallen behind real time: that is, how
+   * much less audio it has played than it would have, had it played
+   * without a break since first starting to.
+   *
+   * @param i  The index of the player.
+   *
+   * @return  the lag, in milliseconds; if the player has not yet played
+   *          anything, the time since it was started.
+   */
+
+  private long
+  lagMillis (int i)
+  {
+    PlayerCore player = players.get (i);
+    NullSink sink = sinks.get (i);
+    AudioFormat format = sink.getFormat ();
+    long firstAudio = player.getTimeToFirstAudio ();
+    long sinceStart = (System.nanoTime () - startTimes.get (i)) / 1000000L;
+
+    if (firstAudio == -1 || format == null)
+      return sinceStart;
+
+    double bytesPerMilli = (format.getFrameRate () * format.getFrameSize ()) / 1000.0;
+    long played = (long) (sink.getBytesWritten () / bytesPerMilli);
+
+    return Math.max (0, (sinceStart - firstAudio) - played);
+  }
+
+
+  /**
+   * @return  the heap in use after a garbage collection, in bytes.
+   */
+
+  private static long
+  usedHeap ()
+  {
+    System.gc ();
+    return ManagementFactory.getMemoryMXBean ().getHeapMemoryUsage ().getUsed ();
+  }
+
+
+  /**
+   * @return  the CPU time used by the JVM so far, in nanoseconds, or 0 if
+   *          the JVM cannot say.
+   */
+
+  private static long
+  processCPUTime ()
+  {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean ();
+
+    if (os instanceof com.sun.management.OperatingSystemMXBean)
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime ();
+    else
+      return 0;
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.util.Random;
+
+import uryPlayer.core.ByteRingBuffer;
+import uryPlayer.core.GainStage;
+import uryPlayer.core.JitterBuffer;
+import uryPlayer.core.StreamSource;
+
+
+/**
+ * Measures the per-chunk overhead of the output stage for a given chunk
+ * size: decoded audio is written into the PCM ring buffer, read back out
+ * through the jitter buffer and passed through the gain stage, as in
+ * PlayerCore.rawPlay, with the line write itself left out.
+ */
+
+public class OutputChunkBenchmark extends Benchmark
+{
+  /**
+   * The amount of audio processed per iteration, in seconds.
+   */
+
+  public static final int SECONDS_PER_ITERATION = 60;
+
+
+  private final int chunkSize;
+  private final byte[] decoded;
+  private final byte[] data;
+  private final ByteRingBuffer pcm;
+  private final JitterBuffer jitter;
+  private final GainStage gain;
+
+
+  /**
+   * Create a new output stage benchmark.
+   *
+   * @param chunkSize  The size of the chunks read by the output stage.
+   */
+
+  public
+  OutputChunkBenchmark (int chunkSize)
+  {
+    this.chunkSize = chunkSize;
+
+    decoded = new byte[StreamSource.CHUNK_SIZE];
+    new Random (1).nextBytes (decoded);
+
+    data = new byte[chunkSize];
+    pcm = new ByteRingBuffer (StreamSource.PCM_BUFFER_SIZE);
+    jitter = new JitterBuffer (pcm, GainStageBenchmark.FORMAT);
+    gain = new GainStage (GainStageBenchmark.FORMAT, 0.5f);
+  }
+
+
+  /**
+   * @see uryPlayer.bench.Benchmark#getName()
+   */
+
+  @Override
+  public String
+  getName ()
+  {
+    return "Output stage chunk=" + chunkSize;
+  }
+
+
+  /**
+   * @see uryPlayer.bench.Benchmark#runIteration()
+   */
+
+  @Override
+  public double
+  runIteration () throws Exception
+  {
+    int bytesPerSecond = (int) GainStageBenchmark.FORMAT.getFrameRate () * GainStageBenchmark.FORMAT.getFrameSize ();
+    long total = (long) bytesPerSecond * SECONDS_PER_ITERATION;
+    long done = 0;
+
+    // Keep the jitter buffer at its target, so that it never blocks.
+
+    int prefill = bytesPerSecond * jitter.getTargetMillis () / 1000;
+
+    while (pcm.available () < prefill)
+      pcm.write (decoded, 0, decoded.length);
+
+    while (done < total)
+      {
+        if (pcm.available () < prefill)
+          pcm.write (decoded, 0, decoded.length);
+
+        int count = jitter.read (data, 0, data.length);
+        gain.process (data, 0, count - (count % 4));
+        done += count;
+      }
+
+    return SECONDS_PER_ITERATION;
+  }
+}
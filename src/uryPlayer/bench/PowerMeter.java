@@ -0,0 +1,385 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uryPlayer.core.AudioSink;
+import uryPlayer.core.LineSink;
+import uryPlayer.core.NullSink;
+import uryPlayer.core.PacedSink;
+import uryPlayer.core.PlaybackProfile;
+import uryPlayer.core.PlayerCore;
+import uryPlayer.core.Workers;
+
+
+/**
+ * Measures how often a player wakes the CPU, and how much CPU time it
+ * uses, per hour of playback, under each playback profile; that is, how
+ * much battery it costs a listener.
+ *
+ * Usage:
+ *
+ *   java uryPlayer.bench.PowerMeter [--url URL] [--seconds S]
+ *                                   [--output null|line] [PROFILE...]
+ *
+ * The JVM is first measured idle, with no player running, for the given
+ * number of seconds (60 by default).  Then, for each PROFILE in turn (by
+ * default, robust and power-saving), one player is started on the stream
+ * (by default, the high-quality URY stream; point it at a local
+ * TestStreamServer to test without a network), left to settle, and
+ * measured for as long again.  It plays into a NullSink paced to real
+ * time, or with --output line into the sound card.  A line is printed for
+ * each with, scaled to one hour:
+ *
+ * - the CPU time used, in seconds, and as a percentage of one core;
+ * - the number of times the JVM's threads waited or blocked (counted by
+ *   the JVM, so portable, but blind to its own internal threads);
+ * - the number of context switches made by all of the JVM's threads
+ *   (counted by the kernel, so only on Linux, but including garbage
+ *   collection and compilation);
+ * - the underruns, which should be 0 for the figures to mean anything.
+ *
+ * The idle line is the JVM's own overhead, which the player's cost sits
+ * on top of.  The players run on platform threads, as the JVM does not
+ * count the waits of virtual threads.
+ */
+
+public class PowerMeter
+{
+  /**
+   * How long each player is left to connect and fill its buffers before
+   * being measured, in milliseconds.
+   */
+
+  public static final int SETTLE_MILLIS = 10000;
+
+
+  /**
+   * The default length of each measurement, in seconds.
+   */
+
+  public static final int DEFAULT_SECONDS = 60;
+
+
+  /**
+   * The directory holding a status file for each of the process's
+   * threads, on Linux.
+   */
+
+  private static final String TASK_DIRECTORY = "/proc/self/task";
+
+
+  private final String url;
+  private final boolean line;
+  private final Workers workers;
+
+
+  /**
+   * Create a new power meter.
+   *
+   * @param url   The stream URL to play.
+   * @param line  true to play through the sound card; false to play into
+   *              a paced NullSink.
+   */
+
+  public
+  PowerMeter (String url, boolean line)
+  {
+    this.url = url;
+    this.line = line;
+
+    workers = new Workers (false);
+  }
+
+
+  /**
+   * Run the power meter.
+   *
+   * @param args  The command-line arguments (see the class documentation).
+   *
+   * @throws InterruptedException  if the power meter is interrupted.
+   */
+
+  public static void
+  main (String[] args) throws InterruptedException
+  {
+    String url = PlayerCore.HIGH_STREAM;
+    int seconds = DEFAULT_SECONDS;
+    boolean line = false;
+    List<PlaybackProfile> profiles = new ArrayList<PlaybackProfile> ();
+
+    for (int i = 0; i < args.length; i++)
+      {
+        if (args[i].equals ("--url") && i + 1 < args.length)
+          url = args[++i];
+        else if (args[i].equals ("--seconds") && i + 1 < args.length)
+          seconds = Integer.parseInt (args[++i]);
+        else if (args[i].equals ("--output") && i + 1 < args.length)
+          line = args[++i].equals ("line");
+        else
+          {
+            PlaybackProfile profile = PlaybackProfile.forName (args[i]);
+
+            if (profile == null)
+              {
+                System.err.println ("Unknown playback profile " + args[i]);
+                return;
+              }
+
+            profiles.add (profile);
+          }
+      }
+
+    if (profiles.isEmpty ())
+      {
+        profiles.add (PlaybackProfile.ROBUST);
+        profiles.add (PlaybackProfile.POWER_SAVING);
+      }
+
+    System.out.println ("Playing " + url + " into " + (line ? "the sound card" : "a NullSink")
+                        + " for " + seconds + " s per profile");
+    System.out.println (String.format ("%-14s %12s %8s %12s %13s %10s",
+                                       "profile", "cpu s/hour", "cpu", "waits/hour",
+                                       "switches/hour", "underruns"));
+
+    PowerMeter meter = new PowerMeter (url, line);
+
+    meter.measure ("idle", null, seconds);
+
+    for (PlaybackProfile profile : profiles)
+      meter.measure (profile.name ().toLowerCase ().replace ('_', '-'), profile, seconds);
+  }
+
+
+  /**
+   * Play the stream under a profile, measure it and print the results.
+   *
+   * @param name     The name to print the results under.
+   * @param profile  The profile, or null to measure with no player
+   *                 running.
+   * @param seconds  How long to measure for, in seconds.
+   *
+   * @throws InterruptedException  if the thread is interrupted.
+   */
+
+  public void
+  measure (String name, PlaybackProfile profile, int seconds) throws InterruptedException
+  {
+    PlayerCore player = null;
+
+    if (profile != null)
+      {
+        AudioSink sink = (line ? new LineSink () : new PacedSink (new NullSink ()));
+
+        player = new PlayerCore (url);
+        player.setProfile (profile, 0);
+        player.setSink (sink);
+        player.setWorkers (workers);
+        player.start ();
+
+        Thread.sleep (SETTLE_MILLIS);
+      }
+
+    try
+      {
+        long startCPU = processCPUTime ();
+        Map<Long, Long> startWaits = waitCounts ();
+        Map<Long, Long> startSwitches = contextSwitches ();
+        long startUnderruns = (player != null ? player.getUnderruns () : 0);
+        long startTime = System.nanoTime ();
+
+        Thread.sleep (seconds * 1000L);
+
+        double elapsed = (System.nanoTime () - startTime) / 1e9;
+        double perHour = 3600 / elapsed;
+        double cpuSeconds = (processCPUTime () - startCPU) / 1e9;
+        long waits = difference (startWaits, waitCounts ());
+        Map<Long, Long> endSwitches = contextSwitches ();
+        long underruns = (player != null ? player.getUnderruns () - startUnderruns : 0);
+
+        String switches = "-";
+
+        if (startSwitches != null && endSwitches != null)
+          switches = String.format ("%.0f", difference (startSwitches, endSwitches) * perHour);
+
+        System.out.println (String.format ("%-14s %12.1f %7.2f%% %12.0f %13s %10d",
+                                           name,
+                                           cpuSeconds * perHour,
+                                           (cpuSeconds * 100) / elapsed,
+                                           waits * perHour,
+                                           switches,
+                                           underruns));
+      }
+    finally
+      {
+        if (player != null)
+          player.stop ();
+      }
+  }
+
+
+  /**
+   * Add up how far each of a set of per-thread counts has grown.  Threads
+   * that have ended since the first count are left out, and threads
+   * started since are counted from 0.
+   *
+   * @param start  The counts at the start, by thread.
+   * @param end    The counts at the end, by thread.
+   *
+   * @return  the total growth.
+   */
+
+  private static long
+  difference (Map<Long, Long> start, Map<Long, Long> end)
+  {
+    long total = 0;
+
+    for (Map.Entry<Long, Long> entry : end.entrySet ())
+      {
+        Long before = start.get (entry.getKey ());
+
+        total += entry.getValue () - (before != null ? before : 0);
+      }
+
+    return total;
+  }
+
+
+  /**
+   * @return  the number of times each live thread in the JVM has waited
+   *          or blocked, by thread ID.
+   */
+
+  private static Map<Long, Long>
+  waitCounts ()
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean ();
+    Map<Long, Long> counts = new HashMap<Long, Long> ();
+
+    for (ThreadInfo info : threads.getThreadInfo (threads.getAllThreadIds ()))
+      {
+        // Threads that ended since their IDs were taken have no info.
+
+        if (info != null)
+          counts.put (info.getThreadId (), info.getWaitedCount () + info.getBlockedCount ());
+      }
+
+    return counts;
+  }
+
+
+  /**
+   * @return  the number of context switches each of the process's threads
+   *          has made, voluntary or not, by kernel thread ID; or null if
+   *          the kernel does not say (such as on anything but Linux).
+   */
+
+  private static Map<Long, Long>
+  contextSwitches ()
+  {
+    File[] tasks = new File (TASK_DIRECTORY).listFiles ();
+
+    if (tasks == null)
+      return null;
+
+    Map<Long, Long> counts = new HashMap<Long, Long> ();
+
+    for (File task : tasks)
+      {
+        try
+          {
+            counts.put (Long.parseLong (task.getName ()), readSwitches (new File (task, "status")));
+          }
+        catch (IOException e)
+          {
+            // This is normal (it occurs when the thread ends while being
+            // read).
+          }
+        catch (NumberFormatException e)
+          {
+            // Not a thread.
+          }
+      }
+
+    return counts;
+  }
+
+
+  /**
+   * @param status  A thread's status file.
+   *
+   * @return  the number of context switches the thread has made.
+   *
+   * @throws IOException  if the file cannot be read.
+   */
+
+  private static long
+  readSwitches (File status) throws IOException
+  {
+    BufferedReader reader = new BufferedReader (new FileReader (status));
+    long switches = 0;
+
+    try
+      {
+        String line;
+
+        while ((line = reader.readLine ()) != null)
+          {
+            if (line.startsWith ("voluntary_ctxt_switches:")
+                || line.startsWith ("nonvoluntary_ctxt_switches:"))
+              switches += Long.parseLong (line.substring (line.indexOf (':') + 1).trim ());
+          }
+      }
+    finally
+      {
+        reader.close ();
+      }
+
+    return switches;
+  }
+
+
+  /**
+   * @return  the CPU time used by the JVM so far, in nanoseconds, or 0 if
+   *          the JVM cannot say.
+   */
+
+  private static long
+  processCPUTime ()
+  {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean ();
+
+    if (os instanceof com.sun.management.OperatingSystemMXBean)
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime ();
+    else
+      return 0;
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import uryPlayer.core.DriftController;
+import uryPlayer.core.Resampler;
+import uryPlayer.core.StreamSource;
+
+
+/**
+ * Measures the cost of clock-drift compensation on 44.1kHz stereo audio,
+ * resampled in the same chunk size as the output stage uses, which is the
+ * CPU it adds to each stream played.
+ *
+ * Three cases are measured: a ratio of exactly 1 (as before any drift has
+ * been found), a steady ratio at the most the DriftController will
+ * correct by, and a ratio that changes every second, as the controller
+ * changes it.
+ */
+
+public class ResamplerBenchmark extends Benchmark
+{
+  /**
+   * The format of the audio resampled.
+   */
+
+  public static final AudioFormat FORMAT = new AudioFormat (44100, 16, 2, true, false);
+
+
+  /**
+   * The amount of audio resampled per iteration, in seconds.
+   */
+
+  public static final int SECONDS_PER_ITERATION = 60;
+
+
+  private final String name;
+  private final double[] ratios;
+  private final byte[] chunk;
+  private final byte[] resampled;
+  private final Resampler resampler;
+
+
+  /**
+   * Create a new resampler benchmark.
+   *
+   * @param name    The name of the case being measured.
+   * @param ratios  The ratios to cycle through, one every second.
+   */
+
+  public
+  ResamplerBenchmark (String name, double[] ratios)
+  {
+    this.name = name;
+    this.ratios = ratios;
+
+    chunk = new byte[StreamSource.CHUNK_SIZE];
+    new Random (1).nextBytes (chunk);
+
+    resampler = new Resampler (FORMAT);
+    resampled = new byte[resampler.getMaxOutput (chunk.length)];
+  }
+
+
+  /**
+   * @see uryPlayer.bench.Benchmark#getName()
+   */
+
+  @Override
+  public String
+  getName ()
+  {
+    return "Resampler " + name;
+  }
+
+
+  /**
+   * @see uryPlayer.bench.Benchmark#runIteration()
+   */
+
+  @Override
+  public double
+  runIteration ()
+  {
+    int bytesPerSecond = (int) FORMAT.getFrameRate () * FORMAT.getFrameSize ();
+    long total = (long) bytesPerSecond * SECONDS_PER_ITERATION;
+    int ratioIndex = 0;
+
+    for (long done = 0; done < total; done += chunk.length)
+      {
+        if (done % bytesPerSecond < chunk.length)
+          {
+            resampler.setRatio (ratios[ratioIndex]);
+            ratioIndex = (ratioIndex + 1) % ratios.length;
+          }
+
+        resampler.process (chunk, 0, chunk.length, resampled, 0);
+      }
+
+    return SECONDS_PER_ITERATION;
+  }
+
+
+  /**
+   * Run the resampler benchmarks.
+   *
+   * @param args  Ignored.
+   *
+   * @throws Exception  if a benchmark fails.
+   */
+
+  public static void
+  main (String[] args) throws Exception
+  {
+    for (ResamplerBenchmark benchmark : all ())
+      benchmark.measure (DEFAULT_WARMUPS, DEFAULT_ITERATIONS);
+  }
+
+
+  /**
+   * @return  the resampler benchmarks, one for each case.
+   */
+
+  public static ResamplerBenchmark[]
+  all ()
+  {
+    double max = DriftController.MAX_CORRECTION;
+
+    return new ResamplerBenchmark[]
+      {
+        new ResamplerBenchmark ("ratio 1", new double[] { 1 }),
+        new ResamplerBenchmark ("steady +0.1%", new double[] { 1 + max }),
+        new ResamplerBenchmark ("drifting", new double[] { 1 - max, 1 - max / 2, 1, 1 + max / 2, 1 + max })
+      };
+  }
+}
@@ -0,0 +1,632 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uryPlayer.core.MpegFrameHeader;
+import uryPlayer.core.MpegFrameReader;
+
+
+/**
+ * A local stand-in for the URY Icecast server, for testing the player
+ * without a network.
+ *
+ * The server streams MP3 files from a directory at the pace they play,
+ * the way a live stream arrives: a request for /audio/live-high is
+ * answered with live-high.mp3, looped forever.  Like Icecast, it sends a
+ * burst of audio on connecting before settling into real time.  Faults can
+ * be injected into every stream, and changed while it runs:
+ *
+ * - a delay before answering each request;
+ * - latency spikes, at random intervals, after which the held-back audio
+ *   arrives in a burst;
+ * - stalls, during which the stream stops and does not catch up;
+ * - a bandwidth cap;
+ * - disconnecting mid-frame after a time.
+ *
+ * To point the player at it, set the uryPlayer.prefix system property to
+ * the prefix printed on starting, for example:
+ *
+ *   java uryPlayer.bench.TestStreamServer bench/fixtures 8000
+ *   java -DuryPlayer.prefix=http://127.0.0.1:8000/audio/
+ *        uryPlayer.standalone.URYPlayer
+ */
+
+public class TestStreamServer implements Runnable
+{
+  /**
+   * The default port to listen on.
+   */
+
+  public static final int DEFAULT_PORT = 8000;
+
+
+  /**
+   * The path the streams are served under, as on the URY server.
+   */
+
+  public static final String PATH_PREFIX = "/audio/";
+
+
+  /**
+   * The default amount of audio sent on connecting, in bytes (Icecast's
+   * default burst size).
+   */
+
+  public static final int DEFAULT_BURST_BYTES = 64 * 1024;
+
+
+  /**
+   * The size of the request headers read, in bytes.
+   */
+
+  private static final int MAX_REQUEST_SIZE = 8192;
+
+
+  private final File directory;
+  private final ServerSocket serverSocket;
+  private final Set<Socket> clients;
+
+  private volatile int burstBytes;
+  private volatile int responseDelayMillis;
+  private volatile int spikeIntervalMillis;
+  private volatile int spikeMillis;
+  private volatile int stallIntervalMillis;
+  private volatile int stallMillis;
+  private volatile int bandwidth;
+  private volatile int disconnectAfterMillis;
+  private volatile long connections;
+  private final AtomicLong bytesSent;
+
+
+  /**
+   * Create a new server, listening on the loopback interface.  The server
+   * does not accept connections until started.
+   *
+   * @param directory  The directory holding the MP3 files to serve.
+   * @param port       The port to listen on, or 0 for any free port.
+   *
+   * @throws IOException  if the port cannot be listened on.
+   */
+
+  public
+  TestStreamServer (File directory, int port) throws IOException
+  {
+    this.directory = directory;
+
+    serverSocket = new ServerSocket (port, 50, InetAddress.getByName ("127.0.0.1"));
+    clients = new HashSet<Socket> ();
+    bytesSent = new AtomicLong ();
+
+    burstBytes = DEFAULT_BURST_BYTES;
+    responseDelayMillis = 0;
+    spikeIntervalMillis = 0;
+    spikeMillis = 0;
+    stallIntervalMillis = 0;
+    stallMillis = 0;
+    bandwidth = 0;
+    disconnectAfterMillis = 0;
+    connections = 0;
+  }
+
+
+  /**
+   * Run the server from the command line.
+   *
+   * @param args  The directory holding the MP3 files to serve, and
+   *              optionally the port to listen on.
+   *
+   * @throws IOException  if the port cannot be listened on.
+   */
+
+  public static void
+  main (String[] args) throws IOException
+  {
+    if (args.length < 1)
+      {
+        System.err.println ("Usage: TestStreamServer DIRECTORY [PORT]");
+        return;
+      }
+
+    int port = (args.length > 1 ? Integer.parseInt (args[1]) : DEFAULT_PORT);
+    TestStreamServer server = new TestStreamServer (new File (args[0]), port);
+
+    System.out.println ("Serving " + args[0] + " at " + server.getPrefix ());
+    server.run ();
+  }
+
+
+  /**
+   * Start accepting connections, in the background.
+   */
+
+  public void
+  start ()
+  {
+    Thread thread = new Thread (this, "TestStreamServer");
+    thread.setDaemon (true);
+    thread.start ();
+  }
+
+
+  /**
+   * Accept connections until the server is closed.
+   */
+
+  @Override
+  public void
+  run ()
+  {
+    while (serverSocket.isClosed () == false)
+      {
+        try
+          {
+            final Socket socket = serverSocket.accept ();
+
+            Thread thread = new Thread (new Runnable ()
+            {
+              @Override
+              public void
+              run ()
+              {
+                serve (socket);
+              }
+            }, "TestStreamServer client: " + socket.getRemoteSocketAddress ());
+
+            thread.setDaemon (true);
+            thread.start ();
+          }
+        catch (IOException e)
+          {
+            // This is normal (it occurs when the server is closed).
+          }
+      }
+  }
+
+
+  /**
+   * Stop the server, dropping every connection.
+   */
+
+  public void
+  close ()
+  {
+    try
+      {
+        serverSocket.close ();
+      }
+    catch (IOException e)
+      {
+        // Nothing more can be done with the socket at this point.
+      }
+
+    synchronized (clients)
+      {
+        for (Socket client : clients)
+          closeQuietly (client);
+
+        clients.clear ();
+      }
+  }
+
+
+  /**
+   * @return  the URL prefix the streams are served under.
+   */
+
+  public String
+  getPrefix ()
+  {
+    return "http://127.0.0.1:" + serverSocket.getLocalPort () + PATH_PREFIX;
+  }
+
+
+  /**
+   * @param bytes  The amount of audio sent on connecting, in bytes.
+   */
+
+  public void
+  setBurstBytes (int bytes)
+  {
+    burstBytes = bytes;
+  }
+
+
+  /**
+   * @param millis  The delay before answering each request, in
+   *                milliseconds.
+   */
+
+  public void
+  setResponseDelay (int millis)
+  {
+    responseDelayMillis = millis;
+  }
+
+
+  /**
+   * Inject latency spikes: every so often, at random, the stream is held
+   * back for a while, then sent in a burst to catch up.
+   *
+   * @param meanIntervalMillis  The mean time between spikes, in
+   *                            milliseconds, or 0 for no spikes.
+   * @param millis              The length of each spike, in milliseconds.
+   */
+
+  public void
+  setLatencySpikes (int meanIntervalMillis, int millis)
+  {
+    spikeMillis = millis;
+    spikeIntervalMillis = meanIntervalMillis;
+  }
+
+
+  /**
+   * Inject stalls: at regular intervals, the stream stops for a while and
+   * carries on from where it stopped, so the client falls behind.
+   *
+   * @param intervalMillis  The time between stalls, in milliseconds, or 0
+   *                        for no stalls.
+   * @param millis          The length of each stall, in milliseconds.
+   */
+
+  public void
+  setStalls (int intervalMillis, int millis)
+  {
+    stallMillis = millis;
+    stallIntervalMillis = intervalMillis;
+  }
+
+
+  /**
+   * @param bytesPerSecond  The most each stream may send, in bytes per
+   *                        second, or 0 for no cap.
+   */
+
+  public void
+  setBandwidth (int bytesPerSecond)
+  {
+    bandwidth = bytesPerSecond;
+  }
+
+
+  /**
+   * @param millis  How long each stream runs before the server drops it
+   *                mid-frame, in milliseconds, or 0 to never drop it.
+   */
+
+  public void
+  setDisconnectAfter (int millis)
+  {
+    disconnectAfterMillis = millis;
+  }
+
+
+  /**
+   * @return  the number of connections accepted.
+   */
+
+  public long
+  getConnections ()
+  {
+    return connections;
+  }
+
+
+  /**
+   * @return  the number of stream bytes sent, over all connections.
+   */
+
+  public long
+  getBytesSent ()
+  {
+    return bytesSent.get ();
+  }
+
+
+  /**
+   * @return  the number of clients currently connected.
+   */
+
+  public int
+  getClientCount ()
+  {
+    synchronized (clients)
+      {
+        return clients.size ();
+      }
+  }
+
+
+  /**
+   * Serve a single client.
+   *
+   * @param socket  The client's socket.
+   */
+
+  private void
+  serve (Socket socket)
+  {
+    synchronized (clients)
+      {
+        if (serverSocket.isClosed ())
+          {
+            closeQuietly (socket);
+            return;
+          }
+
+        clients.add (socket);
+        connections++;
+      }
+
+    try
+      {
+        socket.setTcpNoDelay (true);
+
+        String path = readRequest (socket.getInputStream ());
+        OutputStream out = socket.getOutputStream ();
+        File file = null;
+
+        if (path != null && path.startsWith (PATH_PREFIX))
+          file = new File (directory, path.substring (PATH_PREFIX.length ()) + ".mp3");
+
+        sleep (responseDelayMillis);
+
+        if (file == null || file.getParentFile ().equals (directory) == false
+            || file.isFile () == false)
+          {
+            out.write ("HTTP/1.0 404 Not Found\r\n\r\n".getBytes ("US-ASCII"));
+            return;
+          }
+
+        out.write (("HTTP/1.0 200 OK\r\n"
+                    + "Content-Type: audio/mpeg\r\n"
+                    + "icy-name: " + file.getName () + "\r\n"
+                    + "\r\n").getBytes ("US-ASCII"));
+
+        stream (file, out);
+      }
+    catch (SocketException e)
+      {
+        // This is normal (it occurs when the client disconnects).
+      }
+    catch (IOException e)
+      {
+        System.err.println ("TestStreamServer: " + e.getMessage ());
+      }
+    catch (InterruptedException e)
+      {
+        // Give up on the client.
+      }
+    finally
+      {
+        synchronized (clients)
+          {
+            clients.remove (socket);
+          }
+
+        closeQuietly (socket);
+      }
+  }
+
+
+  /**
+   * Read an HTTP request, up to the blank line ending its headers.
+   *
+   * @param in  The stream to read the request from.
+   *
+   * @return  the requested path, or null if the request is not a GET.
+   *
+   * @throws IOException  if the request cannot be read.
+   */
+
+  private static String
+  readRequest (InputStream in) throws IOException
+  {
+    StringBuilder request = new StringBuilder ();
+
+    while (request.length () < 4
+           || request.substring (request.length () - 4).equals ("\r\n\r\n") == false)
+      {
+        int b = in.read ();
+
+        if (b == -1 || request.length () > MAX_REQUEST_SIZE)
+          throw new IOException ("Bad request");
+
+        request.append ((char) b);
+      }
+
+    String[] requestLine = request.substring (0, request.indexOf ("\r\n")).split (" ");
+
+    if (requestLine.length < 2 || requestLine[0].equals ("GET") == false)
+      return null;
+
+    return requestLine[1];
+  }
+
+
+  /**
+   * Stream a file at the pace it plays, looping it forever, and injecting
+   * whatever faults are set.
+   *
+   * @param file  The MP3 file.
+   * @param out   The stream to the client.
+   *
+   * @throws IOException           if the client disconnects.
+   * @throws InterruptedException  if the thread is interrupted.
+   */
+
+  private void
+  stream (File file, OutputStream out) throws IOException, InterruptedException
+  {
+    Random random = new Random ();
+    long startTime = System.nanoTime ();
+    long due = startTime;
+    long burstLeft = burstBytes;
+    long sent = 0;
+    long nextSpike = startTime + spikeInterval (random);
+    long nextStall = startTime + (stallIntervalMillis * 1000000L);
+
+    while (true)
+      {
+        InputStream in = new FileInputStream (file);
+        MpegFrameReader reader = new MpegFrameReader (in);
+
+        try
+          {
+            int length = reader.readFrame ();
+
+            if (length == -1)
+              throw new IOException ("No MP3 frames in " + file);
+
+            for (; length != -1; length = reader.readFrame ())
+              {
+                MpegFrameHeader header = reader.getHeader ();
+
+                // Send the burst straight away; after that, keep to the 
+                // pace the stream plays at.
+
+                if (burstLeft > 0)
+                  burstLeft -= length;
+                else
+                  {
+                    due += header.getDurationMicros () * 1000;
+                    sleepUntil (due);
+                  }
+
+                long now = System.nanoTime ();
+
+                if (spikeIntervalMillis > 0 && now >= nextSpike)
+                  {
+                    sleep (spikeMillis);
+                    nextSpike = System.nanoTime () + spikeInterval (random);
+                  }
+
+                if (stallIntervalMillis > 0 && now >= nextStall)
+                  {
+                    sleep (stallMillis);
+                    due += stallMillis * 1000000L;
+                    nextStall = System.nanoTime () + (stallIntervalMillis * 1000000L);
+                  }
+
+                if (bandwidth > 0)
+                  sleepUntil (startTime + ((sent * 1000000000L) / bandwidth));
+
+                if (disconnectAfterMillis > 0
+                    && now - startTime >= disconnectAfterMillis * 1000000L)
+                  {
+                    out.write (reader.getBuffer (), reader.getFrameOffset (), length / 2);
+                    out.flush ();
+                    return;
+                  }
+
+                out.write (reader.getBuffer (), reader.getFrameOffset (), length);
+                sent += length;
+                bytesSent.addAndGet (length);
+              }
+          }
+        finally
+          {
+            in.close ();
+          }
+      }
+  }
+
+
+  /**
+   * @param random  The random number generator to use.
+   *
+   * @return  the time until the next latency spike, in nanoseconds, drawn
+   *          from an exponential distribution so that spikes arrive at
+   *          random.
+   */
+
+  private long
+  spikeInterval (Random random)
+  {
+    return (long) (-Math.log (1 - random.nextDouble ()) * spikeIntervalMillis * 1000000L);
+  }
+
+
+  /**
+   * Sleep until a point in time.
+   *
+   * @param nanoTime  The time to sleep until, as given by System.nanoTime.
+   *
+   * @throws InterruptedException  if the thread is interrupted.
+   */
+
+  private static void
+  sleepUntil (long nanoTime) throws InterruptedException
+  {
+    long remaining = nanoTime - System.nanoTime ();
+
+    if (remaining > 0)
+      Thread.sleep (remaining / 1000000L, (int) (remaining % 1000000L));
+  }
+
+
+  /**
+   * Sleep for a time, if it is positive.
+   *
+   * @param millis  The time to sleep, in milliseconds.
+   *
+   * @throws InterruptedException  if the thread is interrupted.
+   */
+
+  private static void
+  sleep (int millis) throws InterruptedException
+  {
+    if (millis > 0)
+      Thread.sleep (millis);
+  }
+
+
+  /**
+   * Close a socket, ignoring any error.
+   *
+   * @param socket  The socket.
+   */
+
+  private static void
+  closeQuietly (Socket socket)
+  {
+    try
+      {
+        socket.close ();
+      }
+    catch (IOException e)
+      {
+        // Nothing more can be done with the socket at this point.
+      }
+  }
+}
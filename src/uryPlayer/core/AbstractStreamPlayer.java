@@ -16,16 +16,33 @@ package uryPlayer.core;
 
 public abstract class AbstractStreamPlayer implements URYStreamPlayer
 {
+  /**
+   * How much of the stream is kept for pausing and rewinding, in seconds.
+   */
+  
+  public static final int TIME_SHIFT_SECONDS = 30 * 60;
+  
+  
   private PlayerCore player;
   
   /**
    * Creates a new URY stream player.
+   * 
+   * The player starts in fast-start mode, as a listener pressing "start" 
+   * wants to hear something straight away, and keeps the last 
+   * TIME_SHIFT_SECONDS of the stream so that it can be paused and rewound.
+   * If the stream has mirrors, a warm standby is kept while it falters.  
+   * The player can be watched through JMX.
    */
   
   public
   AbstractStreamPlayer ()
   {
     player = new PlayerCore (PlayerCore.HIGH_STREAM);
+    player.setFastStart (true);
+    player.setTimeShift (TIME_SHIFT_SECONDS);
+    player.setWarmStandby (true);
+    player.registerMBean ();
   }
   
   
@@ -136,4 +153,63 @@ public abstract class AbstractStreamPlayer implements URYStreamPlayer
       return false;
   }
 
+
+  /**
+   * @see uryPlayer.core.URYStreamPlayer#setAutoQuality(boolean)
+   */
+  
+  @Override
+  public boolean
+  setAutoQuality (boolean isAutomatic)
+  {
+    if (player == null)
+      return false;
+    else
+      return player.setAdaptive (isAutomatic);
+  }
+
+
+  /**
+   * @see uryPlayer.core.URYStreamPlayer#setPaused(boolean)
+   */
+  
+  @Override
+  public boolean
+  setPaused (boolean isPaused)
+  {
+    if (player == null)
+      return false;
+    else
+      return player.setPaused (isPaused);
+  }
+
+
+  /**
+   * @see uryPlayer.core.URYStreamPlayer#rewind(int)
+   */
+  
+  @Override
+  public boolean
+  rewind (int seconds)
+  {
+    if (player == null)
+      return false;
+    else
+      return player.rewind (seconds);
+  }
+
+
+  /**
+   * @see uryPlayer.core.URYStreamPlayer#jumpToLive()
+   */
+  
+  @Override
+  public boolean
+  jumpToLive ()
+  {
+    if (player == null)
+      return false;
+    else
+      return player.jumpToLive ();
+  }
 }
@@ -0,0 +1,99 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+
+
+/**
+ * Somewhere for the PlayerCore to send decoded audio: the sound card, a
+ * file, a pipe, or nowhere at all.
+ *
+ * A sink is opened in a format before anything is written to it, and may
+ * be closed and opened again, possibly in another format, such as when the
+ * player switches to a stream it cannot convert.  Sinks that play audio
+ * out (such as the sound card) block in write until there is room, and so
+ * pace the player in real time; other sinks accept audio as fast as it is
+ * decoded, unless wrapped in a PacedSink.
+ */
+
+public interface AudioSink
+{
+  /**
+   * Open the sink, ready to accept audio in a given format.
+   *
+   * @param format  The format of the audio to be written.
+   *
+   * @throws LineUnavailableException  if the sink cannot be opened.
+   * @throws IllegalArgumentException  if the sink does not support the
+   *                                   format.
+   */
+
+  public void
+  open (AudioFormat format) throws LineUnavailableException;
+
+
+  /**
+   * @return  the format the sink is open in, or null if it is not open.
+   */
+
+  public AudioFormat
+  getFormat ();
+
+
+  /**
+   * Start the sink playing the audio written to it.
+   */
+
+  public void
+  start ();
+
+
+  /**
+   * Write audio to the sink, waiting until it has all been accepted.
+   *
+   * @param b    The array holding the audio.
+   * @param off  The offset of the first byte of audio.
+   * @param len  The number of bytes of audio (a whole number of frames).
+   *
+   * @throws IOException  if the audio cannot be written.
+   */
+
+  public void
+  write (byte[] b, int off, int len) throws IOException;
+
+
+  /**
+   * Stop the sink playing, discarding nothing.
+   */
+
+  public void
+  stop ();
+
+
+  /**
+   * Close the sink.  It may be opened again afterwards.
+   */
+
+  public void
+  close ();
+}
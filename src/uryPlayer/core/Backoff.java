@@ -0,0 +1,110 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.util.Random;
+
+
+/**
+ * Exponential backoff with jitter, for spacing out reconnection attempts.
+ *
+ * Each delay is drawn at random from between half and all of the current
+ * ceiling, which doubles after every attempt up to a maximum.  The
+ * randomness stops a crowd of players that all lost the stream at once
+ * from all reconnecting at once.
+ */
+
+public class Backoff
+{
+  /**
+   * The default ceiling on the first delay, in milliseconds.
+   */
+
+  public static final long DEFAULT_INITIAL_MILLIS = 250;
+
+
+  /**
+   * The default largest ceiling on any delay, in milliseconds.
+   */
+
+  public static final long DEFAULT_MAX_MILLIS = 10000;
+
+
+  private final long initialMillis;
+  private final long maxMillis;
+  private final Random random;
+  private long ceiling;
+
+
+  /**
+   * Create a new Backoff with the default delays.
+   */
+
+  public
+  Backoff ()
+  {
+    this (DEFAULT_INITIAL_MILLIS, DEFAULT_MAX_MILLIS);
+  }
+
+
+  /**
+   * Create a new Backoff.
+   *
+   * @param initialMillis  The ceiling on the first delay, in milliseconds.
+   * @param maxMillis      The largest ceiling on any delay, in milliseconds.
+   */
+
+  public
+  Backoff (long initialMillis, long maxMillis)
+  {
+    this.initialMillis = initialMillis;
+    this.maxMillis = maxMillis;
+
+    random = new Random ();
+    ceiling = initialMillis;
+  }
+
+
+  /**
+   * Get the delay before the next attempt, and back off further for the
+   * attempt after that.
+   *
+   * @return  the delay, in milliseconds.
+   */
+
+  public long
+  nextDelay ()
+  {
+    long delay = (ceiling / 2) + (long) (random.nextDouble () * (ceiling / 2));
+    ceiling = Math.min (maxMillis, ceiling * 2);
+
+    return delay;
+  }
+
+
+  /**
+   * Go back to the initial delay, after an attempt has succeeded.
+   */
+
+  public void
+  reset ()
+  {
+    ceiling = initialMillis;
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+
+/**
+ * Decides when automatic quality selection should move between the URY
+ * quality tiers.
+ *
+ * The controller is fed one sample a second of how much stream data has
+ * arrived and how full the jitter buffer is, and keeps a sliding window of
+ * these.  It steps down a tier when the data is arriving more slowly than
+ * the stream plays and the buffer is draining, before the buffer runs dry.
+ * Because the network stage stops reading once its buffer is full, spare
+ * bandwidth cannot be measured directly; instead, after a long enough run
+ * with full buffers, the controller probes up a tier.  A probe that fails
+ * soon after doubles the wait before the next one.
+ */
+
+public class BitrateController
+{
+  /**
+   * The quality tiers, from highest to lowest.
+   */
+
+  public static final String[] TIERS =
+  {
+    PlayerCore.HIGH_STREAM,
+    PlayerCore.LOW_STREAM,
+    PlayerCore.MOBILE_STREAM
+  };
+
+
+  /**
+   * The interval between samples, in milliseconds.
+   */
+
+  public static final int SAMPLE_INTERVAL_MILLIS = 1000;
+
+
+  /**
+   * The number of samples in the sliding window.
+   */
+
+  public static final int WINDOW_SIZE = 10;
+
+
+  /**
+   * The fraction of the stream's bitrate that data must arrive at, on
+   * average over the window, for the tier to be considered sustainable.
+   */
+
+  public static final double DOWN_GOODPUT_RATIO = 1.05;
+
+
+  /**
+   * How long the buffers must stay healthy before probing up a tier, in
+   * milliseconds.  This doubles after each failed probe.
+   */
+
+  public static final long INITIAL_PROBE_MILLIS = 60000;
+
+
+  /**
+   * The longest wait before probing up a tier, in milliseconds.
+   */
+
+  public static final long MAX_PROBE_MILLIS = 16 * 60000;
+
+
+  /**
+   * How long after moving up a tier a move back down counts as a failed
+   * probe, in milliseconds.
+   */
+
+  public static final long PROBE_GRACE_MILLIS = 30000;
+
+
+  private final long[] goodput;
+  private final int[] fill;
+
+  private int samples;
+  private int next;
+  private long lastBytes;
+  private long lastSampleTime;
+  private long healthySince;
+  private long lastProbeTime;
+  private long probeWait;
+
+
+  /**
+   * Create a new bitrate controller.
+   */
+
+  public
+  BitrateController ()
+  {
+    goodput = new long[WINDOW_SIZE];
+    fill = new int[WINDOW_SIZE];
+
+    probeWait = INITIAL_PROBE_MILLIS;
+    lastProbeTime = -PROBE_GRACE_MILLIS;
+    reset (0, 0);
+  }
+
+
+  /**
+   * Forget the sliding window, such as after switching streams.
+   *
+   * @param now            The current time, in milliseconds.
+   * @param bytesReceived  The stream source's count of bytes received.
+   */
+
+  public void
+  reset (long now, long bytesReceived)
+  {
+    samples = 0;
+    next = 0;
+    lastBytes = bytesReceived;
+    lastSampleTime = now;
+    healthySince = now;
+  }
+
+
+  /**
+   * @param now  The current time, in milliseconds.
+   *
+   * @return  true if it is time to take another sample.
+   */
+
+  public boolean
+  isSampleDue (long now)
+  {
+    return (now - lastSampleTime >= SAMPLE_INTERVAL_MILLIS);
+  }
+
+
+  /**
+   * Take a sample and decide whether to change tier.
+   *
+   * @param now            The current time, in milliseconds.
+   * @param currentURL     The stream currently playing.
+   * @param bytesReceived  The stream source's count of bytes received.
+   * @param bitrate        The stream's bitrate, in kilobits per second.
+   * @param fillMillis     The jitter buffer's fill level, in milliseconds.
+   * @param targetMillis   The jitter buffer's target, in milliseconds.
+   * @param networkFull    Whether the network stage's buffer is full.
+   *
+   * @return  the URL of the tier to switch to, or null to stay put.
+   */
+
+  public String
+  sample (long now, String currentURL, long bytesReceived, int bitrate,
+          int fillMillis, int targetMillis, boolean networkFull)
+  {
+    int tier = tierOf (currentURL);
+    long elapsed = Math.max (1, now - lastSampleTime);
+
+    goodput[next] = ((bytesReceived - lastBytes) * 8 * 1000) / elapsed;
+    fill[next] = fillMillis;
+    next = (next + 1) % WINDOW_SIZE;
+    samples = Math.min (samples + 1, WINDOW_SIZE);
+
+    lastBytes = bytesReceived;
+    lastSampleTime = now;
+
+    if (tier == -1 || bitrate <= 0)
+      return null;
+
+    if (networkFull == false || fillMillis < targetMillis)
+      healthySince = now;
+
+    if (samples == WINDOW_SIZE && shouldStepDown (bitrate, targetMillis))
+      {
+        if (now - lastProbeTime < PROBE_GRACE_MILLIS)
+          probeWait = Math.min (MAX_PROBE_MILLIS, probeWait * 2);
+
+        if (tier + 1 < TIERS.length)
+          {
+            reset (now, bytesReceived);
+            return TIERS[tier + 1];
+          }
+      }
+    else if (tier > 0 && now - healthySince >= probeWait)
+      {
+        lastProbeTime = now;
+        reset (now, bytesReceived);
+        return TIERS[tier - 1];
+      }
+    else if (tier == 0 || now - lastProbeTime >= PROBE_GRACE_MILLIS + probeWait)
+      {
+        // The last probe (if any) has long since proved itself.
+
+        probeWait = INITIAL_PROBE_MILLIS;
+      }
+
+    return null;
+  }
+
+
+  /**
+   * Decide whether the stream is arriving too slowly to keep up.
+   *
+   * @param bitrate       The stream's bitrate, in kilobits per second.
+   * @param targetMillis  The jitter buffer's target, in milliseconds.
+   *
+   * @return  true if the buffer is likely to run dry at this tier.
+   */
+
+  private boolean
+  shouldStepDown (int bitrate, int targetMillis)
+  {
+    long totalGoodput = 0;
+
+    for (int i = 0; i < WINDOW_SIZE; i++)
+      totalGoodput += goodput[i];
+
+    int oldestFill = fill[next];
+    int newestFill = fill[(next + WINDOW_SIZE - 1) % WINDOW_SIZE];
+
+    boolean slow = (totalGoodput / WINDOW_SIZE) < (bitrate * 1000 * DOWN_GOODPUT_RATIO);
+    boolean draining = (newestFill < oldestFill && newestFill < targetMillis);
+    boolean nearlyDry = (newestFill < targetMillis / 2);
+
+    return (slow && draining) || nearlyDry;
+  }
+
+
+  /**
+   * Find the tier a stream URL belongs to.
+   *
+   * @param url  The stream URL.
+   *
+   * @return  the index of the tier in TIERS, or -1 if the URL is not one of
+   *          the tiers.
+   */
+
+  private static int
+  tierOf (String url)
+  {
+    for (int i = 0; i < TIERS.length; i++)
+      {
+        if (TIERS[i].equals (url))
+          return i;
+      }
+
+    return -1;
+  }
+}
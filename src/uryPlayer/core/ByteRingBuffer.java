@@ -0,0 +1,478 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A bounded, preallocated ring buffer of bytes joining two stages of the
+ * playback pipeline.
+ *
+ * One stage writes into the buffer and another reads out of it.  The
+ * backing array is allocated once, up front, so moving data through the
+ * buffer never allocates.  A reader blocks only while the buffer is empty
+ * and a writer only while it is full, so short bursts on either side are
+ * absorbed by the buffer rather than passed on to the other stage.
+ *
+ * The buffer waits on an explicit lock rather than a monitor, so that a
+ * stage blocked on it running on a virtual thread frees up the carrier
+ * thread underneath.
+ */
+
+public class ByteRingBuffer
+{
+  private final byte[] data;
+  private final ReentrantLock lock;
+  private final Condition changed;
+  private int readPos;
+  private int fill;
+  private long readCount;
+  private boolean closed;
+
+
+  /**
+   * Create a new ring buffer.
+   *
+   * @param capacity  The number of bytes the buffer can hold.
+   */
+
+  public
+  ByteRingBuffer (int capacity)
+  {
+    data = new byte[capacity];
+    lock = new ReentrantLock ();
+    changed = lock.newCondition ();
+    readPos = 0;
+    fill = 0;
+    readCount = 0;
+    closed = false;
+  }
+
+
+  /**
+   * @return  the number of bytes the buffer can hold.
+   */
+
+  public int
+  capacity ()
+  {
+    return data.length;
+  }
+
+
+  /**
+   * @return  the number of bytes currently waiting to be read.
+   */
+
+  public int
+  available ()
+  {
+    lock.lock ();
+
+    try
+      {
+        return fill;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * @return  the number of bytes that can be written without blocking.
+   */
+
+  public int
+  free ()
+  {
+    lock.lock ();
+
+    try
+      {
+        return data.length - fill;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * @return  the total number of bytes read or skipped out of the buffer
+   *          since it was created.
+   */
+
+  public long
+  getReadCount ()
+  {
+    lock.lock ();
+
+    try
+      {
+        return readCount;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * @return  true if the writing stage has closed the buffer.
+   */
+
+  public boolean
+  isClosed ()
+  {
+    lock.lock ();
+
+    try
+      {
+        return closed;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Write bytes into the buffer, blocking while it is full.
+   *
+   * @param b    The array holding the bytes to write.
+   * @param off  The offset of the first byte to write.
+   * @param len  The number of bytes to write.
+   *
+   * @return  the number of bytes written, which is less than len only if
+   *          the buffer was closed during the write.
+   *
+   * @throws InterruptedException  if the writing thread is interrupted.
+   */
+
+  public int
+  write (byte[] b, int off, int len) throws InterruptedException
+  {
+    lock.lock ();
+
+    try
+      {
+        int written = 0;
+
+        while (written < len && closed == false)
+          {
+            while (fill == data.length && closed == false)
+              changed.await ();
+
+            if (closed)
+              break;
+
+            int count = Math.min (len - written, data.length - fill);
+            int writePos = (readPos + fill) % data.length;
+            int firstPart = Math.min (count, data.length - writePos);
+
+            System.arraycopy (b, off + written, data, writePos, firstPart);
+            System.arraycopy (b, off + written + firstPart, data, 0, count - firstPart);
+
+            fill += count;
+            written += count;
+            changed.signalAll ();
+          }
+
+        return written;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Write bytes into the buffer only if all of them fit at once, never
+   * blocking.  As the bytes go in together or not at all, several threads
+   * can offer whole records (such as MP3 frames) without interleaving.
+   *
+   * @param b    The array holding the bytes to write.
+   * @param off  The offset of the first byte to write.
+   * @param len  The number of bytes to write.
+   *
+   * @return  true if the bytes were written; false if there was not room
+   *          for them, or the buffer is closed.
+   */
+
+  public boolean
+  offer (byte[] b, int off, int len)
+  {
+    lock.lock ();
+
+    try
+      {
+        if (closed || data.length - fill < len)
+          return false;
+
+        int writePos = (readPos + fill) % data.length;
+        int firstPart = Math.min (len, data.length - writePos);
+
+        System.arraycopy (b, off, data, writePos, firstPart);
+        System.arraycopy (b, off + firstPart, data, 0, len - firstPart);
+
+        fill += len;
+        changed.signalAll ();
+        return true;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Read bytes out of the buffer, blocking while it is empty.
+   *
+   * @param b    The array to read the bytes into.
+   * @param off  The offset at which to store the first byte.
+   * @param len  The maximum number of bytes to read.
+   *
+   * @return  the number of bytes read, or -1 if the buffer has been closed
+   *          and all of its contents have been read.
+   *
+   * @throws InterruptedException  if the reading thread is interrupted.
+   */
+
+  public int
+  read (byte[] b, int off, int len) throws InterruptedException
+  {
+    lock.lock ();
+
+    try
+      {
+        while (fill == 0 && closed == false)
+          changed.await ();
+
+        if (fill == 0)
+          return -1;
+
+        int count = Math.min (len, fill);
+        int firstPart = Math.min (count, data.length - readPos);
+
+        System.arraycopy (data, readPos, b, off, firstPart);
+        System.arraycopy (data, 0, b, off + firstPart, count - firstPart);
+
+        readPos = (readPos + count) % data.length;
+        fill -= count;
+        readCount += count;
+        changed.signalAll ();
+
+        return count;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Discard bytes from the reading end of the buffer without copying them.
+   *
+   * @param len  The maximum number of bytes to discard.
+   *
+   * @return  the number of bytes discarded.
+   */
+
+  public int
+  skip (int len)
+  {
+    lock.lock ();
+
+    try
+      {
+        int count = Math.min (len, fill);
+
+        readPos = (readPos + count) % data.length;
+        fill -= count;
+        readCount += count;
+        changed.signalAll ();
+
+        return count;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Block until at least the given number of bytes are waiting to be read,
+   * or the buffer is closed.
+   *
+   * @param len  The number of bytes to wait for (capped at the capacity).
+   *
+   * @return  the number of bytes waiting to be read.
+   *
+   * @throws InterruptedException  if the waiting thread is interrupted.
+   */
+
+  public int
+  awaitAvailable (int len) throws InterruptedException
+  {
+    lock.lock ();
+
+    try
+      {
+        int wanted = Math.min (len, data.length);
+
+        while (fill < wanted && closed == false)
+          changed.await ();
+
+        return fill;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Block until at least the given number of bytes are waiting to be read,
+   * the buffer is closed, or a time limit passes.
+   *
+   * @param len      The number of bytes to wait for (capped at the 
+   *                 capacity).
+   * @param timeout  The most time to wait, in milliseconds.
+   *
+   * @return  the number of bytes waiting to be read.
+   *
+   * @throws InterruptedException  if the waiting thread is interrupted.
+   */
+
+  public int
+  awaitAvailable (int len, long timeout) throws InterruptedException
+  {
+    lock.lock ();
+
+    try
+      {
+        int wanted = Math.min (len, data.length);
+        long remaining = TimeUnit.MILLISECONDS.toNanos (timeout);
+
+        while (fill < wanted && closed == false && remaining > 0)
+          remaining = changed.awaitNanos (remaining);
+
+        return fill;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Close the buffer.
+   *
+   * Any stage blocked on the buffer is woken.  Bytes already in the buffer
+   * can still be read, after which reads return -1.
+   */
+
+  public void
+  close ()
+  {
+    lock.lock ();
+
+    try
+      {
+        closed = true;
+        changed.signalAll ();
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Get a view of the reading end of this buffer as an InputStream, for
+   * stages (such as the MP3 decoder) that expect one.
+   *
+   * An interrupt of the reading thread is reported as an end of stream.
+   *
+   * @return  an InputStream reading from this buffer.
+   */
+
+  public InputStream
+  asInputStream ()
+  {
+    return new InputStream ()
+    {
+      private final byte[] single = new byte[1];
+
+      @Override
+      public int
+      read () throws IOException
+      {
+        int count = read (single, 0, 1);
+
+        if (count == -1)
+          return -1;
+        else
+          return single[0] & 0xFF;
+      }
+
+      @Override
+      public int
+      read (byte[] b, int off, int len) throws IOException
+      {
+        if (len == 0)
+          return 0;
+
+        try
+          {
+            return ByteRingBuffer.this.read (b, off, len);
+          }
+        catch (InterruptedException e)
+          {
+            Thread.currentThread ().interrupt ();
+            return -1;
+          }
+      }
+
+      @Override
+      public int
+      available ()
+      {
+        return ByteRingBuffer.this.available ();
+      }
+    };
+  }
+}
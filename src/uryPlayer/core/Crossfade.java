@@ -0,0 +1,82 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+
+/**
+ * A linear crossfade between two runs of 16-bit little-endian PCM, used to
+ * hide the join when switching from one stream to another.
+ */
+
+public class Crossfade
+{
+  /**
+   * The length of the crossfade used when switching streams, in
+   * milliseconds.
+   */
+
+  public static final int CROSSFADE_MILLIS = 50;
+
+
+  /**
+   * This class is not meant to be instantiated.
+   */
+
+  private
+  Crossfade ()
+  {
+  }
+
+
+  /**
+   * Mix part of a crossfade, in place.
+   *
+   * The crossfade runs over a number of PCM frames, of which this call
+   * covers len bytes starting a given number of frames in.  Each frame is
+   * weighted by how far through the crossfade it lies, so a crossfade can be
+   * mixed a chunk at a time.
+   *
+   * @param from       The outgoing audio; the mix is written back here.
+   * @param to         The incoming audio.
+   * @param len        The number of bytes to mix (a whole number of frames).
+   * @param frameSize  The size of a PCM frame, in bytes.
+   * @param position   The number of frames of the crossfade already mixed.
+   * @param total      The length of the whole crossfade, in frames.
+   */
+
+  public static void
+  mix (byte[] from, byte[] to, int len, int frameSize, long position, long total)
+  {
+    for (int frame = 0; frame * frameSize < len; frame++)
+      {
+        float weight = (float) (position + frame) / total;
+        int end = (frame + 1) * frameSize;
+
+        for (int i = frame * frameSize; i < end; i += 2)
+          {
+            int outgoing = (short) ((from[i] & 0xFF) | (from[i + 1] << 8));
+            int incoming = (short) ((to[i] & 0xFF) | (to[i + 1] << 8));
+            int mixed = Math.round (outgoing + ((incoming - outgoing) * weight));
+
+            from[i] = (byte) mixed;
+            from[i + 1] = (byte) (mixed >> 8);
+          }
+      }
+  }
+}
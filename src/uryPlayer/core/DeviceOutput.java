@@ -0,0 +1,686 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+
+
+/**
+ * One of the outputs of a MultiOutputSink: a sink (usually a LineSink on
+ * one sound card) with its own buffer, volume and delay trim, played from
+ * its own thread.
+ *
+ * Audio handed to the output is put in its buffer without waiting, and
+ * dropped if the buffer is full, so an output whose device is slow, stuck
+ * or unplugged never holds up the player or the other outputs.  The
+ * output's thread plays the buffer into the sink, resampling it by up to
+ * DriftController.MAX_CORRECTION so that the audio queued for the device
+ * (in the buffer and the line) holds steady at the output's latency,
+ * however far the device's clock drifts from the others'.  Outputs given
+ * the same buffer size therefore stay in step, and the delay trim moves
+ * one later than the rest, such as a speaker further from the listener.
+ *
+ * If the sink cannot be opened, or fails while playing, the output drops
+ * its audio and tries to open it again every RETRY_MILLIS.
+ */
+
+public class DeviceOutput
+{
+  /**
+   * The default latency of an output, before its delay trim, in
+   * milliseconds.
+   */
+
+  public static final int DEFAULT_BUFFER_MILLIS = 250;
+
+
+  /**
+   * The longest delay trim allowed, in milliseconds.
+   */
+
+  public static final int MAX_DELAY_MILLIS = 2000;
+
+
+  /**
+   * The room left in the buffer, on top of the latency and the longest
+   * delay trim, for audio handed over in large chunks, in milliseconds.
+   */
+
+  public static final int HEADROOM_MILLIS = 2000;
+
+
+  /**
+   * The interval between attempts to open a sink that failed, in
+   * milliseconds.
+   */
+
+  public static final int RETRY_MILLIS = 2000;
+
+
+  /**
+   * The longest a wait for the buffer to fill lasts before checking
+   * whether the output has been closed, in milliseconds.
+   */
+
+  public static final int POLL_MILLIS = 100;
+
+
+  /**
+   * How far the queued audio may grow past the latency before the excess
+   * is skipped at once rather than resampled away, in milliseconds, on top
+   * of the size of the chunks the audio is handed over in.
+   */
+
+  public static final int JUMP_MILLIS = 100;
+
+
+  private final String name;
+  private final AudioSink sink;
+  private final int bufferMillis;
+  private final Object sinkLock;
+
+  private volatile float volume;
+  private volatile int delayMillis;
+  private volatile boolean running;
+  private volatile boolean playing;
+  private volatile boolean sinkOpen;
+  private volatile int chunkBytes;
+  private final StripedCounter droppedBytes;
+  private volatile long underruns;
+  private volatile long failures;
+  private volatile double ratio;
+
+  private volatile AudioFormat format;
+  private volatile ByteRingBuffer buffer;
+  private Thread thread;
+
+
+  /**
+   * Create a new output, at full volume, with no delay trim.
+   *
+   * @param name          A name for the output, for messages.
+   * @param sink          The sink to play into.
+   * @param bufferMillis  The latency of the output, before its delay trim,
+   *                      in milliseconds.  A LineSink is given half of
+   *                      it as its line buffer.
+   */
+
+  public
+  DeviceOutput (String name, AudioSink sink, int bufferMillis)
+  {
+    this.name = name;
+    this.sink = sink;
+    this.bufferMillis = Math.max (1, bufferMillis);
+
+    sinkLock = new Object ();
+    volume = 1;
+    delayMillis = 0;
+    running = false;
+    playing = false;
+    sinkOpen = false;
+    chunkBytes = 0;
+    droppedBytes = new StripedCounter ();
+    underruns = 0;
+    failures = 0;
+    ratio = 1;
+
+    if (sink instanceof LineSink)
+      ((LineSink) sink).setBufferMillis (this.bufferMillis / 2);
+  }
+
+
+  /**
+   * @return  the name of the output.
+   */
+
+  public String
+  getName ()
+  {
+    return name;
+  }
+
+
+  /**
+   * Set the volume of this output, on top of the player's own.  This may
+   * be called from any thread.
+   *
+   * @param volume  The volume, as a floating-point number from 0 to 1.
+   */
+
+  public void
+  setVolume (float volume)
+  {
+    this.volume = Math.max (0, Math.min (1, volume));
+  }
+
+
+  /**
+   * @return  the volume of this output, as a floating-point number from 0
+   *          to 1.
+   */
+
+  public float
+  getVolume ()
+  {
+    return volume;
+  }
+
+
+  /**
+   * Set how much later than its latency this output plays.  This may be
+   * called from any thread; the output skips or pauses to the new delay
+   * at once.
+   *
+   * @param millis  The delay trim, in milliseconds, from 0 to
+   *                MAX_DELAY_MILLIS.
+   */
+
+  public void
+  setDelayMillis (int millis)
+  {
+    delayMillis = Math.max (0, Math.min (MAX_DELAY_MILLIS, millis));
+  }
+
+
+  /**
+   * @return  the delay trim, in milliseconds.
+   */
+
+  public int
+  getDelayMillis ()
+  {
+    return delayMillis;
+  }
+
+
+  /**
+   * @return  the amount of audio waiting in the output's buffer, in
+   *          milliseconds, or 0 if the output is not open.
+   */
+
+  public int
+  getFillMillis ()
+  {
+    ByteRingBuffer current = buffer;
+    AudioFormat currentFormat = format;
+
+    if (current == null || currentFormat == null)
+      return 0;
+
+    return bytesToMillis (currentFormat, current.available ());
+  }
+
+
+  /**
+   * @return  the number of bytes of audio dropped because the buffer was
+   *          full or the sink unavailable.
+   */
+
+  public long
+  getDroppedBytes ()
+  {
+    return droppedBytes.sum ();
+  }
+
+
+  /**
+   * @return  the number of times the buffer has run dry.
+   */
+
+  public long
+  getUnderruns ()
+  {
+    return underruns;
+  }
+
+
+  /**
+   * @return  the number of times the sink has failed to open or play.
+   */
+
+  public long
+  getFailures ()
+  {
+    return failures;
+  }
+
+
+  /**
+   * @return  true if the sink is open and playing the output.
+   */
+
+  public boolean
+  isAvailable ()
+  {
+    return sinkOpen;
+  }
+
+
+  /**
+   * @return  how far the output is being resampled to hold its latency,
+   *          in parts per million: positive when it plays faster.
+   */
+
+  public double
+  getDriftCorrectionPPM ()
+  {
+    return (ratio - 1) * 1e6;
+  }
+
+
+  /**
+   * Open the output in a format, and start its thread.  The sink itself
+   * is opened by the thread, so a sink that cannot be opened does not
+   * stop the output opening.
+   *
+   * @param newFormat  The format of the audio to be played.
+   * @param workers    The workers to run the thread on.
+   */
+
+  public synchronized void
+  open (AudioFormat newFormat, Workers workers)
+  {
+    close ();
+
+    int capacity = PlaybackProfile.millisToBytes (newFormat, bufferMillis + MAX_DELAY_MILLIS + HEADROOM_MILLIS);
+
+    format = newFormat;
+    buffer = new ByteRingBuffer (capacity);
+    chunkBytes = 0;
+    running = true;
+
+    final ByteRingBuffer playBuffer = buffer;
+
+    thread = workers.newThread (new Runnable ()
+    {
+      @Override
+      public void
+      run ()
+      {
+        play (playBuffer);
+      }
+    }, "Output " + name);
+    thread.start ();
+  }
+
+
+  /**
+   * Start the sink playing the audio handed to the output.
+   */
+
+  public void
+  start ()
+  {
+    synchronized (sinkLock)
+      {
+        playing = true;
+
+        if (sinkOpen)
+          sink.start ();
+      }
+  }
+
+
+  /**
+   * Hand audio to the output, without waiting.  If there is no room for
+   * it in the buffer, or the sink is unavailable, the audio is dropped.
+   *
+   * @param b    The array holding the audio.
+   * @param off  The offset of the first byte of audio.
+   * @param len  The number of bytes of audio (a whole number of frames).
+   */
+
+  public void
+  offer (byte[] b, int off, int len)
+  {
+    ByteRingBuffer current = buffer;
+
+    if (current == null || running == false)
+      return;
+
+    chunkBytes = len;
+
+    if (sinkOpen == false || current.free () < len)
+      {
+        droppedBytes.add (len);
+        return;
+      }
+
+    try
+      {
+        current.write (b, off, len);
+      }
+    catch (InterruptedException e)
+      {
+        // There was room, so this only occurs if the output is closed
+        // while writing.
+
+        Thread.currentThread ().interrupt ();
+      }
+  }
+
+
+  /**
+   * Stop the sink playing, discarding nothing.
+   */
+
+  public void
+  stop ()
+  {
+    synchronized (sinkLock)
+      {
+        playing = false;
+
+        if (sinkOpen)
+          sink.stop ();
+      }
+  }
+
+
+  /**
+   * Stop the output's thread and close the sink.  The output may be
+   * opened again afterwards.
+   */
+
+  public synchronized void
+  close ()
+  {
+    running = false;
+
+    if (buffer != null)
+      buffer.close ();
+
+    // Closing the sink wakes the thread if it is stuck writing to it.
+
+    closeSink ();
+
+    if (thread != null)
+      {
+        thread.interrupt ();
+
+        try
+          {
+            thread.join (RETRY_MILLIS);
+          }
+        catch (InterruptedException e)
+          {
+            Thread.currentThread ().interrupt ();
+          }
+
+        thread = null;
+      }
+
+    closeSink ();
+    buffer = null;
+  }
+
+
+  /**
+   * The output's thread: play the buffer into the sink until the output
+   * is closed, reopening the sink whenever it fails.
+   *
+   * @param playBuffer  The buffer to play.
+   */
+
+  private void
+  play (ByteRingBuffer playBuffer)
+  {
+    AudioFormat playFormat = format;
+    int frameSize = playFormat.getFrameSize ();
+    byte[] chunk = new byte[StreamSource.CHUNK_SIZE - (StreamSource.CHUNK_SIZE % frameSize)];
+    GainStage gain = new GainStage (playFormat, volume);
+    Resampler resampler = new Resampler (playFormat);
+    byte[] resampled = new byte[resampler.getMaxOutput (chunk.length)];
+    DriftController controller = new DriftController ();
+    boolean buffering = true;
+    int playedDelay = delayMillis;
+
+    try
+      {
+        while (running)
+          {
+            if (sinkOpen == false)
+              {
+                if (openSink (playFormat) == false)
+                  {
+                    playBuffer.skip (playBuffer.available ());
+                    Thread.sleep (RETRY_MILLIS);
+                    continue;
+                  }
+
+                buffering = true;
+              }
+
+            // Pause while a raised delay trim builds up.
+
+            int delay = delayMillis;
+
+            if (delay > playedDelay)
+              buffering = true;
+
+            playedDelay = delay;
+
+            long now = System.currentTimeMillis ();
+            int targetMillis = bufferMillis + delay + bytesToMillis (playFormat, chunkBytes);
+            int jumpMillis = JUMP_MILLIS + bytesToMillis (playFormat, chunkBytes);
+
+            if (buffering)
+              {
+                int target = PlaybackProfile.millisToBytes (playFormat, targetMillis);
+
+                if (playBuffer.awaitAvailable (target, POLL_MILLIS) < target)
+                  continue;
+
+                buffering = false;
+                controller.reset (now);
+              }
+            else if (playBuffer.available () == 0)
+              {
+                // Only count the buffer running dry while audio is
+                // arriving (it also empties when the player pauses or
+                // stops).
+
+                if (playing)
+                  underruns++;
+
+                buffering = true;
+                continue;
+              }
+
+            int queuedMillis = getQueuedMillis (playBuffer, playFormat);
+
+            if (queuedMillis > targetMillis + jumpMillis)
+              {
+                // Jump back to the latency, such as after the delay trim
+                // is cut, or audio has piled up while the device stalled.
+
+                int excess = PlaybackProfile.millisToBytes (playFormat, queuedMillis - targetMillis);
+                droppedBytes.add (playBuffer.skip (Math.min (excess, playBuffer.available ())));
+                controller.reset (now);
+              }
+            else if (controller.isSampleDue (now))
+              {
+                ratio = controller.sample (now, queuedMillis, targetMillis);
+                resampler.setRatio (ratio);
+              }
+
+            int count = playBuffer.read (chunk, 0, chunk.length);
+
+            if (count == -1)
+              break;
+
+            gain.setTarget (volume);
+            gain.process (chunk, 0, count);
+
+            try
+              {
+                sink.write (resampled, 0, resampler.process (chunk, 0, count, resampled, 0));
+              }
+            catch (IOException e)
+              {
+                fail (e);
+              }
+            catch (RuntimeException e)
+              {
+                // Java Sound reports a line vanishing in various ways.
+
+                fail (e);
+              }
+          }
+      }
+    catch (InterruptedException e)
+      {
+        // This is normal (it occurs when the output is closed).
+      }
+  }
+
+
+  /**
+   * Try to open the sink, starting it if the output is playing.
+   *
+   * @param playFormat  The format to open it in.
+   *
+   * @return  true if the sink was opened.
+   */
+
+  private boolean
+  openSink (AudioFormat playFormat)
+  {
+    synchronized (sinkLock)
+      {
+        if (running == false)
+          return false;
+
+        try
+          {
+            sink.open (playFormat);
+          }
+        catch (LineUnavailableException e)
+          {
+            noteFailure (e);
+            return false;
+          }
+        catch (RuntimeException e)
+          {
+            // Such as IllegalArgumentException, if the device cannot play
+            // the format, or SecurityException, in an unsigned applet.
+
+            noteFailure (e);
+            return false;
+          }
+
+        if (playing)
+          sink.start ();
+
+        if (failures > 0)
+          System.err.println ("Output " + name + " available again");
+
+        sinkOpen = true;
+        return true;
+      }
+  }
+
+
+  /**
+   * Close the sink after it fails, so that it is opened again.
+   *
+   * @param e  The failure.
+   */
+
+  private void
+  fail (Exception e)
+  {
+    if (running)
+      noteFailure (e);
+
+    closeSink ();
+  }
+
+
+  /**
+   * Count and report a failure of the sink, reporting only the first of a
+   * run of failures so that an unplugged device does not flood the log.
+   *
+   * @param e  The failure.
+   */
+
+  private void
+  noteFailure (Exception e)
+  {
+    if (sinkOpen || failures == 0)
+      System.err.println ("Output " + name + " unavailable: " + e);
+
+    failures++;
+  }
+
+
+  /**
+   * Close the sink, if it is open.
+   */
+
+  private void
+  closeSink ()
+  {
+    synchronized (sinkLock)
+      {
+        if (sinkOpen)
+          {
+            sinkOpen = false;
+            sink.close ();
+          }
+      }
+  }
+
+
+  /**
+   * @param playBuffer  The buffer being played.
+   * @param playFormat  The format being played.
+   *
+   * @return  the audio queued for the device, in the buffer and (for a
+   *          LineSink) the line, in milliseconds.
+   */
+
+  private int
+  getQueuedMillis (ByteRingBuffer playBuffer, AudioFormat playFormat)
+  {
+    int queued = bytesToMillis (playFormat, playBuffer.available ());
+
+    if (sink instanceof LineSink)
+      queued += ((LineSink) sink).getFillMillis ();
+
+    return queued;
+  }
+
+
+  /**
+   * @param bytesFormat  The format of the audio.
+   * @param bytes        A number of bytes of audio.
+   *
+   * @return  the duration of that much audio, in milliseconds.
+   */
+
+  private static int
+  bytesToMillis (AudioFormat bytesFormat, int bytes)
+  {
+    return (int) (bytes * 1000L / (long) (bytesFormat.getFrameRate () * bytesFormat.getFrameSize ()));
+  }
+}
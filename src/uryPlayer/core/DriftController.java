@@ -0,0 +1,204 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+
+/**
+ * Decides how fast to play a live stream so that the jitter buffer stays
+ * at its target, however far the broadcaster's sample clock and the sound
+ * card's drift apart.
+ *
+ * A sound card running slower than the broadcaster lets the buffer grow
+ * without limit (so the latency creeps up), and one running faster drains
+ * it (so playback underruns), a few milliseconds a minute at a time.  The
+ * controller is fed one sample a second of the buffer's fill level, which
+ * it smooths over tens of seconds, so that network jitter is ignored and
+ * only the slow drift remains.  It then sets a resampling ratio, at most
+ * MAX_CORRECTION away from 1: proportional to how far the buffer is from
+ * its target, plus a slowly built-up term that cancels out a steady drift,
+ * so the buffer settles on the target itself rather than beside it.  The
+ * resulting changes of speed are far too small to be heard.
+ */
+
+public class DriftController
+{
+  /**
+   * The furthest the ratio may be from 1 (0.1%, or about 44 frames a
+   * second at 44.1kHz).
+   */
+
+  public static final double MAX_CORRECTION = 0.001;
+
+
+  /**
+   * The interval between samples, in milliseconds.
+   */
+
+  public static final int SAMPLE_INTERVAL_MILLIS = 1000;
+
+
+  /**
+   * How much each sample moves the smoothed fill level towards it (so the
+   * smoothed level follows the buffer over about 20 seconds).
+   */
+
+  public static final double SMOOTHING = 0.05;
+
+
+  /**
+   * The correction made for each whole target's worth of error in the
+   * smoothed fill level.
+   */
+
+  public static final double PROPORTIONAL_GAIN = 0.002;
+
+
+  /**
+   * The correction built up each second for each whole target's worth of
+   * error in the smoothed fill level.
+   */
+
+  public static final double INTEGRAL_GAIN = 0.000004;
+
+
+  private long lastSampleTime;
+  private double smoothedFill;
+  private double integral;
+  private double ratio;
+  private boolean started;
+
+
+  /**
+   * Create a new drift controller, at a ratio of 1.
+   */
+
+  public
+  DriftController ()
+  {
+    integral = 0;
+    reset (0);
+  }
+
+
+  /**
+   * Forget the smoothed fill level, such as after the buffer has been
+   * emptied on purpose (by a seek or a switch of stream) or has run dry.
+   * The drift built up so far is kept, as the clocks have not changed.
+   *
+   * @param now  The current time, in milliseconds.
+   */
+
+  public void
+  reset (long now)
+  {
+    lastSampleTime = now;
+    smoothedFill = 0;
+    started = false;
+    ratio = 1 + clamp (integral);
+  }
+
+
+  /**
+   * @param now  The current time, in milliseconds.
+   *
+   * @return  true if it is time to take another sample.
+   */
+
+  public boolean
+  isSampleDue (long now)
+  {
+    return (now - lastSampleTime >= SAMPLE_INTERVAL_MILLIS);
+  }
+
+
+  /**
+   * Take a sample of the jitter buffer and work out the ratio to play at.
+   *
+   * @param now           The current time, in milliseconds.
+   * @param fillMillis    The jitter buffer's fill level, in milliseconds.
+   * @param targetMillis  The jitter buffer's target, in milliseconds.
+   *
+   * @return  the ratio of input frames to output frames to resample by:
+   *          above 1 to drain the buffer, below 1 to fill it.
+   */
+
+  public double
+  sample (long now, int fillMillis, int targetMillis)
+  {
+    double seconds = (now - lastSampleTime) / 1000.0;
+
+    lastSampleTime = now;
+
+    if (started == false)
+      {
+        smoothedFill = fillMillis;
+        started = true;
+      }
+    else
+      smoothedFill += SMOOTHING * (fillMillis - smoothedFill);
+
+    double error = (smoothedFill - targetMillis) / Math.max (1, targetMillis);
+
+    // Only build up the steady term while the correction is not already
+    // at its limit, so it does not wind up past what can be used.
+
+    double proportional = PROPORTIONAL_GAIN * error;
+
+    if (Math.abs (proportional + integral) < MAX_CORRECTION)
+      integral = clamp (integral + INTEGRAL_GAIN * error * seconds);
+
+    ratio = 1 + clamp (proportional + integral);
+    return ratio;
+  }
+
+
+  /**
+   * @return  the ratio last decided on.
+   */
+
+  public double
+  getRatio ()
+  {
+    return ratio;
+  }
+
+
+  /**
+   * @return  the jitter buffer's smoothed fill level, in milliseconds.
+   */
+
+  public double
+  getSmoothedFillMillis ()
+  {
+    return smoothedFill;
+  }
+
+
+  /**
+   * @param correction  A correction to the ratio.
+   *
+   * @return  the correction, kept within MAX_CORRECTION.
+   */
+
+  private static double
+  clamp (double correction)
+  {
+    return Math.max (-MAX_CORRECTION, Math.min (MAX_CORRECTION, correction));
+  }
+}
@@ -0,0 +1,310 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+
+
+/**
+ * An AudioSink recording audio to a file, either as a WAV file or (if the
+ * file name does not end in .wav) as raw PCM.
+ *
+ * The file is created the first time the sink is opened.  If the sink is
+ * closed and opened again, later audio is appended, so a recording
+ * survives the player switching streams; the WAV header is brought up to
+ * date each time the sink is closed.  A WAV file can only hold one format,
+ * so once audio has been written, the sink refuses to reopen in another.
+ */
+
+public class FileSink implements AudioSink
+{
+  /**
+   * The size of the WAV header written, in bytes.
+   */
+
+  public static final int WAV_HEADER_SIZE = 44;
+
+
+  private final File file;
+  private final boolean wav;
+
+  private AudioFormat format;
+  private RandomAccessFile out;
+  private long dataBytes;
+
+
+  /**
+   * Create a new file sink.  The file is not touched until the sink is
+   * opened.
+   *
+   * @param file  The file to record to.
+   */
+
+  public
+  FileSink (File file)
+  {
+    this.file = file;
+
+    wav = file.getName ().toLowerCase ().endsWith (".wav");
+    format = null;
+    out = null;
+    dataBytes = 0;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#open(javax.sound.sampled.AudioFormat)
+   */
+
+  @Override
+  public synchronized void
+  open (AudioFormat newFormat) throws LineUnavailableException
+  {
+    boolean fresh = (dataBytes == 0);
+
+    if (wav && fresh == false && newFormat.matches (format) == false)
+      throw new LineUnavailableException ("Cannot change the format of " + file);
+
+    if (wav && (newFormat.getEncoding () != AudioFormat.Encoding.PCM_SIGNED
+                || (newFormat.isBigEndian () && newFormat.getSampleSizeInBits () > 8)))
+      throw new IllegalArgumentException ("WAV files can only hold little-endian PCM");
+
+    try
+      {
+        out = new RandomAccessFile (file, "rw");
+
+        if (fresh)
+          {
+            out.setLength (0);
+
+            if (wav)
+              out.write (wavHeader (newFormat, 0));
+          }
+        else
+          out.seek (out.length ());
+      }
+    catch (IOException e)
+      {
+        closeFile ();
+        throw new LineUnavailableException ("Cannot open " + file + ": " + e.getMessage ());
+      }
+
+    format = newFormat;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#getFormat()
+   */
+
+  @Override
+  public synchronized AudioFormat
+  getFormat ()
+  {
+    if (out != null)
+      return format;
+    else
+      return null;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#start()
+   */
+
+  @Override
+  public void
+  start ()
+  {
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#write(byte[], int, int)
+   */
+
+  @Override
+  public synchronized void
+  write (byte[] b, int off, int len) throws IOException
+  {
+    out.write (b, off, len);
+    dataBytes += len;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#stop()
+   */
+
+  @Override
+  public void
+  stop ()
+  {
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#close()
+   */
+
+  @Override
+  public synchronized void
+  close ()
+  {
+    if (out == null)
+      return;
+
+    try
+      {
+        if (wav)
+          {
+            out.seek (0);
+            out.write (wavHeader (format, dataBytes));
+          }
+      }
+    catch (IOException e)
+      {
+        System.err.println ("Cannot finish " + file + ": " + e.getMessage ());
+      }
+
+    closeFile ();
+  }
+
+
+  /**
+   * @return  the number of bytes of audio recorded.
+   */
+
+  public synchronized long
+  getBytesWritten ()
+  {
+    return dataBytes;
+  }
+
+
+  /**
+   * Close the file, ignoring any error.
+   */
+
+  private void
+  closeFile ()
+  {
+    try
+      {
+        if (out != null)
+          out.close ();
+      }
+    catch (IOException e)
+      {
+        // Nothing more can be done with the file at this point.
+      }
+
+    out = null;
+  }
+
+
+  /**
+   * Build a WAV header.
+   *
+   * @param format     The format of the audio.
+   * @param dataBytes  The number of bytes of audio following the header.
+   *
+   * @return  the header.
+   */
+
+  private static byte[]
+  wavHeader (AudioFormat format, long dataBytes)
+  {
+    int channels = format.getChannels ();
+    int sampleRate = (int) format.getSampleRate ();
+    int frameSize = format.getFrameSize ();
+    int dataSize = (int) Math.min (dataBytes, 0xFFFFFFFFL - WAV_HEADER_SIZE);
+
+    byte[] header = new byte[WAV_HEADER_SIZE];
+
+    putASCII (header, 0, "RIFF");
+    putInt (header, 4, dataSize + WAV_HEADER_SIZE - 8);
+    putASCII (header, 8, "WAVE");
+    putASCII (header, 12, "fmt ");
+    putInt (header, 16, 16);
+    putShort (header, 20, 1);
+    putShort (header, 22, channels);
+    putInt (header, 24, sampleRate);
+    putInt (header, 28, sampleRate * frameSize);
+    putShort (header, 32, frameSize);
+    putShort (header, 34, format.getSampleSizeInBits ());
+    putASCII (header, 36, "data");
+    putInt (header, 40, dataSize);
+
+    return header;
+  }
+
+
+  /**
+   * Store an ASCII string in an array.
+   *
+   * @param b    The array.
+   * @param off  The offset of the first character.
+   * @param s    The string.
+   */
+
+  private static void
+  putASCII (byte[] b, int off, String s)
+  {
+    for (int i = 0; i < s.length (); i++)
+      b[off + i] = (byte) s.charAt (i);
+  }
+
+
+  /**
+   * Store a little-endian 32-bit integer in an array.
+   *
+   * @param b      The array.
+   * @param off    The offset of the low byte.
+   * @param value  The integer.
+   */
+
+  private static void
+  putInt (byte[] b, int off, int value)
+  {
+    putShort (b, off, value);
+    putShort (b, off + 2, value >>> 16);
+  }
+
+
+  /**
+   * Store a little-endian 16-bit integer in an array.
+   *
+   * @param b      The array.
+   * @param off    The offset of the low byte.
+   * @param value  The integer.
+   */
+
+  private static void
+  putShort (byte[] b, int off, int value)
+  {
+    b[off] = (byte) value;
+    b[off + 1] = (byte) (value >>> 8);
+  }
+}
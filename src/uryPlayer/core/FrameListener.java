@@ -0,0 +1,44 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+
+/**
+ * Receives each MP3 frame a StreamSource reads from the network, before it
+ * is decoded, such as to record the stream.
+ *
+ * Listeners are called on the source's network thread, so they must return
+ * quickly and never block; anything slow should be handed off to another
+ * thread.
+ */
+
+public interface FrameListener
+{
+  /**
+   * Receive a frame.  The frame's bytes are only valid until this returns.
+   *
+   * @param b       The array holding the frame.
+   * @param off     The offset of the frame's first byte.
+   * @param len     The length of the frame, in bytes.
+   * @param header  The frame's header.
+   */
+
+  public void
+  frameReceived (byte[] b, int off, int len, MpegFrameHeader header);
+}
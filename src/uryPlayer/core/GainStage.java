@@ -0,0 +1,185 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * A software volume control for 16-bit little-endian PCM.
+ *
+ * The gain is applied in place, so the stage never allocates.  When the
+ * volume changes, the gain moves to the new value a little at a time, one
+ * step per PCM frame over a short ramp, instead of jumping between chunks
+ * (which is heard as "zipper" noise).  Because it works on the audio
+ * itself, it behaves the same on every line, whatever controls the line
+ * supports.
+ */
+
+public class GainStage
+{
+  /**
+   * The length of the ramp from one volume to the next, in milliseconds.
+   */
+
+  public static final int RAMP_MILLIS = 20;
+
+
+  private volatile float target;
+
+  private int channels;
+  private int rampFrames;
+  private float gain;
+  private float rampTarget;
+  private float step;
+  private int rampFramesLeft;
+
+
+  /**
+   * Create a new gain stage.
+   *
+   * @param format       The format of the audio to be processed.
+   * @param initialGain  The gain to start at, as a linear factor from 0 to 1.
+   */
+
+  public
+  GainStage (AudioFormat format, float initialGain)
+  {
+    setTarget (initialGain);
+    gain = target;
+    rampTarget = target;
+    step = 0;
+    rampFramesLeft = 0;
+
+    setFormat (format);
+  }
+
+
+  /**
+   * Change the format of the audio to be processed, keeping the current
+   * gain.
+   *
+   * @param format  The new format.
+   */
+
+  public void
+  setFormat (AudioFormat format)
+  {
+    channels = format.getChannels ();
+    rampFrames = Math.max (1, (int) (format.getFrameRate () * RAMP_MILLIS / 1000));
+  }
+
+
+  /**
+   * Set the gain to ramp to.  This may be called from any thread.
+   *
+   * @param newTarget  The new gain, as a linear factor from 0 to 1.
+   */
+
+  public void
+  setTarget (float newTarget)
+  {
+    target = Math.max (0, Math.min (1, newTarget));
+  }
+
+
+  /**
+   * @return  the gain currently being ramped to.
+   */
+
+  public float
+  getTarget ()
+  {
+    return target;
+  }
+
+
+  /**
+   * Apply the gain to a run of audio, in place.
+   *
+   * @param b    The array holding the audio.
+   * @param off  The offset of the first byte of audio.
+   * @param len  The number of bytes of audio (a whole number of frames).
+   */
+
+  public void
+  process (byte[] b, int off, int len)
+  {
+    float newTarget = target;
+
+    if (newTarget != rampTarget)
+      {
+        rampTarget = newTarget;
+        rampFramesLeft = rampFrames;
+        step = (rampTarget - gain) / rampFrames;
+      }
+
+    int end = off + len;
+    int i = off;
+
+    // Ramp, if a ramp is in progress.
+
+    while (rampFramesLeft > 0 && i < end)
+      {
+        gain += step;
+        rampFramesLeft--;
+
+        if (rampFramesLeft == 0)
+          gain = rampTarget;
+
+        for (int c = 0; c < channels && i < end; c++, i += 2)
+          scaleSample (b, i, gain);
+      }
+
+    // Then hold the gain steady for the rest of the run.
+
+    if (i >= end || gain == 1)
+      return;
+
+    if (gain == 0)
+      {
+        Arrays.fill (b, i, end, (byte) 0);
+        return;
+      }
+
+    for (; i < end; i += 2)
+      scaleSample (b, i, gain);
+  }
+
+
+  /**
+   * Scale a single sample, in place.
+   *
+   * @param b       The array holding the sample.
+   * @param i       The offset of the sample's low byte.
+   * @param factor  The gain to apply.
+   */
+
+  private static void
+  scaleSample (byte[] b, int i, float factor)
+  {
+    int sample = (short) ((b[i] & 0xFF) | (b[i + 1] << 8));
+    int scaled = (int) (sample * factor);
+
+    b[i] = (byte) scaled;
+    b[i + 1] = (byte) (scaled >> 8);
+  }
+}
@@ -0,0 +1,809 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * A connection to an HTTP (or Icecast/SHOUTcast) audio stream, built on a
+ * non-blocking SocketChannel.
+ *
+ * Every wait on the network - connecting, reading the response headers,
+ * reading the stream - is made on a Selector with a timeout, so a server
+ * that stops responding is noticed instead of hanging the player.  Closing
+ * the connection from another thread wakes the Selector, so a stop request
+ * takes effect at once.
+ *
+ * A Selector cannot be used that way on a virtual thread, though: waiting
+ * in Selector.select holds on to the OS thread carrying it, so hundreds of
+ * streams would need hundreds of OS threads after all.  On virtual threads
+ * the connection instead blocks in the channel's own I/O, which frees the
+ * carrier thread while waiting (see setBlocking); a shared watchdog thread
+ * then enforces the timeouts, by closing any channel kept waiting too long.
+ *
+ * The stream body is read into a direct ByteBuffer supplied by the caller,
+ * so one buffer can be reused across any number of reconnections, and is
+ * handed on to the decoder through an InputStream.
+ */
+
+public class HttpStreamConnection
+{
+  /**
+   * The recommended size of the read buffer, in bytes.
+   */
+
+  public static final int BUFFER_SIZE = 16 * 1024;
+
+
+  /**
+   * The maximum number of redirects followed.
+   */
+
+  public static final int MAX_REDIRECTS = 5;
+
+
+  /**
+   * The maximum size of the response headers, in bytes.
+   */
+
+  public static final int MAX_HEADER_SIZE = 8192;
+
+
+  /**
+   * The interval between the watchdog's checks for blocking connections
+   * that have timed out, in milliseconds.
+   */
+
+  public static final int WATCHDOG_INTERVAL_MILLIS = 250;
+
+
+  private final ByteBuffer buffer;
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final InputStream inputStream;
+
+  private volatile boolean closed;
+  private volatile SocketChannel channel;
+  private volatile Selector selector;
+  private volatile int readPauseMillis;
+  private boolean lastReadShort;
+  private volatile boolean blocking;
+  private volatile long deadline;
+  private volatile boolean timedOut;
+
+
+  /**
+   * Create a new, unconnected stream connection.
+   *
+   * @param buffer          The direct buffer to read the stream into.
+   * @param connectTimeout  The time allowed for connecting, in milliseconds.
+   * @param readTimeout     The time the server may go without sending
+   *                        anything, in milliseconds.
+   */
+
+  public
+  HttpStreamConnection (ByteBuffer buffer, int connectTimeout, int readTimeout)
+  {
+    this.buffer = buffer;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+
+    closed = false;
+    channel = null;
+    selector = null;
+    readPauseMillis = 0;
+    lastReadShort = false;
+    blocking = false;
+    deadline = 0;
+    timedOut = false;
+
+    inputStream = new InputStream ()
+    {
+      @Override
+      public int
+      read () throws IOException
+      {
+        if (fillBody () == false)
+          return -1;
+
+        return HttpStreamConnection.this.buffer.get () & 0xFF;
+      }
+
+      @Override
+      public int
+      read (byte[] b, int off, int len) throws IOException
+      {
+        if (len == 0)
+          return 0;
+
+        if (fillBody () == false)
+          return -1;
+
+        int count = Math.min (len, HttpStreamConnection.this.buffer.remaining ());
+        HttpStreamConnection.this.buffer.get (b, off, count);
+        return count;
+      }
+
+      @Override
+      public int
+      available ()
+      {
+        return HttpStreamConnection.this.buffer.remaining ();
+      }
+
+      @Override
+      public void
+      close ()
+      {
+        HttpStreamConnection.this.close ();
+      }
+    };
+  }
+
+
+  /**
+   * Connect to a stream and read the response headers, following any
+   * redirects.
+   *
+   * @param streamURL  The URL of the stream.
+   *
+   * @throws IOException  if the connection fails, times out or is closed,
+   *                      or the server does not return the stream.
+   */
+
+  public void
+  connect (String streamURL) throws IOException
+  {
+    URL url = new URL (streamURL);
+
+    for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++)
+      {
+        if ("http".equals (url.getProtocol ()) == false)
+          throw new MalformedURLException ("Only HTTP streams are supported: " + url);
+
+        open (url);
+        sendRequest (url);
+
+        String location = readResponse ();
+
+        if (location == null)
+          return;
+
+        closeChannel ();
+        url = new URL (url, location);
+      }
+
+    throw new IOException ("Too many redirects: " + streamURL);
+  }
+
+
+  /**
+   * Choose how to wait on the network.  By default, the connection waits
+   * on a Selector.  Blocking instead waits in the channel's own blocking
+   * I/O, which parks a virtual thread rather than holding on to its
+   * carrier thread, with the timeouts enforced by the watchdog thread
+   * shared by all blocking connections.  This must be called before
+   * connect.
+   *
+   * @param blocking  true to block in the channel's own I/O, as should be
+   *                  done on virtual threads.
+   */
+
+  public void
+  setBlocking (boolean blocking)
+  {
+    this.blocking = blocking;
+  }
+
+
+  /**
+   * Pause before reading more of the stream body, whenever the last read
+   * emptied the socket, so that the stream arrives in a few large reads
+   * rather than one small read per packet.  The pause is skipped while
+   * the stream is arriving faster than the buffer is read, so reading
+   * never falls behind.  This saves power (by waking the reading thread
+   * less often) at the cost of the audio arriving up to the pause late.
+   *
+   * @param millis  The pause, in milliseconds, or 0 for none; it should
+   *                be well within the read timeout.
+   */
+
+  public void
+  setReadPauseMillis (int millis)
+  {
+    readPauseMillis = Math.max (0, millis);
+  }
+
+
+  /**
+   * @return  the stream body, as an InputStream.  Closing it closes the
+   *          connection.
+   */
+
+  public InputStream
+  getInputStream ()
+  {
+    return inputStream;
+  }
+
+
+  /**
+   * Close the connection.  This may be called from any thread, and wakes
+   * any thread waiting on the connection.
+   */
+
+  public void
+  close ()
+  {
+    closed = true;
+    closeChannel ();
+  }
+
+
+  /**
+   * Open a socket to the server named in a URL.
+   *
+   * @param url  The URL.
+   *
+   * @throws IOException  if the connection fails, times out or is closed.
+   */
+
+  private void
+  open (URL url) throws IOException
+  {
+    int port = (url.getPort () == -1 ? url.getDefaultPort () : url.getPort ());
+    InetSocketAddress address = new InetSocketAddress (url.getHost (), port);
+
+    if (address.isUnresolved ())
+      throw new IOException ("Unknown host: " + url.getHost ());
+
+    channel = SocketChannel.open ();
+
+    if (blocking)
+      Watchdog.watch (this);
+    else
+      {
+        selector = Selector.open ();
+        channel.configureBlocking (false);
+      }
+
+    // The connection may have been closed while the channel was opening.
+
+    if (closed)
+      closeChannel ();
+
+    checkOpen ();
+
+    if (blocking)
+      {
+        startDeadline (connectTimeout);
+
+        try
+          {
+            channel.connect (address);
+          }
+        catch (IOException e)
+          {
+            throw timedOutOr (e, connectTimeout);
+          }
+        finally
+          {
+            clearDeadline ();
+          }
+      }
+    else if (channel.connect (address) == false)
+      {
+        await (SelectionKey.OP_CONNECT, connectTimeout);
+        channel.finishConnect ();
+      }
+
+    buffer.clear ();
+    buffer.flip ();
+  }
+
+
+  /**
+   * Send the request for the stream.
+   *
+   * @param url  The URL of the stream.
+   *
+   * @throws IOException  if the connection fails, times out or is closed.
+   */
+
+  private void
+  sendRequest (URL url) throws IOException
+  {
+    String path = url.getFile ();
+
+    if (path.length () == 0)
+      path = "/";
+
+    String request = "GET " + path + " HTTP/1.0\r\n"
+                     + "Host: " + url.getHost () + "\r\n"
+                     + "User-Agent: URY Player for Java\r\n"
+                     + "Accept: */*\r\n"
+                     + "\r\n";
+
+    ByteBuffer out = ByteBuffer.wrap (request.getBytes ("US-ASCII"));
+
+    startDeadline (readTimeout);
+
+    try
+      {
+        while (out.hasRemaining ())
+          {
+            if (channel.write (out) == 0)
+              await (SelectionKey.OP_WRITE, readTimeout);
+          }
+      }
+    catch (IOException e)
+      {
+        throw timedOutOr (e, readTimeout);
+      }
+    finally
+      {
+        clearDeadline ();
+      }
+  }
+
+
+  /**
+   * Read the response headers, leaving any of the body that arrived with
+   * them in the buffer.
+   *
+   * @return  the location to redirect to, or null if the response is the
+   *          stream itself.
+   *
+   * @throws IOException  if the connection fails, times out or is closed,
+   *                      or the response is an error.
+   */
+
+  private String
+  readResponse () throws IOException
+  {
+    StringBuilder headers = new StringBuilder ();
+
+    // Read byte by byte out of the buffer until the blank line ending the
+    // headers, so that the body is left where it is.
+
+    while (headers.length () < 4
+           || headers.substring (headers.length () - 4).equals ("\r\n\r\n") == false)
+      {
+        if (headers.length () > MAX_HEADER_SIZE)
+          throw new IOException ("Response headers too long");
+
+        if (fill () == false)
+          throw new IOException ("Connection closed during response headers");
+
+        headers.append ((char) (buffer.get () & 0xFF));
+      }
+
+    String[] lines = headers.toString ().split ("\r\n");
+    String[] status = lines[0].split (" ");
+    int code;
+
+    try
+      {
+        code = Integer.parseInt (status[1]);
+      }
+    catch (RuntimeException e)
+      {
+        throw new IOException ("Bad status line: " + lines[0]);
+      }
+
+    if (code == 200)
+      return null;
+
+    if (code >= 300 && code < 400)
+      {
+        for (int i = 1; i < lines.length; i++)
+          {
+            if (lines[i].toLowerCase ().startsWith ("location:"))
+              return lines[i].substring ("location:".length ()).trim ();
+          }
+      }
+
+    throw new IOException ("Server returned " + lines[0]);
+  }
+
+
+  /**
+   * Make sure there are unread bytes of the stream body in the buffer,
+   * first pausing (see setReadPauseMillis) if there are none.
+   *
+   * @return  true if there are bytes to read; false at the end of the
+   *          stream.
+   *
+   * @throws IOException  if the connection fails, times out or is closed,
+   *                      or the reading thread is interrupted.
+   */
+
+  private boolean
+  fillBody () throws IOException
+  {
+    int pause = readPauseMillis;
+
+    if (pause > 0 && lastReadShort && buffer.hasRemaining () == false)
+      {
+        try
+          {
+            Thread.sleep (pause);
+          }
+        catch (InterruptedException e)
+          {
+            Thread.currentThread ().interrupt ();
+            throw new IOException ("Interrupted");
+          }
+      }
+
+    return fill ();
+  }
+
+
+  /**
+   * Make sure there are unread bytes in the buffer, waiting for more to
+   * arrive if there are none.
+   *
+   * @return  true if there are bytes to read; false at the end of the
+   *          stream.
+   *
+   * @throws IOException  if the connection fails, times out or is closed.
+   */
+
+  private boolean
+  fill () throws IOException
+  {
+    if (buffer.hasRemaining ())
+      return true;
+
+    checkOpen ();
+    buffer.clear ();
+
+    startDeadline (readTimeout);
+
+    try
+      {
+        // A blocking read never returns 0, as the buffer has room.
+
+        int nBytesRead = channel.read (buffer);
+
+        while (nBytesRead == 0)
+          {
+            await (SelectionKey.OP_READ, readTimeout);
+            nBytesRead = channel.read (buffer);
+          }
+
+        lastReadShort = buffer.hasRemaining ();
+        return (nBytesRead != -1);
+      }
+    catch (IOException e)
+      {
+        throw timedOutOr (e, readTimeout);
+      }
+    finally
+      {
+        clearDeadline ();
+        buffer.flip ();
+      }
+  }
+
+
+  /**
+   * Wait for the channel to become ready for an operation.
+   *
+   * @param operation  The SelectionKey operation to wait for.
+   * @param timeout    The time to wait, in milliseconds.
+   *
+   * @throws IOException  if the wait times out or the connection is closed.
+   */
+
+  private void
+  await (int operation, int timeout) throws IOException
+  {
+    try
+      {
+        awaitReady (operation, timeout);
+      }
+    catch (ClosedSelectorException e)
+      {
+        // This is normal (it occurs when close is called from another
+        // thread between checking the connection and using the selector).
+
+        throw new IOException ("Connection closed", e);
+      }
+    catch (CancelledKeyException e)
+      {
+        // Likewise, but the channel was closed instead.
+
+        throw new IOException ("Connection closed", e);
+      }
+  }
+
+
+  /**
+   * Wait for the channel to become ready for an operation, letting the
+   * unchecked exceptions thrown by a selector or key closed from another
+   * thread through to await.
+   *
+   * @param operation  The SelectionKey operation to wait for.
+   * @param timeout    The time to wait, in milliseconds.
+   *
+   * @throws IOException  if the wait times out or the connection is closed.
+   */
+
+  private void
+  awaitReady (int operation, int timeout) throws IOException
+  {
+    checkOpen ();
+
+    SelectionKey key = channel.register (selector, operation);
+
+    try
+      {
+        long deadline = System.currentTimeMillis () + timeout;
+
+        while (true)
+          {
+            long remaining = deadline - System.currentTimeMillis ();
+
+            if (remaining <= 0)
+              throw new SocketTimeoutException ("Timed out after " + timeout + "ms");
+
+            selector.select (remaining);
+            checkOpen ();
+
+            if (Thread.currentThread ().isInterrupted ())
+              throw new IOException ("Interrupted");
+
+            if (selector.selectedKeys ().remove (key))
+              return;
+          }
+      }
+    finally
+      {
+        try
+          {
+            if (key.isValid ())
+              key.interestOps (0);
+          }
+        catch (CancelledKeyException e)
+          {
+            // The connection was closed meanwhile, so the key is no longer
+            // needed; this must not hide whatever ended the wait.
+          }
+      }
+  }
+
+
+  /**
+   * Start the clock on a blocking operation, so that the watchdog closes
+   * the channel if it takes too long.  This does nothing unless the
+   * connection is blocking.
+   *
+   * @param timeout  The time allowed, in milliseconds.
+   */
+
+  private void
+  startDeadline (int timeout)
+  {
+    if (blocking)
+      deadline = System.currentTimeMillis () + timeout;
+  }
+
+
+  /**
+   * Stop the clock on a blocking operation, once it has finished.
+   */
+
+  private void
+  clearDeadline ()
+  {
+    deadline = 0;
+  }
+
+
+  /**
+   * Close the channel if a blocking operation has gone past its deadline.
+   * This is called by the watchdog.
+   *
+   * @param now  The current time, in milliseconds.
+   */
+
+  private void
+  checkDeadline (long now)
+  {
+    long current = deadline;
+
+    if (current != 0 && now >= current)
+      {
+        timedOut = true;
+        closeChannel ();
+      }
+  }
+
+
+  /**
+   * @param e        The exception that ended a blocking operation.
+   * @param timeout  The time the operation was allowed, in milliseconds.
+   *
+   * @return  a timeout exception, if the watchdog ended the operation by
+   *          closing the channel; otherwise, the exception itself.
+   */
+
+  private IOException
+  timedOutOr (IOException e, int timeout)
+  {
+    if (timedOut)
+      return new SocketTimeoutException ("Timed out after " + timeout + "ms");
+    else
+      return e;
+  }
+
+
+  /**
+   * @throws IOException  if the connection has been closed.
+   */
+
+  private void
+  checkOpen () throws IOException
+  {
+    if (closed || channel == null || channel.isOpen () == false)
+      throw new IOException ("Connection closed");
+  }
+
+
+  /**
+   * Close the socket and its selector, waking anything waiting on them.
+   */
+
+  private void
+  closeChannel ()
+  {
+    Selector oldSelector = selector;
+    SocketChannel oldChannel = channel;
+
+    Watchdog.unwatch (this);
+
+    try
+      {
+        if (oldSelector != null)
+          oldSelector.close ();
+      }
+    catch (IOException e)
+      {
+        // Nothing more can be done with the selector at this point.
+      }
+
+    try
+      {
+        if (oldChannel != null)
+          oldChannel.close ();
+      }
+    catch (IOException e)
+      {
+        // Nothing more can be done with the channel at this point.
+      }
+  }
+
+
+  /**
+   * Closes the channels of blocking connections that have gone past their
+   * deadlines, on one thread shared by all of them, which runs only while
+   * there are blocking connections to watch.
+   */
+
+  private static class Watchdog implements Runnable
+  {
+    private static final Set<HttpStreamConnection> connections =
+      Collections.newSetFromMap (new ConcurrentHashMap<HttpStreamConnection, Boolean> ());
+
+    private static Thread thread = null;
+
+
+    /**
+     * Start watching a connection, starting the watchdog thread if need
+     * be.
+     *
+     * @param connection  The connection.
+     */
+
+    private static synchronized void
+    watch (HttpStreamConnection connection)
+    {
+      connections.add (connection);
+
+      if (thread == null)
+        {
+          thread = Workers.getDefault ().newThread (new Watchdog (), "HttpStreamConnection watchdog");
+          thread.setDaemon (true);
+          thread.start ();
+        }
+    }
+
+
+    /**
+     * Stop watching a connection.
+     *
+     * @param connection  The connection.
+     */
+
+    private static void
+    unwatch (HttpStreamConnection connection)
+    {
+      connections.remove (connection);
+    }
+
+
+    /**
+     * Check the connections every WATCHDOG_INTERVAL_MILLIS, until there
+     * are none left to watch.
+     */
+
+    @Override
+    public void
+    run ()
+    {
+      try
+        {
+          while (true)
+            {
+              Thread.sleep (WATCHDOG_INTERVAL_MILLIS);
+
+              synchronized (Watchdog.class)
+                {
+                  if (connections.isEmpty ())
+                    {
+                      thread = null;
+                      return;
+                    }
+                }
+
+              long now = System.currentTimeMillis ();
+
+              for (HttpStreamConnection connection : connections)
+                connection.checkDeadline (now);
+            }
+        }
+      catch (InterruptedException e)
+        {
+          // Let another watchdog be started when next needed.
+
+          synchronized (Watchdog.class)
+            {
+              thread = null;
+            }
+        }
+    }
+  }
+}
@@ -0,0 +1,511 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * An adaptive jitter buffer sitting between the decoded PCM buffer and the
+ * sound card.
+ *
+ * The jitter buffer holds back playback until a target amount of audio has
+ * been buffered.  Each time the buffer runs dry the target is raised, trading
+ * latency for continuity; once the stream has been stable for a while the
+ * target is lowered again, a step at a time, and any excess audio is drained
+ * back off by playing it very slightly fast (see getDrainRatio).
+ */
+
+public class JitterBuffer
+{
+  /**
+   * The initial target fill level, in milliseconds.
+   */
+
+  public static final int DEFAULT_TARGET_MILLIS = 500;
+
+
+  /**
+   * The lowest the target fill level will shrink to, in milliseconds.
+   */
+
+  public static final int MIN_TARGET_MILLIS = 250;
+
+
+  /**
+   * The highest the target fill level will grow to, in milliseconds.
+   */
+
+  public static final int MAX_TARGET_MILLIS = 4000;
+
+
+  /**
+   * How long the stream has to go without an underrun before the target is
+   * lowered a step, in milliseconds.
+   */
+
+  public static final int STABLE_PERIOD_MILLIS = 30000;
+
+
+  /**
+   * How far the target is lowered after each stable period, in milliseconds.
+   */
+
+  public static final int SHRINK_STEP_MILLIS = 50;
+
+
+  /**
+   * How far the fill level may exceed the target before audio is trimmed,
+   * in milliseconds.
+   */
+
+  public static final int TRIM_THRESHOLD_MILLIS = 250;
+
+
+  /**
+   * How much faster than real time excess audio is played to drain it
+   * (0.5%, or 5 milliseconds a second), which is far too little a change of
+   * pitch or tempo to be heard.
+   */
+
+  public static final double DRAIN_SPEEDUP = 0.005;
+
+
+  /**
+   * The longest a read waits for the buffer to refill before returning 
+   * nothing, so that the reader can keep an eye on other things (such as 
+   * whether to fail over to another stream), in milliseconds.
+   */
+
+  public static final int POLL_MILLIS = 100;
+
+
+  private ByteRingBuffer buffer;
+  private int frameSize;
+  private double bytesPerMilli;
+
+  private volatile int targetMillis;
+  private volatile int minTargetMillis;
+  private volatile int trimThresholdMillis;
+  private volatile boolean catchingUp;
+  private volatile boolean trimming;
+  private volatile boolean draining;
+  private volatile int startMillis;
+  private volatile boolean buffering;
+  private volatile long underruns;
+  private volatile long trimmedBytes;
+  private volatile double drainedBytes;
+  private volatile int lowWaterBytes;
+
+  private long lastUnderrunTime;
+  private long lastShrinkTime;
+  private final PlayerEvents events;
+
+
+  /**
+   * Create a new jitter buffer.
+   *
+   * @param buffer  The buffer holding the decoded PCM.
+   * @param format  The format of the decoded PCM.
+   */
+
+  public
+  JitterBuffer (ByteRingBuffer buffer, AudioFormat format)
+  {
+    setBuffer (buffer, format);
+
+    targetMillis = DEFAULT_TARGET_MILLIS;
+    minTargetMillis = MIN_TARGET_MILLIS;
+    trimThresholdMillis = TRIM_THRESHOLD_MILLIS;
+    catchingUp = false;
+    trimming = true;
+    draining = false;
+    startMillis = -1;
+    buffering = true;
+    underruns = 0;
+    trimmedBytes = 0;
+    drainedBytes = 0;
+    lowWaterBytes = Integer.MAX_VALUE;
+    events = PlayerEvents.getDefault ();
+
+    long now = currentMillis ();
+    lastUnderrunTime = now;
+    lastShrinkTime = now;
+  }
+
+
+  /**
+   * Move the jitter buffer on to a different buffer of decoded audio, such
+   * as when switching streams, keeping its target and counters.
+   *
+   * @param buffer  The buffer holding the decoded PCM.
+   * @param format  The format of the decoded PCM.
+   */
+
+  public void
+  setBuffer (ByteRingBuffer buffer, AudioFormat format)
+  {
+    this.buffer = buffer;
+
+    frameSize = format.getFrameSize ();
+    bytesPerMilli = (format.getFrameRate () * frameSize) / 1000.0;
+  }
+
+
+  /**
+   * Start playback the first time with less audio buffered than the 
+   * target, so that the listener hears something sooner.  The buffer 
+   * carries on filling towards the target while playing.
+   *
+   * @param millis  The amount of audio to buffer before first starting 
+   *                playback, in milliseconds.
+   */
+
+  public void
+  setStartMillis (int millis)
+  {
+    startMillis = millis;
+  }
+
+
+  /**
+   * Change the target fill level, and the lowest it shrinks back to after 
+   * growing, from DEFAULT_TARGET_MILLIS and MIN_TARGET_MILLIS.  Audio is 
+   * trimmed once the fill level is TRIM_THRESHOLD_MILLIS or the lowest 
+   * target (whichever is less) above the target, so that a small buffer 
+   * is kept as small.
+   *
+   * @param target     The target, in milliseconds.
+   * @param minTarget  The lowest target, in milliseconds.
+   */
+
+  public void
+  setTargetMillis (int target, int minTarget)
+  {
+    minTargetMillis = Math.min (minTarget, target);
+    targetMillis = Math.min (MAX_TARGET_MILLIS, target);
+    trimThresholdMillis = Math.min (TRIM_THRESHOLD_MILLIS, minTargetMillis);
+  }
+
+
+  /**
+   * Choose between draining excess audio by playing it slightly fast, 
+   * which is not heard, and dropping it all at once, which keeps the 
+   * latency down at the cost of a skip in the audio.
+   *
+   * @param catchingUp  true to drop excess audio at once.
+   */
+
+  public void
+  setCatchingUp (boolean catchingUp)
+  {
+    this.catchingUp = catchingUp;
+  }
+
+
+  /**
+   * Turn trimming of excess audio on or off.  Time-shifted playback should 
+   * not be trimmed, as the decoder can then fill the buffer as far as it 
+   * likes without adding to the latency.
+   *
+   * @param trimming  true to trim excess audio.
+   */
+
+  public void
+  setTrimming (boolean trimming)
+  {
+    this.trimming = trimming;
+
+    if (trimming == false)
+      draining = false;
+  }
+
+
+  /**
+   * Hold back playback until the buffer fills to its target again, without 
+   * counting an underrun, such as after the buffered audio has been thrown 
+   * away for a seek.
+   */
+
+  public void
+  rebuffer ()
+  {
+    buffering = true;
+  }
+
+
+  /**
+   * Read decoded audio for playback.
+   *
+   * If the buffer is (re)filling, this blocks until the target fill level
+   * is reached, for up to POLL_MILLIS at a time.  If the buffer has run 
+   * dry, this counts an underrun, raises the target and starts refilling.
+   *
+   * @param b    The array to read the audio into.
+   * @param off  The offset at which to store the first byte.
+   * @param len  The maximum number of bytes to read.
+   *
+   * @return  the number of bytes read, 0 if the buffer is still 
+   *          refilling, or -1 at the end of the stream.
+   *
+   * @throws InterruptedException  if the reading thread is interrupted.
+   */
+
+  public int
+  read (byte[] b, int off, int len) throws InterruptedException
+  {
+    if (buffering)
+      {
+        int wanted = Math.min (millisToBytes (startMillis >= 0 ? startMillis : targetMillis), 
+                               buffer.capacity ());
+
+        if (buffer.awaitAvailable (wanted, POLL_MILLIS) < wanted
+            && buffer.isClosed () == false)
+          return 0;
+
+        buffering = false;
+        startMillis = -1;
+      }
+    else if (buffer.available () == 0 && buffer.isClosed () == false)
+      {
+        underrun ();
+        return read (b, off, len);
+      }
+
+    int fill = buffer.available ();
+
+    if (fill < lowWaterBytes)
+      lowWaterBytes = fill;
+
+    adjustTarget (fill);
+
+    int nBytesRead = buffer.read (b, off, len);
+
+    if (draining && nBytesRead > 0)
+      drainedBytes += nBytesRead * (DRAIN_SPEEDUP / (1 + DRAIN_SPEEDUP));
+
+    return nBytesRead;
+  }
+
+
+  /**
+   * @return  the number of times the buffer has run dry.
+   */
+
+  public long
+  getUnderruns ()
+  {
+    return underruns;
+  }
+
+
+  /**
+   * @return  the current fill level, in milliseconds.
+   */
+
+  public int
+  getFillMillis ()
+  {
+    return bytesToMillis (buffer.available ());
+  }
+
+
+  /**
+   * @return  the lowest fill level seen since the last call to this method,
+   *          in milliseconds.
+   */
+
+  public int
+  getLowWaterMillis ()
+  {
+    int low = lowWaterBytes;
+    lowWaterBytes = Integer.MAX_VALUE;
+
+    if (low == Integer.MAX_VALUE)
+      return getFillMillis ();
+    else
+      return bytesToMillis (low);
+  }
+
+
+  /**
+   * @return  the current target fill level, in milliseconds.
+   */
+
+  public int
+  getTargetMillis ()
+  {
+    return targetMillis;
+  }
+
+
+  /**
+   * @return  the amount of audio trimmed to bring the fill level back down
+   *          to its target, whether dropped or drained, in milliseconds.
+   */
+
+  public long
+  getTrimmedMillis ()
+  {
+    return (long) ((trimmedBytes + drainedBytes) / bytesPerMilli);
+  }
+
+
+  /**
+   * The reader should play the audio it reads at this ratio of input 
+   * frames to output frames (such as through a Resampler), so that excess 
+   * audio is drained rather than cut out, which would be heard as a click.
+   * Draining starts once the fill level is well beyond the target, and 
+   * carries on until it is back down to the target.
+   *
+   * @return  1 + DRAIN_SPEEDUP while excess audio is being drained; 
+   *          otherwise 1.
+   */
+
+  public double
+  getDrainRatio ()
+  {
+    return (draining ? 1 + DRAIN_SPEEDUP : 1);
+  }
+
+
+  /**
+   * @return  true if excess audio is being drained.
+   */
+
+  public boolean
+  isDraining ()
+  {
+    return draining;
+  }
+
+
+  /**
+   * @return  true if playback is being held back while the buffer fills.
+   */
+
+  public boolean
+  isBuffering ()
+  {
+    return buffering;
+  }
+
+
+  /**
+   * Handle the buffer running dry.
+   */
+
+  private void
+  underrun ()
+  {
+    underruns++;
+
+    targetMillis = Math.min (MAX_TARGET_MILLIS, targetMillis + (targetMillis / 2));
+    buffering = true;
+    draining = false;
+
+    long now = currentMillis ();
+    lastUnderrunTime = now;
+    lastShrinkTime = now;
+
+    events.underrun (underruns, targetMillis);
+  }
+
+
+  /**
+   * Lower the target once the stream has been stable for long enough, and
+   * drain (or, if catching up, drop) any audio buffered well beyond the
+   * target.
+   *
+   * @param fill  The current fill level, in bytes.
+   */
+
+  private void
+  adjustTarget (int fill)
+  {
+    long now = currentMillis ();
+
+    if (now - lastUnderrunTime >= STABLE_PERIOD_MILLIS
+        && now - lastShrinkTime >= STABLE_PERIOD_MILLIS)
+      {
+        targetMillis = Math.max (minTargetMillis, targetMillis - SHRINK_STEP_MILLIS);
+        lastShrinkTime = now;
+      }
+
+    if (trimming == false)
+      return;
+
+    int excess = fill - millisToBytes (targetMillis + trimThresholdMillis);
+
+    if (excess > 0 && catchingUp)
+      {
+        // Drop back to the target itself.
+
+        int drop = excess + millisToBytes (trimThresholdMillis);
+        trimmedBytes += buffer.skip (drop - (drop % frameSize));
+        draining = false;
+      }
+    else if (excess > 0)
+      draining = true;
+    else if (fill <= millisToBytes (targetMillis))
+      draining = false;
+  }
+
+
+  /**
+   * Convert a duration to a whole number of frames' worth of bytes.
+   *
+   * @param millis  The duration, in milliseconds.
+   *
+   * @return  the number of bytes of audio in that duration.
+   */
+
+  private int
+  millisToBytes (int millis)
+  {
+    int bytes = (int) (millis * bytesPerMilli);
+    return bytes - (bytes % frameSize);
+  }
+
+
+  /**
+   * Convert a number of bytes of audio to a duration.
+   *
+   * @param bytes  The number of bytes.
+   *
+   * @return  the duration of that much audio, in milliseconds.
+   */
+
+  private int
+  bytesToMillis (int bytes)
+  {
+    return (int) (bytes / bytesPerMilli);
+  }
+
+
+  /**
+   * @return  a monotonic timestamp, in milliseconds.
+   */
+
+  private static long
+  currentMillis ()
+  {
+    return System.nanoTime () / 1000000L;
+  }
+}
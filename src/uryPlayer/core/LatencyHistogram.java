@@ -0,0 +1,260 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A fixed-size histogram of latencies, from a microsecond up to hours.
+ *
+ * Latencies are counted in log-linear buckets: each power of two is split
+ * into SUB_BUCKETS equal buckets, so every latency is placed to within
+ * about 6% whatever its size, in a few kilobytes that never grow.
+ * Recording is a couple of shifts and an atomic add, allocates nothing and
+ * takes no lock, so it can be done from the audio threads; percentiles are
+ * worked out only when asked for.
+ */
+
+public class LatencyHistogram
+{
+  /**
+   * The number of buckets each power of two is split into.
+   */
+
+  public static final int SUB_BUCKETS = 16;
+
+
+  /**
+   * The power of two of SUB_BUCKETS.
+   */
+
+  private static final int SUB_BUCKET_BITS = 4;
+
+
+  /**
+   * The highest power of two of latency kept apart, in microseconds (about
+   * 18 hours); anything longer is counted in the last bucket.
+   */
+
+  private static final int MAX_MAGNITUDE = 36;
+
+
+  /**
+   * The number of buckets: latencies below twice SUB_BUCKETS microseconds
+   * get one each, and each power of two above that gets SUB_BUCKETS.
+   */
+
+  private static final int BUCKETS = 2 * SUB_BUCKETS 
+                                     + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+
+  private final String name;
+  private final AtomicLongArray counts;
+  private final AtomicLong max;
+
+
+  /**
+   * Create a new, empty histogram.
+   *
+   * @param name  The name of the histogram, as printed in its summary.
+   */
+
+  public
+  LatencyHistogram (String name)
+  {
+    this.name = name;
+
+    counts = new AtomicLongArray (BUCKETS);
+    max = new AtomicLong ();
+  }
+
+
+  /**
+   * @return  the name of the histogram.
+   */
+
+  public String
+  getName ()
+  {
+    return name;
+  }
+
+
+  /**
+   * Count a latency.
+   *
+   * @param nanos  The latency, in nanoseconds.  Negative latencies (from a
+   *               clock that has gone backwards) count as 0.
+   */
+
+  public void
+  record (long nanos)
+  {
+    long micros = Math.max (0, nanos / 1000L);
+
+    counts.incrementAndGet (bucketOf (micros));
+
+    long currentMax = max.get ();
+
+    while (micros > currentMax && max.compareAndSet (currentMax, micros) == false)
+      currentMax = max.get ();
+  }
+
+
+  /**
+   * @return  the number of latencies counted.
+   */
+
+  public long
+  getCount ()
+  {
+    long total = 0;
+
+    for (int i = 0; i < BUCKETS; i++)
+      total += counts.get (i);
+
+    return total;
+  }
+
+
+  /**
+   * @return  the longest latency counted, in microseconds.
+   */
+
+  public long
+  getMaxMicros ()
+  {
+    return max.get ();
+  }
+
+
+  /**
+   * Get a percentile of the latencies counted.
+   *
+   * @param percentile  The percentile, from 0 to 100.
+   *
+   * @return  the latency below which the given percentage of latencies 
+   *          fall, in microseconds (to within the width of a bucket), or 0
+   *          if none have been counted.
+   */
+
+  public long
+  getPercentileMicros (double percentile)
+  {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+
+    for (int i = 0; i < BUCKETS; i++)
+      {
+        snapshot[i] = counts.get (i);
+        total += snapshot[i];
+      }
+
+    if (total == 0)
+      return 0;
+
+    long wanted = Math.max (1, (long) Math.ceil (total * percentile / 100.0));
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++)
+      {
+        seen += snapshot[i];
+
+        if (seen >= wanted)
+          return Math.min (upperBoundOf (i), getMaxMicros ());
+      }
+
+    return getMaxMicros ();
+  }
+
+
+  /**
+   * Empty the histogram.  Latencies counted while this runs may or may 
+   * not be kept.
+   */
+
+  public void
+  reset ()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+      counts.set (i, 0);
+
+    max.set (0);
+  }
+
+
+  /**
+   * @return  a one-line summary of the histogram: the count, median, 99th
+   *          percentile and maximum.
+   */
+
+  @Override
+  public String
+  toString ()
+  {
+    return String.format ("%-24s n=%-8d p50=%8.2fms p99=%8.2fms max=%8.2fms",
+                          name,
+                          getCount (),
+                          getPercentileMicros (50) / 1000.0,
+                          getPercentileMicros (99) / 1000.0,
+                          getMaxMicros () / 1000.0);
+  }
+
+
+  /**
+   * @param micros  A latency, in microseconds.
+   *
+   * @return  the bucket the latency is counted in.
+   */
+
+  private static int
+  bucketOf (long micros)
+  {
+    if (micros < 2 * SUB_BUCKETS)
+      return (int) micros;
+
+    int magnitude = Math.min (63 - Long.numberOfLeadingZeros (micros), MAX_MAGNITUDE);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int sub = (int) Math.min ((micros >>> shift) - SUB_BUCKETS, SUB_BUCKETS - 1);
+
+    return 2 * SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+  }
+
+
+  /**
+   * @param bucket  A bucket.
+   *
+   * @return  the longest latency counted in the bucket, in microseconds.
+   */
+
+  private static long
+  upperBoundOf (int bucket)
+  {
+    if (bucket < 2 * SUB_BUCKETS)
+      return bucket;
+
+    int magnitude = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+    int sub = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS;
+    int shift = magnitude - SUB_BUCKET_BITS;
+
+    return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+
+/**
+ * Follows audio through the playback pipeline, from the network to the
+ * sink, and keeps histograms of how long it takes over each stretch.
+ *
+ * Every chunk of audio is timed at four points: when its MP3 frame was
+ * read off the socket, when it was decoded, when the volume was applied to
+ * it and when the write to the sink returned.  The stretches between them
+ * show where a glitch came from: a slow network or decoder shows up in
+ * the first, a buffer running low in the second, and a sound card that
+ * blocks in the third.
+ *
+ * Recording allocates nothing and takes no lock; the report is put
+ * together only when asked for.
+ */
+
+public class LatencyTracer
+{
+  private final LatencyHistogram decode;
+  private final LatencyHistogram queue;
+  private final LatencyHistogram write;
+  private final LatencyHistogram total;
+
+
+  /**
+   * Create a new tracer, with empty histograms.
+   */
+
+  public
+  LatencyTracer ()
+  {
+    decode = new LatencyHistogram ("socket read -> decoded");
+    queue = new LatencyHistogram ("decoded -> gain applied");
+    write = new LatencyHistogram ("gain -> write returned");
+    total = new LatencyHistogram ("socket read -> written");
+  }
+
+
+  /**
+   * Count a chunk of audio having been decoded.
+   *
+   * @param readTime     When its frame was read from the socket, in
+   *                     nanoseconds.
+   * @param decodedTime  When it was decoded, in nanoseconds.
+   */
+
+  public void
+  recordDecode (long readTime, long decodedTime)
+  {
+    decode.record (decodedTime - readTime);
+  }
+
+
+  /**
+   * Count a chunk of audio having been written to the sink.
+   *
+   * @param readTime     When its frame was read from the socket, in
+   *                     nanoseconds.
+   * @param decodedTime  When it was decoded, in nanoseconds.
+   * @param gainTime     When the volume had been applied, in nanoseconds.
+   * @param writtenTime  When the write to the sink returned, in
+   *                     nanoseconds.
+   */
+
+  public void
+  recordOutput (long readTime, long decodedTime, long gainTime, long writtenTime)
+  {
+    queue.record (gainTime - decodedTime);
+    write.record (writtenTime - gainTime);
+    total.record (writtenTime - readTime);
+  }
+
+
+  /**
+   * @return  the histograms, in pipeline order.
+   */
+
+  public LatencyHistogram[]
+  getHistograms ()
+  {
+    return new LatencyHistogram[] { decode, queue, write, total };
+  }
+
+
+  /**
+   * Empty every histogram.
+   */
+
+  public void
+  reset ()
+  {
+    for (LatencyHistogram histogram : getHistograms ())
+      histogram.reset ();
+  }
+
+
+  /**
+   * @return  a summary of every histogram, one per line.
+   */
+
+  public String
+  getReport ()
+  {
+    StringBuilder report = new StringBuilder ();
+
+    for (LatencyHistogram histogram : getHistograms ())
+      report.append (histogram).append ('\n');
+
+    return report.toString ();
+  }
+}
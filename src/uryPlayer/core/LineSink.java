@@ -0,0 +1,357 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+
+
+/**
+ * An AudioSink playing audio through a Java Sound line; that is, through
+ * the sound card, or a given one of several.
+ */
+
+public class LineSink implements AudioSink
+{
+  private final Mixer.Info mixerInfo;
+
+  private volatile SourceDataLine line;
+  private volatile int bufferMillis;
+  private volatile boolean batching;
+
+
+  /**
+   * Create a new line sink on the default sound card.  No line is taken 
+   * from the sound system until the sink is opened.
+   */
+
+  public
+  LineSink ()
+  {
+    this (null);
+  }
+
+
+  /**
+   * Create a new line sink on a given sound card.  No line is taken from 
+   * the sound system until the sink is opened.
+   *
+   * @param mixerInfo  The mixer of the sound card (see findMixer), or 
+   *                   null for the default.
+   */
+
+  public
+  LineSink (Mixer.Info mixerInfo)
+  {
+    this.mixerInfo = mixerInfo;
+
+    line = null;
+    bufferMillis = 0;
+    batching = false;
+  }
+
+
+  /**
+   * Set the size of line buffer to ask for.  This takes effect the next 
+   * time the sink is opened.  The sound system may not give a line 
+   * exactly the size asked for.
+   *
+   * @param millis  The size, in milliseconds, or 0 for the line's default.
+   */
+
+  public void
+  setBufferMillis (int millis)
+  {
+    bufferMillis = Math.max (0, millis);
+  }
+
+
+  /**
+   * Choose how a write waits for room in the line.  By default it is left
+   * to the sound system, which writes what fits and then polls, every
+   * millisecond or so, for room for the rest.  Batching instead sleeps, 
+   * in one go, until the line has played enough to take the whole write, 
+   * so that a large write costs a single wakeup.
+   *
+   * @param batching  true to sleep until the whole write fits.
+   */
+
+  public void
+  setBatching (boolean batching)
+  {
+    this.batching = batching;
+  }
+
+
+  /**
+   * @return  the size of the line's buffer, in milliseconds, or 0 if the 
+   *          line is not open.
+   */
+
+  public int
+  getBufferMillis ()
+  {
+    SourceDataLine current = line;
+
+    if (current == null)
+      return 0;
+    else
+      return bytesToMillis (current.getFormat (), current.getBufferSize ());
+  }
+
+
+  /**
+   * Get a data line from the sound system and open it.
+   *
+   * @param format  The desired audio format.
+   *
+   * @throws LineUnavailableException  if no line can be opened.
+   */
+
+  @Override
+  public void
+  open (AudioFormat format) throws LineUnavailableException
+  {
+    DataLine.Info info = new DataLine.Info (SourceDataLine.class, format);
+    SourceDataLine newLine;
+
+    if (mixerInfo != null)
+      newLine = (SourceDataLine) AudioSystem.getMixer (mixerInfo).getLine (info);
+    else
+      newLine = (SourceDataLine) AudioSystem.getLine (info);
+
+    int millis = bufferMillis;
+
+    if (millis > 0)
+      newLine.open (format, PlaybackProfile.millisToBytes (format, millis));
+    else
+      newLine.open (format);
+
+    line = newLine;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#getFormat()
+   */
+
+  @Override
+  public AudioFormat
+  getFormat ()
+  {
+    SourceDataLine current = line;
+
+    if (current != null)
+      return current.getFormat ();
+    else
+      return null;
+  }
+
+
+  /**
+   * Start the line.  This does nothing if the line is not open (such as 
+   * after it failed to open).
+   *
+   * @see uryPlayer.core.AudioSink#start()
+   */
+
+  @Override
+  public void
+  start ()
+  {
+    SourceDataLine current = line;
+
+    if (current != null)
+      current.start ();
+  }
+
+
+  /**
+   * Write audio to the line.  The audio is dropped if the line is not 
+   * open.
+   *
+   * @see uryPlayer.core.AudioSink#write(byte[], int, int)
+   */
+
+  @Override
+  public void
+  write (byte[] b, int off, int len)
+  {
+    SourceDataLine current = line;
+
+    if (current == null)
+      return;
+
+    if (batching && awaitRoom (current, len) == false)
+      return;
+
+    current.write (b, off, len);
+  }
+
+
+  /**
+   * Stop the line.  This does nothing if the line is not open, so that 
+   * stopping after a failed open does not hide the reason it failed.
+   *
+   * @see uryPlayer.core.AudioSink#stop()
+   */
+
+  @Override
+  public void
+  stop ()
+  {
+    SourceDataLine current = line;
+
+    if (current != null)
+      current.stop ();
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#close()
+   */
+
+  @Override
+  public void
+  close ()
+  {
+    SourceDataLine current = line;
+    line = null;
+
+    if (current != null)
+      current.close ();
+  }
+
+
+  /**
+   * @return  the amount of audio written to the line but not yet played, 
+   *          in milliseconds, or 0 if the line is not open.
+   */
+
+  public int
+  getFillMillis ()
+  {
+    SourceDataLine current = line;
+
+    if (current == null)
+      return 0;
+
+    return bytesToMillis (current.getFormat (), current.getBufferSize () - current.available ());
+  }
+
+
+  /**
+   * @return  the mixers of the sound system that can play audio.
+   */
+
+  public static List<Mixer.Info>
+  getMixers ()
+  {
+    List<Mixer.Info> mixers = new ArrayList<Mixer.Info> ();
+    Line.Info lineInfo = new Line.Info (SourceDataLine.class);
+
+    for (Mixer.Info info : AudioSystem.getMixerInfo ())
+      if (AudioSystem.getMixer (info).isLineSupported (lineInfo))
+        mixers.add (info);
+
+    return mixers;
+  }
+
+
+  /**
+   * Find a mixer that can play audio by name.
+   *
+   * @param name  The mixer's name, or any part of it, in any case.
+   *
+   * @return  the first such mixer, or null if there is none.
+   */
+
+  public static Mixer.Info
+  findMixer (String name)
+  {
+    String wanted = name.toLowerCase ();
+
+    for (Mixer.Info info : getMixers ())
+      if (info.getName ().toLowerCase ().contains (wanted))
+        return info;
+
+    return null;
+  }
+
+
+  /**
+   * Sleep until a line has room for a write, or until it never will (the
+   * write is larger than the line's buffer, or the line has stopped).
+   *
+   * @param current  The line.
+   * @param len      The size of the write, in bytes.
+   *
+   * @return  false if the thread was interrupted while sleeping, in which 
+   *          case the write should be dropped.
+   */
+
+  private static boolean
+  awaitRoom (SourceDataLine current, int len)
+  {
+    int needed = Math.min (len, current.getBufferSize ());
+    int room = current.available ();
+
+    while (room < needed && current.isRunning ())
+      {
+        try
+          {
+            Thread.sleep (Math.max (1, bytesToMillis (current.getFormat (), needed - room)));
+          }
+        catch (InterruptedException e)
+          {
+            // Drop the audio, keeping the interrupt for the player to 
+            // notice (it occurs when the player is stopped).
+
+            Thread.currentThread ().interrupt ();
+            return false;
+          }
+
+        room = current.available ();
+      }
+
+    return true;
+  }
+
+
+  /**
+   * @param format  The format of the audio.
+   * @param bytes   A number of bytes of audio.
+   *
+   * @return  the duration of that much audio, in milliseconds.
+   */
+
+  private static int
+  bytesToMillis (AudioFormat format, int bytes)
+  {
+    return (int) (bytes * 1000L / (long) (format.getFrameRate () * format.getFrameSize ()));
+  }
+}
@@ -0,0 +1,279 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+
+/**
+ * The fields of an MPEG audio frame header.
+ *
+ * A single MpegFrameHeader is meant to be reused for every frame of a
+ * stream, so parsing a header never allocates.
+ */
+
+public class MpegFrameHeader
+{
+  /**
+   * The length of a frame header, in bytes.
+   */
+
+  public static final int HEADER_SIZE = 4;
+
+
+  /**
+   * The version field value for MPEG-1.
+   */
+
+  public static final int MPEG1 = 3;
+
+
+  /**
+   * The version field value for MPEG-2.
+   */
+
+  public static final int MPEG2 = 2;
+
+
+  /**
+   * The version field value for MPEG-2.5.
+   */
+
+  public static final int MPEG25 = 0;
+
+
+  // Bitrates in kbps, indexed by [table][bitrate index].
+
+  private static final int[][] BITRATES =
+  {
+    { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 }, // V1 L1
+    { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },    // V1 L2
+    { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },     // V1 L3
+    { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },    // V2 L1
+    { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }          // V2 L2/L3
+  };
+
+  // Sample rates in Hz, indexed by [version field][sample rate index].
+
+  private static final int[][] SAMPLE_RATES =
+  {
+    { 11025, 12000, 8000 },   // MPEG-2.5
+    { 0, 0, 0 },              // Reserved
+    { 22050, 24000, 16000 },  // MPEG-2
+    { 44100, 48000, 32000 }   // MPEG-1
+  };
+
+
+  private int version;
+  private int layer;
+  private int bitrate;
+  private int sampleRate;
+  private int channels;
+  private int frameLength;
+  private int samplesPerFrame;
+
+
+  /**
+   * Create a new, empty frame header.
+   */
+
+  public
+  MpegFrameHeader ()
+  {
+    frameLength = 0;
+  }
+
+
+  /**
+   * Try to parse a frame header.
+   *
+   * Free-format and reserved values are rejected, as they cannot be used to
+   * find the start of the next frame.
+   *
+   * @param b    The array holding the candidate header.
+   * @param off  The offset of the first byte of the candidate header.
+   *
+   * @return  true if the bytes form a valid header, in which case this
+   *          object now describes it; false otherwise, in which case this
+   *          object is unchanged.
+   */
+
+  public boolean
+  parse (byte[] b, int off)
+  {
+    int b0 = b[off] & 0xFF;
+    int b1 = b[off + 1] & 0xFF;
+    int b2 = b[off + 2] & 0xFF;
+    int b3 = b[off + 3] & 0xFF;
+
+    if (b0 != 0xFF || (b1 & 0xE0) != 0xE0)
+      return false;
+
+    int versionField = (b1 >> 3) & 3;
+    int layerField = (b1 >> 1) & 3;
+    int bitrateIndex = (b2 >> 4) & 0xF;
+    int sampleRateIndex = (b2 >> 2) & 3;
+    int padding = (b2 >> 1) & 1;
+
+    if (versionField == 1 || layerField == 0
+        || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3)
+      return false;
+
+    int newLayer = 4 - layerField;
+    int table;
+
+    if (versionField == MPEG1)
+      table = newLayer - 1;
+    else if (newLayer == 1)
+      table = 3;
+    else
+      table = 4;
+
+    int newBitrate = BITRATES[table][bitrateIndex];
+    int newSampleRate = SAMPLE_RATES[versionField][sampleRateIndex];
+
+    version = versionField;
+    layer = newLayer;
+    bitrate = newBitrate;
+    sampleRate = newSampleRate;
+    channels = (((b3 >> 6) & 3) == 3 ? 1 : 2);
+
+    if (layer == 1)
+      {
+        samplesPerFrame = 384;
+        frameLength = ((12 * bitrate * 1000 / sampleRate) + padding) * 4;
+      }
+    else if (layer == 3 && version != MPEG1)
+      {
+        samplesPerFrame = 576;
+        frameLength = (72 * bitrate * 1000 / sampleRate) + padding;
+      }
+    else
+      {
+        samplesPerFrame = 1152;
+        frameLength = (144 * bitrate * 1000 / sampleRate) + padding;
+      }
+
+    return true;
+  }
+
+
+  /**
+   * Check whether another header could belong to the same stream as this
+   * one.
+   *
+   * @param other  The other header.
+   *
+   * @return  true if the two headers share a version, layer and sample rate.
+   */
+
+  public boolean
+  isCompatible (MpegFrameHeader other)
+  {
+    return (version == other.version
+            && layer == other.layer
+            && sampleRate == other.sampleRate);
+  }
+
+
+  /**
+   * @return  the MPEG version field (MPEG1, MPEG2 or MPEG25).
+   */
+
+  public int
+  getVersion ()
+  {
+    return version;
+  }
+
+
+  /**
+   * @return  the MPEG audio layer (1, 2 or 3).
+   */
+
+  public int
+  getLayer ()
+  {
+    return layer;
+  }
+
+
+  /**
+   * @return  the bitrate of the frame, in kilobits per second.
+   */
+
+  public int
+  getBitrate ()
+  {
+    return bitrate;
+  }
+
+
+  /**
+   * @return  the sample rate of the frame, in Hz.
+   */
+
+  public int
+  getSampleRate ()
+  {
+    return sampleRate;
+  }
+
+
+  /**
+   * @return  the number of channels in the frame.
+   */
+
+  public int
+  getChannels ()
+  {
+    return channels;
+  }
+
+
+  /**
+   * @return  the length of the whole frame, header included, in bytes.
+   */
+
+  public int
+  getFrameLength ()
+  {
+    return frameLength;
+  }
+
+
+  /**
+   * @return  the number of samples (per channel) the frame decodes to.
+   */
+
+  public int
+  getSamplesPerFrame ()
+  {
+    return samplesPerFrame;
+  }
+
+
+  /**
+   * @return  the duration of the frame, in microseconds.
+   */
+
+  public long
+  getDurationMicros ()
+  {
+    return (samplesPerFrame * 1000000L) / sampleRate;
+  }
+}
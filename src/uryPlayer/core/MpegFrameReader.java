@@ -0,0 +1,223 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Splits an MP3 byte stream into whole frames.
+ *
+ * The reader only trusts a frame header once the frame after it is seen to
+ * start where the header says it should.  Anything between frames (a
+ * partial frame from a dropped connection, tags, garbage) is skipped, so the
+ * frames it returns can always be handed to the decoder as a clean stream.
+ */
+
+public class MpegFrameReader
+{
+  /**
+   * The size of the reader's internal buffer.  This must be comfortably
+   * larger than twice the largest frame.
+   */
+
+  public static final int BUFFER_SIZE = 8192;
+
+
+  private final InputStream in;
+  private final byte[] buffer;
+  private final MpegFrameHeader header;
+  private final MpegFrameHeader nextHeader;
+
+  private int start;
+  private int end;
+  private int frameOffset;
+  private boolean endOfStream;
+  private long skippedBytes;
+
+
+  /**
+   * Create a new frame reader.
+   *
+   * @param in  The stream of MP3 data to read frames from.
+   */
+
+  public
+  MpegFrameReader (InputStream in)
+  {
+    this.in = in;
+
+    buffer = new byte[BUFFER_SIZE];
+    header = new MpegFrameHeader ();
+    nextHeader = new MpegFrameHeader ();
+
+    start = 0;
+    end = 0;
+    frameOffset = 0;
+    endOfStream = false;
+    skippedBytes = 0;
+  }
+
+
+  /**
+   * Read the next whole frame.
+   *
+   * On success, the frame occupies getFrameLength () bytes of the array
+   * returned by getBuffer (), starting at getFrameOffset (), and getHeader ()
+   * describes it.  These remain valid until the next call.
+   *
+   * @return  the length of the frame, or -1 at the end of the stream (a
+   *          partial frame at the end of the stream is discarded).
+   *
+   * @throws IOException  if the underlying stream fails.
+   */
+
+  public int
+  readFrame () throws IOException
+  {
+    while (ensure (MpegFrameHeader.HEADER_SIZE))
+      {
+        if (header.parse (buffer, start) == false)
+          {
+            skip ();
+            continue;
+          }
+
+        int length = header.getFrameLength ();
+
+        // Only trust a header if another compatible one follows it.  (At
+        // the very end of the stream, give it the benefit of the doubt.)
+
+        if (ensure (length + MpegFrameHeader.HEADER_SIZE))
+          {
+            if (nextHeader.parse (buffer, start + length) == false
+                || header.isCompatible (nextHeader) == false)
+              {
+                skip ();
+                continue;
+              }
+          }
+        else if (ensure (length) == false)
+          return -1;
+
+        frameOffset = start;
+        start += length;
+
+        return length;
+      }
+
+    return -1;
+  }
+
+
+  /**
+   * @return  the array holding the last frame read.
+   */
+
+  public byte[]
+  getBuffer ()
+  {
+    return buffer;
+  }
+
+
+  /**
+   * @return  the offset of the last frame read within getBuffer ().
+   */
+
+  public int
+  getFrameOffset ()
+  {
+    return frameOffset;
+  }
+
+
+  /**
+   * @return  the header of the last frame read.
+   */
+
+  public MpegFrameHeader
+  getHeader ()
+  {
+    return header;
+  }
+
+
+  /**
+   * @return  the number of bytes skipped while looking for frames.
+   */
+
+  public long
+  getSkippedBytes ()
+  {
+    return skippedBytes;
+  }
+
+
+  /**
+   * Skip one byte while hunting for a frame header.
+   */
+
+  private void
+  skip ()
+  {
+    start++;
+    skippedBytes++;
+  }
+
+
+  /**
+   * Make sure at least the given number of unconsumed bytes are in the
+   * buffer, reading more from the stream if needed.
+   *
+   * @param count  The number of bytes wanted.
+   *
+   * @return  true if the bytes are available; false if the stream ended
+   *          first.
+   *
+   * @throws IOException  if the underlying stream fails.
+   */
+
+  private boolean
+  ensure (int count) throws IOException
+  {
+    if (end - start >= count)
+      return true;
+
+    if (start > 0)
+      {
+        System.arraycopy (buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+      }
+
+    while (end - start < count && endOfStream == false)
+      {
+        int nBytesRead = in.read (buffer, end, buffer.length - end);
+
+        if (nBytesRead == -1)
+          endOfStream = true;
+        else
+          end += nBytesRead;
+      }
+
+    return (end - start >= count);
+  }
+}
@@ -0,0 +1,224 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * An AudioSink playing the one decoded stream on several outputs at once,
+ * such as a studio monitor and a foyer speaker on different sound cards,
+ * from one connection and one decoder.
+ *
+ * Each output (see DeviceOutput) has its own buffer, volume, delay trim and
+ * thread, and is handed the audio without waiting, so an output that is
+ * slow, stuck or unplugged only loses its own audio.  As nothing here
+ * waits for a device, this sink accepts audio as fast as it is written,
+ * and must be wrapped in a PacedSink to play a live stream in real time;
+ * each output then holds its own latency against that pace.
+ */
+
+public class MultiOutputSink implements AudioSink
+{
+  private final List<DeviceOutput> outputs;
+  private final Workers workers;
+
+  private volatile AudioFormat format;
+  private volatile boolean started;
+
+
+  /**
+   * Create a new multi-output sink, with no outputs, whose outputs run on
+   * the default workers.
+   */
+
+  public
+  MultiOutputSink ()
+  {
+    this (Workers.getDefault ());
+  }
+
+
+  /**
+   * Create a new multi-output sink, with no outputs.
+   *
+   * @param workers  The workers to run the outputs' threads on.
+   */
+
+  public
+  MultiOutputSink (Workers workers)
+  {
+    this.workers = workers;
+
+    outputs = new CopyOnWriteArrayList<DeviceOutput> ();
+    format = null;
+    started = false;
+  }
+
+
+  /**
+   * Add an output.  This may be done while playing, in which case the
+   * output starts playing at once.
+   *
+   * @param output  The output, which should not be in use elsewhere.
+   */
+
+  public synchronized void
+  addOutput (DeviceOutput output)
+  {
+    outputs.add (output);
+
+    AudioFormat current = format;
+
+    if (current != null)
+      {
+        output.open (current, workers);
+
+        if (started)
+          output.start ();
+      }
+  }
+
+
+  /**
+   * Remove an output, closing it.  This may be done while playing.
+   *
+   * @param output  The output.
+   *
+   * @return  true if the output was removed, false if it was not one of
+   *          this sink's.
+   */
+
+  public synchronized boolean
+  removeOutput (DeviceOutput output)
+  {
+    if (outputs.remove (output) == false)
+      return false;
+
+    output.close ();
+    return true;
+  }
+
+
+  /**
+   * @return  the outputs, in the order they were added.
+   */
+
+  public List<DeviceOutput>
+  getOutputs ()
+  {
+    return Collections.unmodifiableList (outputs);
+  }
+
+
+  /**
+   * Open every output.  Outputs whose devices cannot be opened keep
+   * trying in the background, so this never fails.
+   *
+   * @see uryPlayer.core.AudioSink#open(javax.sound.sampled.AudioFormat)
+   */
+
+  @Override
+  public synchronized void
+  open (AudioFormat newFormat)
+  {
+    format = newFormat;
+    started = false;
+
+    for (DeviceOutput output : outputs)
+      output.open (newFormat, workers);
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#getFormat()
+   */
+
+  @Override
+  public AudioFormat
+  getFormat ()
+  {
+    return format;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#start()
+   */
+
+  @Override
+  public synchronized void
+  start ()
+  {
+    started = true;
+
+    for (DeviceOutput output : outputs)
+      output.start ();
+  }
+
+
+  /**
+   * Hand audio to every output, without waiting for any of them.
+   *
+   * @see uryPlayer.core.AudioSink#write(byte[], int, int)
+   */
+
+  @Override
+  public void
+  write (byte[] b, int off, int len)
+  {
+    for (DeviceOutput output : outputs)
+      output.offer (b, off, len);
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#stop()
+   */
+
+  @Override
+  public synchronized void
+  stop ()
+  {
+    started = false;
+
+    for (DeviceOutput output : outputs)
+      output.stop ();
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#close()
+   */
+
+  @Override
+  public synchronized void
+  close ()
+  {
+    format = null;
+    started = false;
+
+    for (DeviceOutput output : outputs)
+      output.close ();
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * An AudioSink that throws its audio away, for running the player without
+ * a sound card, or for benchmarking everything up to the sound card.
+ */
+
+public class NullSink implements AudioSink
+{
+  private volatile AudioFormat format;
+  private volatile long bytesWritten;
+
+
+  /**
+   * Create a new null sink.
+   */
+
+  public
+  NullSink ()
+  {
+    format = null;
+    bytesWritten = 0;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#open(javax.sound.sampled.AudioFormat)
+   */
+
+  @Override
+  public void
+  open (AudioFormat format)
+  {
+    this.format = format;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#getFormat()
+   */
+
+  @Override
+  public AudioFormat
+  getFormat ()
+  {
+    return format;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#start()
+   */
+
+  @Override
+  public void
+  start ()
+  {
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#write(byte[], int, int)
+   */
+
+  @Override
+  public void
+  write (byte[] b, int off, int len)
+  {
+    bytesWritten += len;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#stop()
+   */
+
+  @Override
+  public void
+  stop ()
+  {
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#close()
+   */
+
+  @Override
+  public void
+  close ()
+  {
+    format = null;
+  }
+
+
+  /**
+   * @return  the number of bytes of audio written to (and discarded by)
+   *          the sink.
+   */
+
+  public long
+  getBytesWritten ()
+  {
+    return bytesWritten;
+  }
+}
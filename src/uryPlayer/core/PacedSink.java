@@ -0,0 +1,173 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+
+
+/**
+ * Wraps an AudioSink that accepts audio as fast as it is written (such as
+ * a file) so that it accepts it no faster than it would be played, as the
+ * sound card would.  This lets the player run headless in real time, which
+ * matters when it is fed from a live stream: run flat out, it would drain
+ * its buffers and underrun over and over.
+ */
+
+public class PacedSink implements AudioSink
+{
+  private final AudioSink sink;
+
+  private double bytesPerNano;
+  private long startTime;
+  private long bytesWritten;
+  private boolean running;
+
+
+  /**
+   * Create a new paced sink.
+   *
+   * @param sink  The sink to pace.
+   */
+
+  public
+  PacedSink (AudioSink sink)
+  {
+    this.sink = sink;
+
+    bytesPerNano = 0;
+    running = false;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#open(javax.sound.sampled.AudioFormat)
+   */
+
+  @Override
+  public void
+  open (AudioFormat format) throws LineUnavailableException
+  {
+    sink.open (format);
+
+    bytesPerNano = (format.getFrameRate () * format.getFrameSize ()) / 1e9;
+    running = false;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#getFormat()
+   */
+
+  @Override
+  public AudioFormat
+  getFormat ()
+  {
+    return sink.getFormat ();
+  }
+
+
+  /**
+   * Start playing, from the audio written next.
+   */
+
+  @Override
+  public void
+  start ()
+  {
+    sink.start ();
+
+    startTime = System.nanoTime ();
+    bytesWritten = 0;
+    running = true;
+  }
+
+
+  /**
+   * Write audio to the sink, first waiting until the audio already written
+   * would have finished playing.
+   *
+   * @throws IOException  if the audio cannot be written.
+   */
+
+  @Override
+  public void
+  write (byte[] b, int off, int len) throws IOException
+  {
+    if (running == false)
+      start ();
+
+    long due = startTime + (long) (bytesWritten / bytesPerNano);
+    long wait = due - System.nanoTime ();
+
+    if (wait > 0)
+      {
+        try
+          {
+            Thread.sleep (wait / 1000000L, (int) (wait % 1000000L));
+          }
+        catch (InterruptedException e)
+          {
+            // Drop the audio, keeping the interrupt for the player to 
+            // notice (it occurs when the player is stopped).
+
+            Thread.currentThread ().interrupt ();
+            return;
+          }
+      }
+    else
+      {
+        // The writer fell behind (as a sound card underruns), so the audio 
+        // plays from now rather than racing to catch up.
+
+        startTime -= wait;
+      }
+
+    sink.write (b, off, len);
+    bytesWritten += len;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#stop()
+   */
+
+  @Override
+  public void
+  stop ()
+  {
+    sink.stop ();
+    running = false;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#close()
+   */
+
+  @Override
+  public void
+  close ()
+  {
+    sink.close ();
+    running = false;
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * An AudioSink writing raw PCM to a stream, such as standard output, for
+ * piping into another program.  The audio is written as it is decoded,
+ * with no header, in whatever format the sink is opened in (normally
+ * 16-bit signed little-endian).
+ */
+
+public class PipeSink implements AudioSink
+{
+  private final OutputStream out;
+
+  private volatile AudioFormat format;
+
+
+  /**
+   * Create a new pipe sink writing to standard output.
+   */
+
+  public
+  PipeSink ()
+  {
+    this (System.out);
+  }
+
+
+  /**
+   * Create a new pipe sink.
+   *
+   * @param out  The stream to write the audio to.  This is not closed when
+   *             the sink is.
+   */
+
+  public
+  PipeSink (OutputStream out)
+  {
+    this.out = out;
+
+    format = null;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#open(javax.sound.sampled.AudioFormat)
+   */
+
+  @Override
+  public void
+  open (AudioFormat format)
+  {
+    this.format = format;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#getFormat()
+   */
+
+  @Override
+  public AudioFormat
+  getFormat ()
+  {
+    return format;
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#start()
+   */
+
+  @Override
+  public void
+  start ()
+  {
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#write(byte[], int, int)
+   */
+
+  @Override
+  public void
+  write (byte[] b, int off, int len) throws IOException
+  {
+    out.write (b, off, len);
+    out.flush ();
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#stop()
+   */
+
+  @Override
+  public void
+  stop ()
+  {
+  }
+
+
+  /**
+   * @see uryPlayer.core.AudioSink#close()
+   */
+
+  @Override
+  public void
+  close ()
+  {
+    format = null;
+
+    try
+      {
+        out.flush ();
+      }
+    catch (IOException e)
+      {
+        // Nothing more can be done with the stream at this point.
+      }
+  }
+}
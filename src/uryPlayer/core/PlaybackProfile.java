@@ -0,0 +1,268 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * How a PlayerCore trades latency against robustness: how big a line
+ * buffer it asks for, how much audio it moves to the sink at a time, and
+ * how much it keeps in its jitter buffer.
+ *
+ * Other than ROBUST, each profile works from a target latency, the most
+ * audio that should be waiting between the decoder and the speaker.  Part
+ * of it goes to the line buffer, and the rest to the jitter buffer; the
+ * output chunk is a fraction of it, so the line is kept topped up a few
+ * chunks at a time.  A profile may also batch the stream, so that the
+ * network and decode stages wake every so often rather than for every
+ * frame.  All sizes are rounded to whole frames of the format being
+ * played.
+ */
+
+public enum PlaybackProfile
+{
+  /**
+   * The default: the line's own buffer size, fixed chunks of
+   * StreamSource.CHUNK_SIZE, and a jitter buffer of half a second or so,
+   * which grows when the stream falters.
+   */
+
+  ROBUST (0, 0, 0, 0, false),
+
+
+  /**
+   * As little delay behind the transmitter as the network allows, for
+   * off-air monitoring: a quarter of the target latency in the line
+   * buffer, chunks of an eighth of it, and the rest in the jitter buffer.
+   * Audio piling up beyond that (such as after the network catches up
+   * from a stall) is dropped at once, rather than drained away slowly.
+   */
+
+  LOW_LATENCY (100, 4, 8, 0, true),
+
+
+  /**
+   * As few wakeups as possible, for listening on battery: half of the
+   * target latency in the line buffer, chunks of a quarter of it (so the
+   * line is topped up, and the player wakes, once every quarter), the
+   * rest in the jitter buffer, and the stream moved on in batches of an
+   * eighth of it.  The sound card plays for a second or so between each
+   * write, and the CPU can sleep in between.
+   */
+
+  POWER_SAVING (4000, 2, 4, 8, false);
+
+
+  private final int defaultLatencyMillis;
+  private final int lineDivisor;
+  private final int chunkDivisor;
+  private final int batchDivisor;
+  private final boolean catchingUp;
+
+
+  /**
+   * @param defaultLatencyMillis  The target latency, in milliseconds, or 0
+   *                              for none.
+   * @param lineDivisor           The fraction of the latency (as 1 in
+   *                              this) given to the line buffer, or 0 for
+   *                              the line's default.
+   * @param chunkDivisor          The fraction of the latency (as 1 in
+   *                              this) written at a time, or 0 for
+   *                              StreamSource.CHUNK_SIZE.
+   * @param batchDivisor          The fraction of the latency (as 1 in
+   *                              this) the stream is batched by, or 0 for
+   *                              no batching.
+   * @param catchingUp            Whether to drop excess audio at once.
+   */
+
+  private
+  PlaybackProfile (int defaultLatencyMillis, int lineDivisor, int chunkDivisor, int batchDivisor,
+                   boolean catchingUp)
+  {
+    this.defaultLatencyMillis = defaultLatencyMillis;
+    this.lineDivisor = lineDivisor;
+    this.chunkDivisor = chunkDivisor;
+    this.batchDivisor = batchDivisor;
+    this.catchingUp = catchingUp;
+  }
+
+
+  /**
+   * @return  the target latency used unless another is given, in
+   *          milliseconds, or 0 if the profile has none.
+   */
+
+  public int
+  getDefaultLatencyMillis ()
+  {
+    return defaultLatencyMillis;
+  }
+
+
+  /**
+   * @param latencyMillis  The target latency, in milliseconds.
+   *
+   * @return  the size of line buffer to ask for, in milliseconds, or 0 for
+   *          the line's default.
+   */
+
+  public int
+  getLineBufferMillis (int latencyMillis)
+  {
+    if (lineDivisor == 0)
+      return 0;
+    else
+      return Math.max (1, latencyMillis / lineDivisor);
+  }
+
+
+  /**
+   * @param format         The format of the audio being played.
+   * @param latencyMillis  The target latency, in milliseconds.
+   *
+   * @return  the amount of audio to move to the sink at a time, in bytes
+   *          (a whole number of frames).
+   */
+
+  public int
+  getChunkBytes (AudioFormat format, int latencyMillis)
+  {
+    if (chunkDivisor == 0)
+      return StreamSource.CHUNK_SIZE;
+    else
+      return millisToBytes (format, latencyMillis / chunkDivisor);
+  }
+
+
+  /**
+   * @param latencyMillis  The target latency, in milliseconds.
+   *
+   * @return  the jitter buffer's initial target, in milliseconds.
+   */
+
+  public int
+  getJitterTargetMillis (int latencyMillis)
+  {
+    if (lineDivisor == 0)
+      return JitterBuffer.DEFAULT_TARGET_MILLIS;
+    else
+      return Math.max (1, latencyMillis - getLineBufferMillis (latencyMillis));
+  }
+
+
+  /**
+   * @param latencyMillis  The target latency, in milliseconds.
+   *
+   * @return  the lowest the jitter buffer's target shrinks to, after
+   *          growing because the stream faltered, in milliseconds.
+   */
+
+  public int
+  getJitterMinMillis (int latencyMillis)
+  {
+    if (lineDivisor == 0)
+      return JitterBuffer.MIN_TARGET_MILLIS;
+    else
+      return getJitterTargetMillis (latencyMillis);
+  }
+
+
+  /**
+   * @param latencyMillis  The target latency, in milliseconds.
+   *
+   * @return  the length of the batches the stream is moved on in (see
+   *          StreamSource.setBatchMillis), in milliseconds, or 0 if it is
+   *          not batched.
+   */
+
+  public int
+  getBatchMillis (int latencyMillis)
+  {
+    if (batchDivisor == 0)
+      return 0;
+    else
+      return Math.max (1, latencyMillis / batchDivisor);
+  }
+
+
+  /**
+   * @return  true if the output sleeps until the sink has room for a
+   *          whole chunk before writing it, rather than leaving the sink
+   *          to wait as it likes (see LineSink.setBatching).
+   */
+
+  public boolean
+  isBatching ()
+  {
+    return (batchDivisor != 0);
+  }
+
+
+  /**
+   * @return  true if audio piling up in the jitter buffer is dropped at
+   *          once, false if it is drained away slowly.
+   */
+
+  public boolean
+  isCatchingUp ()
+  {
+    return catchingUp;
+  }
+
+
+  /**
+   * Find a profile by name, such as "low-latency" for LOW_LATENCY.
+   *
+   * @param name  The name, in any case, with hyphens or underscores.
+   *
+   * @return  the profile, or null if there is none by that name.
+   */
+
+  public static PlaybackProfile
+  forName (String name)
+  {
+    String constant = name.trim ().toUpperCase ().replace ('-', '_');
+
+    for (PlaybackProfile profile : values ())
+      if (profile.name ().equals (constant))
+        return profile;
+
+    return null;
+  }
+
+
+  /**
+   * Convert a duration to a whole number of frames' worth of bytes.
+   *
+   * @param format  The format of the audio.
+   * @param millis  The duration, in milliseconds.
+   *
+   * @return  the number of bytes of audio in that duration, and at least
+   *          one frame.
+   */
+
+  public static int
+  millisToBytes (AudioFormat format, int millis)
+  {
+    long frames = (long) format.getFrameRate () * millis / 1000;
+
+    return (int) Math.max (1, frames) * format.getFrameSize ();
+  }
+}
@@ -18,19 +18,22 @@
 
 package uryPlayer.core;
 import java.io.IOException;
-import java.net.URL;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.FloatControl;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
-import javax.sound.sampled.UnsupportedAudioFileException;
-
-import javazoom.spi.mpeg.sampled.convert.MpegFormatConversionProvider;
-import javazoom.spi.mpeg.sampled.file.MpegAudioFileReader;
 
 
 /**
@@ -39,17 +42,36 @@ import javazoom.spi.mpeg.sampled.file.MpegAudioFileReader;
  * This is responsible for the actual playback from the stream.  In general 
  * usage, the PlayerCore will be dispatched by another class.
  * 
+ * Once registered with registerMBean, a PlayerCore can be watched through 
+ * JMX (see PlayerCoreMXBean).  What it does is also reported to Java 
+ * Flight Recorder, where that is available (see PlayerEvents).
+ * 
  * @author Matt Windsor
  *
  */
 
-public class PlayerCore implements Runnable
+public class PlayerCore implements Runnable, PlayerCoreMXBean
 {
+  /**
+   * The prefix for all stream URLs on the URY server.
+   */
+  
+  public static final String DEFAULT_PREFIX = "http://ury.york.ac.uk/audio/";
+  
+  
+  /**
+   * The system property that, if set, replaces the URY server's prefix 
+   * (for example, to play from a local TestStreamServer).
+   */
+  
+  public static final String PREFIX_PROPERTY = "uryPlayer.prefix";
+  
+  
   /**
    * The prefix for all stream URLs.
    */
   
-  public static final String PREFIX = "http://ury.york.ac.uk/audio/";
+  public static final String PREFIX = loadPrefix ();
   
   
   /**
@@ -71,11 +93,119 @@ public class PlayerCore implements Runnable
    */
   
   public static final String MOBILE_STREAM = PREFIX + "live-mobile";
+  
+  
+  /**
+   * The system property that, if set, gives a comma-separated list of 
+   * prefixes of mirrors of the URY streams, to fail over to.
+   */
+  
+  public static final String MIRRORS_PROPERTY = "uryPlayer.mirrors";
+  
+  
+  /**
+   * The default time the stream may go without sending anything before 
+   * playback fails over to a mirror, in milliseconds.
+   */
+  
+  public static final int DEFAULT_FAILOVER_MILLIS = 2000;
+  
+  
+  /**
+   * How long the warm standby is kept connected after the stream last 
+   * looked like failing, in milliseconds.
+   */
+  
+  public static final int STANDBY_HOLD_MILLIS = 60000;
+  
+  
+  /**
+   * The system property that, if set, names the playback profile to use 
+   * (see PlaybackProfile.forName), such as "low-latency".
+   */
+  
+  public static final String PROFILE_PROPERTY = "uryPlayer.profile";
+  
+  
+  /**
+   * The system property that, if set, gives the target latency of the 
+   * playback profile, in milliseconds.
+   */
+  
+  public static final String LATENCY_PROPERTY = "uryPlayer.latency";
+  
+  
+  /**
+   * The JMX domain PlayerCores are registered under.
+   */
+  
+  public static final String MBEAN_DOMAIN = "uryPlayer";
+  
+  
+  /**
+   * The number of PlayerCores registered so far, for naming them.
+   */
+  
+  private static final AtomicInteger mbeanCount = new AtomicInteger ();
+  
+  
+  /**
+   * The format the sink is opened in ahead of time in fast-start 
+   * mode (that of the URY streams), before the real format is known.
+   */
+  
+  public static final AudioFormat PREWARM_FORMAT = new AudioFormat (44100, 16, 2, true, false);
+  
+  
+  /**
+   * The default amount of audio buffered before playback first starts in 
+   * fast-start mode, in milliseconds.
+   */
+  
+  public static final int DEFAULT_START_BUFFER_MILLIS = 150;
 
 
   private String streamURL;
   private volatile Thread thread;
   private volatile float volume;
+  private volatile JitterBuffer jitterBuffer;
+  private volatile StreamSource source;
+  private volatile StreamSource pendingSource;
+  private volatile AudioSink sink;
+  private volatile AudioSink output;
+  private volatile Workers workers;
+  private volatile StreamRecorder recorder;
+  private final List<FrameListener> frameListeners;
+  private final Map<String, List<String>> mirrors;
+  private volatile StreamSource standby;
+  private volatile boolean warmStandby;
+  private volatile int failoverMillis;
+  private volatile long failovers;
+  private long lastTroubleTime;
+  private final PlayerCounters counters;
+  private final LatencyTracer tracer;
+  private final PlayerEvents events;
+  private long gainTime;
+  private long writeTime;
+  private ObjectName mbeanName;
+  private volatile GainStage gainStage;
+  private volatile boolean adaptive;
+  private volatile boolean driftCompensation;
+  private volatile PlaybackProfile profile;
+  private volatile int latencyMillis;
+  private volatile long socketToWriteNanos;
+  private volatile double driftRatio;
+  private volatile boolean fastStart;
+  private volatile int startBufferMillis;
+  private volatile long startTime;
+  private volatile long timeToFirstAudio;
+  private volatile int timeShiftSeconds;
+  private TimeShiftBuffer timeShift;
+  private volatile boolean paused;
+  private final Lock controlLock;
+  private final Condition resumed;
+  private long pendingRewindMicros;
+  private boolean pendingLive;
   
   
   /**
@@ -92,6 +222,38 @@ public class PlayerCore implements Runnable
     streamURL = inURL;
     thread = null;
     volume = 1;
+    adaptive = false;
+    driftCompensation = true;
+    driftRatio = 1;
+    profile = PlaybackProfile.ROBUST;
+    latencyMillis = 0;
+    socketToWriteNanos = -1;
+    loadProfile ();
+    fastStart = false;
+    startBufferMillis = DEFAULT_START_BUFFER_MILLIS;
+    timeToFirstAudio = -1;
+    sink = new LineSink ();
+    workers = Workers.getDefault ();
+    frameListeners = new CopyOnWriteArrayList<FrameListener> ();
+    mirrors = loadMirrors ();
+    standby = null;
+    warmStandby = false;
+    failoverMillis = DEFAULT_FAILOVER_MILLIS;
+    failovers = 0;
+    lastTroubleTime = 0;
+    counters = new PlayerCounters ();
+    tracer = new LatencyTracer ();
+    events = PlayerEvents.getDefault ();
+    gainTime = 0;
+    writeTime = 0;
+    mbeanName = null;
+    timeShiftSeconds = 0;
+    timeShift = null;
+    paused = false;
+    controlLock = new ReentrantLock ();
+    resumed = controlLock.newCondition ();
+    pendingRewindMicros = 0;
+    pendingLive = false;
   }
 
   
@@ -107,7 +269,23 @@ public class PlayerCore implements Runnable
     if (thread != null)
       return false;
     
-    thread = new Thread (this);
+    startTime = System.nanoTime ();
+    timeToFirstAudio = -1;
+    
+    controlLock.lock ();
+    
+    try
+      {
+        paused = false;
+        pendingRewindMicros = 0;
+        pendingLive = false;
+      }
+    finally
+      {
+        controlLock.unlock ();
+      }
+    
+    thread = workers.newThread (this, "PlayerCore: " + streamURL);
     thread.start ();
    
     return true;
@@ -141,9 +319,41 @@ public class PlayerCore implements Runnable
         return false;
       }
     
+    synchronized (this)
+      {
+        if (pendingSource != null)
+          {
+            closeInBackground (pendingSource);
+            pendingSource = null;
+          }
+        
+        if (standby != null)
+          {
+            closeInBackground (standby);
+            standby = null;
+          }
+      }
+    
     return true;
   }
   
+  
+  /**
+   * Wait for the PlayerCore to finish playing, either because it has been 
+   * stopped or because the stream could not be played.
+   * 
+   * @throws InterruptedException  if the waiting thread is interrupted.
+   */
+  
+  public void
+  join () throws InterruptedException
+  {
+    Thread current = thread;
+    
+    if (current != null)
+      current.join ();
+  }
+  
   /**
    * The main body of thread execution.
    */
@@ -159,6 +369,7 @@ public class PlayerCore implements Runnable
    * @return  the current stream URL.
    */
   
+  @Override
   public String
   getURL ()
   {
@@ -169,214 +380,1898 @@ public class PlayerCore implements Runnable
   /**
    * Changes the URL used by the PlayerCore.
    * 
-   * This will stop the current player if running.
+   * If the player is running, the new stream is connected and buffered in 
+   * the background while the old one carries on playing, and playback is 
+   * then spliced over to it without stopping the sink.  The new stream 
+   * plays from live, whatever the old one was time-shifted by.
    * 
    * @return  true if the URL was changed, false otherwise.
    */
   
-  public boolean
+  public synchronized boolean
   setURL (String streamURL)
   {
-    if (thread == null)
-      stop ();
-      
     this.streamURL = streamURL;
+    
+    if (thread != null)
+      {
+        // Any switch still in progress is superseded by this one.
+        
+        StreamSource superseded = pendingSource;
+        AudioSink current = output;
+        AudioFormat outputFormat = (current != null ? current.getFormat () : null);
+        
+        pendingSource = newSource (streamURL, outputFormat);
+        pendingSource.start ();
+        
+        if (superseded != null)
+          closeInBackground (superseded);
+      }
+    
     return true;
   }
   
   
   /**
-   * Set the volume of the stream, if it is playing.
+   * Change where the PlayerCore sends its audio.  This takes effect the 
+   * next time the player is started.
    * 
-   * @param volume The new volume, as a floating-point number from 0 to 1.
+   * By default, audio goes to the sound card through a LineSink.  Sinks 
+   * that do not play the audio out themselves run the player as fast as 
+   * the stream can be decoded; wrap them in a PacedSink to run in real 
+   * time.
+   * 
+   * @param sink  The sink to send audio to.
    * 
    * @return true if the operation succeeded, false otherwise.
    */
   
   public boolean
-  setVolume (float volume)
+  setSink (AudioSink sink)
   {
-    this.volume = volume;
+    if (sink == null)
+      return false;
+    
+    this.sink = sink;
     return true;
   }
-
-
+  
+  
   /**
-   * @return the current volume, as a floating-point number from 0 to 1.
+   * @return  the sink the PlayerCore sends its audio to.
    */
   
-  public float
-  getVolume ()
+  public AudioSink
+  getSink ()
   {
-    return volume;
+    return sink;
   }
-
-
+  
+  
   /**
-   * Play from a stream until the stream terminates or the PlayerCore is 
-   * instructed to stop.
+   * Record the stream as it plays, or stop recording it.
    * 
-   * @param inURL  The Uniform Resource Locator for the stream to be played.
+   * The recorder is given the MP3 frames of whichever stream is playing, 
+   * following any switch between streams.  It takes effect at once.  
+   * Starting and closing the recorder is up to the caller.
+   * 
+   * @param recorder  The recorder, or null to stop recording.
+   * 
+   * @return true if the operation succeeded, false otherwise.
    */
   
-  public void
-  streamPlay (String inURL)
+  public synchronized boolean
+  setRecorder (StreamRecorder recorder)
   {
-    AudioInputStream in = null;
+    if (this.recorder != null)
+      removeFrameListener (this.recorder);
     
-    try
-      {
-        in = new MpegAudioFileReader ().getAudioInputStream (new URL (inURL));
-      }
-    catch (UnsupportedAudioFileException e)
-      {
-        // TODO Auto-generated catch block
-        e.printStackTrace ();
-      }
-    catch (IOException e)
-      {
-        // TODO Auto-generated catch block
-        e.printStackTrace ();
-      }
-      
-    AudioInputStream din = null;
-    AudioFormat baseFormat = in.getFormat ();
-    AudioFormat decodedFormat = new AudioFormat (AudioFormat.Encoding.PCM_SIGNED,
-                                                 baseFormat.getSampleRate (),
-                                                 16,
-                                                 baseFormat.getChannels (),
-                                                 baseFormat.getChannels () * 2,
-                                                 baseFormat.getSampleRate (),
-                                                 false);
-    din = new MpegFormatConversionProvider ().getAudioInputStream (decodedFormat, in);
-      
-    // Play now.
-      
-    try
-      {
-        rawPlay (decodedFormat, din);
-      }
-    catch (IOException e)
-      {
-        // TODO Auto-generated catch block
-        e.printStackTrace ();
-      }
-    catch (LineUnavailableException e)
-      {
-        // TODO Auto-generated catch block
-        e.printStackTrace ();
-      }
-      
-    // Now try to close the stream.
-      
-    try
-      {
-        in.close ();
-      }
-    catch (IOException e)
-      {
-        // TODO Auto-generated catch block
-        e.printStackTrace ();
-      }
+    this.recorder = recorder;
+    
+    if (recorder != null)
+      addFrameListener (recorder);
+    
+    return true;
   }
-
+  
   
   /**
-   * Play the decoded stream until the stream terminates or the PlayerCore is 
-   * instructed to stop.
+   * Add a listener to be given the MP3 frames of whichever stream is 
+   * playing, following any switch between streams, such as a 
+   * StreamRelay.  It takes effect at once.
    * 
-   * @param targetFormat  The target format of the stream.
-   * @param din           The input stream.
-   * @throws IOException
-   * @throws LineUnavailableException
+   * @param listener  The listener.
    */
   
-  private void
-  rawPlay (AudioFormat targetFormat, AudioInputStream din) throws IOException, LineUnavailableException
+  public synchronized void
+  addFrameListener (FrameListener listener)
   {
-    Thread thisThread = Thread.currentThread ();
+    frameListeners.add (listener);
     
-    byte[] data = new byte[4096];
-
-    SourceDataLine line = getLine (targetFormat);
-    float previous_volume = 2;
+    if (source != null)
+      source.addFrameListener (listener);
+  }
+  
+  
+  /**
+   * Remove a frame listener.  It takes effect at once.
+   * 
+   * @param listener  The listener.
+   */
+  
+  public synchronized void
+  removeFrameListener (FrameListener listener)
+  {
+    frameListeners.remove (listener);
     
-    if (line != null)
-      {
-        line.open ();
-        line.start ();
-        int nBytesRead = 0;
-        
-        // nBytesRead == -1 implies end of file, so terminate when this occurs.
-        
-        while (nBytesRead != -1 && thread == thisThread)
-          {
-            if (previous_volume != getVolume ())
-              {
-                previous_volume = getVolume ();
-                updateVolume (line);
-              }
-            
-            nBytesRead = din.read (data, 0, data.length);
-            
-            if (nBytesRead != -1)
-              line.write (data, 0, nBytesRead);
-          }
-
-        // Stop
-        
-        //line.drain (); <-- Causes freezes
-        line.stop ();
-        line.close ();
-        din.close ();
-      }
+    if (source != null)
+      source.removeFrameListener (listener);
   }
-
+  
   
   /**
-   * Update the volume of the player core.
+   * Set the mirrors of a stream, to fail over to if it stalls.  Playback 
+   * moves on to the next mirror in the list (and from the last back to 
+   * the stream itself) whenever the one playing stalls for longer than 
+   * the failover time.  This replaces any mirrors taken from the 
+   * MIRRORS_PROPERTY system property.
    * 
-   * @param line  The line to change volume on.
+   * @param streamURL   The stream URL.
+   * @param mirrorURLs  The URLs of its mirrors, in the order to try them, 
+   *                    or an empty list for none.
+   * 
+   * @return true if the operation succeeded, false otherwise.
    */
   
-  private void
-  updateVolume (SourceDataLine line)
+  public synchronized boolean
+  setMirrors (String streamURL, List<String> mirrorURLs)
   {
-    FloatControl volCtrl = null;
+    List<String> group = new ArrayList<String> ();
     
-    if (line.isControlSupported (FloatControl.Type.VOLUME))
-      {
-        volCtrl = (FloatControl) line.getControl (FloatControl.Type.VOLUME);
-        volCtrl.setValue (getVolume ());
-      }
-    else
-      {
-        volCtrl = (FloatControl) line.getControl (FloatControl.Type.MASTER_GAIN);
-        
-        // Linear volume = 10 ^ (Gain (dB) / 20)
-        
-        volCtrl.setValue ((float) (Math.log10 (getVolume ())) * 20);
-      }
-    System.out.println (volCtrl.getValue ());
+    group.add (streamURL);
+    group.addAll (mirrorURLs);
+    mirrors.put (streamURL, group);
+    
+    return true;
   }
   
   
   /**
-   * Get a data line from the sound system on which to play the stream.
+   * Turn the warm standby on or off.
    * 
-   * @param audioFormat  The desired audio format.
-   * @return  A line on which to play the stream.
-   * @throws LineUnavailableException
+   * With the warm standby on, as soon as the stream starts to falter the 
+   * player connects to the next mirror as well, so that if the stream 
+   * does then fail, the mirror already has audio buffered and playback 
+   * moves over to it almost at once.  The standby is dropped again once 
+   * the stream has been healthy for STANDBY_HOLD_MILLIS, so the extra 
+   * connection costs bandwidth only while it might be needed.  With it 
+   * off, the mirror is only connected to on failing over.
+   * 
+   * @param warmStandby  true to keep a warm standby.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setWarmStandby (boolean warmStandby)
+  {
+    this.warmStandby = warmStandby;
+    return true;
+  }
+  
+  
+  /**
+   * Set how long the stream may go without sending anything before 
+   * playback fails over to a mirror.
+   * 
+   * @param millis  The time, in milliseconds.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setFailoverMillis (int millis)
+  {
+    if (millis <= 0)
+      return false;
+    
+    failoverMillis = millis;
+    return true;
+  }
+  
+  
+  /**
+   * @return  the number of times playback has failed over to a mirror.
+   */
+  
+  @Override
+  public long
+  getFailovers ()
+  {
+    return failovers;
+  }
+  
+  
+  /**
+   * Keep the last few minutes of the stream, so that playback can be 
+   * paused and rewound, or stop keeping it.  This takes effect the next 
+   * time the player is started or switches stream.
+   * 
+   * The stream's MP3 frames are kept in a memory-mapped temporary file 
+   * (see TimeShiftBuffer), so this needs permission to create one.  
+   * Without it, the player plays live as usual.
+   * 
+   * @param seconds  How much of the stream to keep, in seconds, or 0 to 
+   *                 keep none.
+   * 
+   * @return true if the operation succeeded, false otherwise.
    */
   
-  private SourceDataLine
-  getLine (AudioFormat audioFormat) throws LineUnavailableException
+  public boolean
+  setTimeShift (int seconds)
   {
-    SourceDataLine res = null;
-    DataLine.Info info = new DataLine.Info (SourceDataLine.class, audioFormat);
-    res = (SourceDataLine) AudioSystem.getLine (info);
-    res.open (audioFormat);
-    return res;
+    if (seconds < 0)
+      return false;
+    
+    timeShiftSeconds = seconds;
+    return true;
+  }
+  
+  
+  /**
+   * Pause or resume playback.
+   * 
+   * While paused, the stream carries on being received into the 
+   * time-shift buffer, and playback resumes from where it was paused.  
+   * Without a time-shift buffer, only a few seconds of the stream can be 
+   * held, after which the server may drop the connection and playback 
+   * resumes from live.
+   * 
+   * @param paused  true to pause, false to resume.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setPaused (boolean paused)
+  {
+    controlLock.lock ();
+    
+    try
+      {
+        this.paused = paused;
+        resumed.signalAll ();
+      }
+    finally
+      {
+        controlLock.unlock ();
+      }
+    
+    return true;
+  }
+  
+  
+  /**
+   * @return  true if playback is paused.
+   */
+  
+  public boolean
+  isPaused ()
+  {
+    return paused;
+  }
+  
+  
+  /**
+   * Move playback back through the time-shift buffer, as far as the 
+   * oldest audio kept.  This takes effect within a frame or so, and has 
+   * no effect without a time-shift buffer.
+   * 
+   * @param seconds  How far to move back, in seconds.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  rewind (int seconds)
+  {
+    if (seconds <= 0 || timeShiftSeconds == 0)
+      return false;
+    
+    controlLock.lock ();
+    
+    try
+      {
+        pendingRewindMicros += seconds * 1000000L;
+      }
+    finally
+      {
+        controlLock.unlock ();
+      }
+    
+    return true;
+  }
+  
+  
+  /**
+   * Move playback back up to the live stream, dropping any time shift.  
+   * This takes effect within a frame or so.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  jumpToLive ()
+  {
+    if (timeShiftSeconds == 0)
+      return false;
+    
+    controlLock.lock ();
+    
+    try
+      {
+        pendingRewindMicros = 0;
+        pendingLive = true;
+      }
+    finally
+      {
+        controlLock.unlock ();
+      }
+    
+    return true;
+  }
+  
+  
+  /**
+   * @return  how far behind the live stream playback has been moved, in 
+   *          milliseconds, not counting the usual buffering.
+   */
+  
+  @Override
+  public long
+  getTimeShiftMillis ()
+  {
+    StreamSource current = source;
+    TimeShiftBuffer shift = (current != null ? current.getTimeShift () : null);
+    
+    if (shift != null)
+      return shift.getDelayMillis ();
+    else
+      return 0;
+  }
+  
+  
+  /**
+   * Change the workers the PlayerCore and its stream sources run on.  By 
+   * default, they run on the shared Workers.getDefault ().  This takes 
+   * effect the next time the player is started.
+   * 
+   * @param workers  The workers.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setWorkers (Workers workers)
+  {
+    if (workers == null)
+      return false;
+    
+    this.workers = workers;
+    return true;
+  }
+  
+  
+  /**
+   * Turn automatic quality selection on or off.
+   * 
+   * When on, the player measures how quickly the stream is arriving and 
+   * how full its buffers are, and moves between HIGH_STREAM, LOW_STREAM 
+   * and MOBILE_STREAM to keep playing without dropouts.  It only has an 
+   * effect while playing one of those three streams.
+   * 
+   * @param adaptive  true to select quality automatically.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setAdaptive (boolean adaptive)
+  {
+    this.adaptive = adaptive;
+    return true;
+  }
+  
+  
+  /**
+   * @return  true if quality is being selected automatically.
+   */
+  
+  public boolean
+  isAdaptive ()
+  {
+    return adaptive;
+  }
+  
+  
+  /**
+   * Choose how to trade latency against robustness.  This takes effect 
+   * the next time the player is started.
+   * 
+   * The default is PlaybackProfile.ROBUST, unless the system property 
+   * named by PROFILE_PROPERTY says otherwise.
+   * 
+   * @param profile        The profile.
+   * @param latencyMillis  The target latency, in milliseconds, or 0 for 
+   *                       the profile's default.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setProfile (PlaybackProfile profile, int latencyMillis)
+  {
+    if (profile == null || latencyMillis < 0)
+      return false;
+    
+    this.profile = profile;
+    this.latencyMillis = latencyMillis;
+    return true;
+  }
+  
+  
+  /**
+   * @return  the profile the player plays with.
+   */
+  
+  public PlaybackProfile
+  getProfile ()
+  {
+    return profile;
+  }
+  
+  
+  /**
+   * @return  the target latency of the profile, in milliseconds, or 0 if 
+   *          it has none.
+   */
+  
+  public int
+  getLatencyTargetMillis ()
+  {
+    int millis = latencyMillis;
+    
+    return (millis > 0 ? millis : profile.getDefaultLatencyMillis ());
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getEndToEndLatencyMillis()
+   */
+  
+  @Override
+  public long
+  getEndToEndLatencyMillis ()
+  {
+    long nanos = socketToWriteNanos;
+    
+    if (nanos < 0 || thread == null)
+      return -1;
+    else
+      return nanos / 1000000L + getLineBufferFillMillis ();
+  }
+  
+  
+  /**
+   * Turn clock-drift compensation on or off.  This takes effect the next 
+   * time the player is started.
+   * 
+   * The broadcaster's sample clock and the sound card's never run at 
+   * quite the same speed, so over hours a live stream either drains the 
+   * jitter buffer or grows it without limit.  With compensation on, a 
+   * DriftController watches the buffer and the audio is resampled by a 
+   * tiny amount (at most DriftController.MAX_CORRECTION) to hold it at 
+   * its target.  It only applies to sinks that play in real time, on a 
+   * clock of their own (a LineSink or a PacedSink), and is on by default.
+   * 
+   * @param driftCompensation  true to compensate for clock drift.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setDriftCompensation (boolean driftCompensation)
+  {
+    this.driftCompensation = driftCompensation;
+    return true;
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getDriftCorrectionPPM()
+   */
+  
+  @Override
+  public int
+  getDriftCorrectionPPM ()
+  {
+    return (int) Math.round ((driftRatio - 1) * 1000000);
+  }
+  
+  
+  /**
+   * Turn fast-start mode on or off.
+   * 
+   * In fast-start mode, the sink is opened while the stream is still 
+   * connecting rather than afterwards, and playback begins as soon as the 
+   * start buffer is filled instead of waiting for the jitter buffer's full 
+   * target.  This takes effect the next time the player is started.
+   * 
+   * @param fastStart  true to start playback as quickly as possible.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setFastStart (boolean fastStart)
+  {
+    this.fastStart = fastStart;
+    return true;
+  }
+  
+  
+  /**
+   * Set how much audio to buffer before playback first starts in 
+   * fast-start mode.
+   * 
+   * @param millis  The amount of audio, in milliseconds.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setStartBufferMillis (int millis)
+  {
+    if (millis < 0)
+      return false;
+    
+    startBufferMillis = millis;
+    return true;
+  }
+  
+  
+  /**
+   * @return  the time from the player being started to the first audio 
+   *          being written to the sink, in milliseconds, or -1 if no 
+   *          audio has been played since the player was started.
+   */
+  
+  @Override
+  public long
+  getTimeToFirstAudio ()
+  {
+    return timeToFirstAudio;
+  }
+  
+  
+  /**
+   * Set the volume of the stream, if it is playing.
+   * 
+   * @param volume The new volume, as a floating-point number from 0 to 1.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setVolume (float volume)
+  {
+    this.volume = volume;
+    
+    GainStage gain = gainStage;
+    
+    if (gain != null)
+      gain.setTarget (volume);
+    
+    return true;
+  }
+
+
+  /**
+   * @return the current volume, as a floating-point number from 0 to 1.
+   */
+  
+  public float
+  getVolume ()
+  {
+    return volume;
+  }
+
+
+  /**
+   * Play from a stream until the stream terminates or the PlayerCore is 
+   * instructed to stop.
+   * 
+   * The network and decode stages run in a StreamSource; this thread acts 
+   * as the output stage, moving decoded audio to the sink.  The 
+   * StreamSource reconnects by itself if the stream drops, so this waits 
+   * for as long as it takes for the stream to come up.
+   * 
+   * @param inURL  The Uniform Resource Locator for the stream to be played.
+   */
+  
+  public void
+  streamPlay (String inURL)
+  {
+    StreamSource newSource = newSource (inURL, null);
+    
+    synchronized (this)
+      {
+        source = newSource;
+        
+        for (FrameListener listener : frameListeners)
+          newSource.addFrameListener (listener);
+      }
+    
+    attachTimeShift (newSource);
+    newSource.start ();
+    
+    AudioSink newOutput = sink;
+    output = newOutput;
+    events.addPlayer (this);
+    socketToWriteNanos = -1;
+    
+    if (newOutput instanceof LineSink)
+      {
+        LineSink line = (LineSink) newOutput;
+        
+        line.setBufferMillis (profile.getLineBufferMillis (getLatencyTargetMillis ()));
+        line.setBatching (profile.isBatching ());
+      }
+    
+    try
+      {
+        // Open the sink while the stream connects, rather than after.
+        
+        boolean prewarmed = (fastStart && prewarmSink (newOutput));
+        AudioFormat decodedFormat = awaitFirstFormat ();
+        
+        if (decodedFormat != null)
+          rawPlay (decodedFormat, source.getPCMBuffer (), prewarmed);
+      }
+    catch (InterruptedException e)
+      {
+        // This is normal (it occurs when the player is stopped).
+      }
+    catch (LineUnavailableException e)
+      {
+        e.printStackTrace ();
+      }
+    catch (IOException e)
+      {
+        e.printStackTrace ();
+      }
+    finally
+      {
+        events.removePlayer (this);
+        newOutput.close ();
+        
+        // The source may have changed since playback started.
+        
+        source.close ();
+        
+        if (timeShift != null)
+          {
+            timeShift.close ();
+            timeShift = null;
+          }
+      }
+  }
+
+  
+  /**
+   * Play the decoded stream until the stream terminates or the PlayerCore is 
+   * instructed to stop.
+   * 
+   * @param targetFormat  The target format of the stream.
+   * @param pcm           The buffer holding the decoded stream, which is 
+   *                      played through a JitterBuffer.
+   * @param prewarmed     Whether the sink was opened ahead of time; it is 
+   *                      kept open if it is in the target format.
+   * @throws InterruptedException
+   * @throws LineUnavailableException
+   * @throws IOException
+   */
+  
+  private void
+  rawPlay (AudioFormat targetFormat, ByteRingBuffer pcm, boolean prewarmed) throws InterruptedException, LineUnavailableException, IOException
+  {
+    Thread thisThread = Thread.currentThread ();
+    
+    PlaybackProfile playProfile = profile;
+    int latency = getLatencyTargetMillis ();
+    int chunkBytes = playProfile.getChunkBytes (targetFormat, latency);
+    
+    byte[] data = new byte[chunkBytes];
+    byte[] fadeData = new byte[chunkBytes];
+    JitterBuffer jitter = new JitterBuffer (pcm, targetFormat);
+    jitterBuffer = jitter;
+    
+    jitter.setTargetMillis (playProfile.getJitterTargetMillis (latency), 
+                            playProfile.getJitterMinMillis (latency));
+    jitter.setCatchingUp (playProfile.isCatchingUp ());
+    
+    Resampler resampler = new Resampler (targetFormat);
+    byte[] resampled = new byte[resampler.getMaxOutput (data.length)];
+    DriftController driftController = new DriftController ();
+    boolean compensate = (driftCompensation 
+                          && (output instanceof LineSink || output instanceof PacedSink));
+    boolean resampling = compensate;
+    
+    driftController.reset (System.currentTimeMillis ());
+    driftRatio = 1;
+    
+    if (fastStart)
+      jitter.setStartMillis (Math.min (startBufferMillis, jitter.getTargetMillis ()));
+    BitrateController bitrateController = new BitrateController ();
+    bitrateController.reset (System.currentTimeMillis (), source.getBytesReceived ());
+
+    if (prewarmed == false || output.getFormat ().matches (targetFormat) == false)
+      {
+        output.close ();
+        output.open (targetFormat);
+      }
+    
+    GainStage gain = new GainStage (targetFormat, getVolume ());
+    gainStage = gain;
+    
+    // Catch any volume change made while the gain stage was being set up.
+    
+    gain.setTarget (getVolume ());
+    
+    output.start ();
+    
+    int frameSize = targetFormat.getFrameSize ();
+    int nBytesRead = 0;
+    int nBytesHeld = 0;
+    long[] times = new long[2];
+    
+    // nBytesRead == -1 implies end of file, so terminate when this occurs.
+    
+    try
+      {
+        while (nBytesRead != -1 && thread == thisThread)
+          {
+            // Only switch streams between whole frames.
+            
+            if (nBytesHeld == 0 && pendingSource != null 
+                && switchSource (jitter, data, fadeData))
+              {
+                frameSize = output.getFormat ().getFrameSize ();
+                bitrateController.reset (System.currentTimeMillis (), source.getBytesReceived ());
+                resampler.setFormat (output.getFormat ());
+              }
+            
+            if (paused)
+              awaitResume (thisThread);
+            
+            // Likewise, only seek between whole frames.
+            
+            if (nBytesHeld == 0 && applySeek (jitter))
+              resampler.reset ();
+            
+            if (adaptive)
+              adaptBitrate (bitrateController, jitter);
+            
+            if (compensate)
+              compensateDrift (driftController, jitter);
+            
+            // Time-shifted audio piles up in the jitter buffer on purpose.
+            
+            jitter.setTrimming (getTimeShiftMillis () == 0);
+            
+            // Excess audio is drained by playing it slightly fast.  Once 
+            // resampling, carry on, as the resampler holds back the last 
+            // few frames of each run for the next.
+            
+            if (jitter.isDraining ())
+              resampling = true;
+            
+            resampler.setRatio (driftRatio * jitter.getDrainRatio ());
+            
+            checkFailover ();
+            
+            StreamSource current = source;
+            long position = current.getPCMBuffer ().getReadCount () - nBytesHeld;
+            
+            nBytesRead = jitter.read (data, nBytesHeld, data.length - nBytesHeld);
+            
+            if (nBytesRead != -1)
+              {
+                // The sink only accepts whole frames, so hold back any 
+                // partial frame until the rest of it arrives.
+                
+                nBytesHeld += nBytesRead;
+                
+                int nBytesWhole = nBytesHeld - (nBytesHeld % frameSize);
+                
+                if (resampling)
+                  writeToSink (resampled, resampler.process (data, 0, nBytesWhole, resampled, 0));
+                else
+                  writeToSink (data, nBytesWhole);
+                
+                if (nBytesWhole > 0 && current.getPCMTimes (position, times))
+                  {
+                    tracer.recordOutput (times[0], times[1], gainTime, writeTime);
+                    socketToWriteNanos = writeTime - times[0];
+                  }
+                
+                nBytesHeld -= nBytesWhole;
+                System.arraycopy (data, nBytesWhole, data, 0, nBytesHeld);
+              }
+          }
+      }
+    finally
+      {
+        // Stop
+        
+        output.stop ();
+      }
+  }
+  
+  
+  /**
+   * Apply the volume to decoded audio and write it to the sink, noting 
+   * when each was done for latency tracing.
+   * 
+   * @param data  The array holding the audio; the volume is applied in 
+   *              place.
+   * @param len   The number of bytes to write, starting from the start of 
+   *              the array (a whole number of frames).
+   * 
+   * @throws IOException  if the sink fails.
+   */
+  
+  private void
+  writeToSink (byte[] data, int len) throws IOException
+  {
+    gainStage.process (data, 0, len);
+    gainTime = System.nanoTime ();
+    
+    output.write (data, 0, len);
+    writeTime = System.nanoTime ();
+    
+    if (timeToFirstAudio == -1 && len > 0)
+      {
+        long waitNanos = writeTime - startTime;
+        
+        timeToFirstAudio = waitNanos / 1000000L;
+        events.firstAudio (source.getURL (), waitNanos);
+      }
+  }
+  
+  
+  /**
+   * Wait for playback to be resumed, with the sink stopped meanwhile.
+   * 
+   * @param thisThread  The output thread, which stops waiting if the 
+   *                    player is stopped.
+   * 
+   * @throws InterruptedException  if the player is stopped.
+   */
+  
+  private void
+  awaitResume (Thread thisThread) throws InterruptedException
+  {
+    output.stop ();
+    
+    controlLock.lock ();
+    
+    try
+      {
+        while (paused && thread == thisThread)
+          resumed.await ();
+      }
+    finally
+      {
+        controlLock.unlock ();
+      }
+    
+    output.start ();
+  }
+  
+  
+  /**
+   * Carry out any rewind or jump to live asked for since the last call.
+   * 
+   * The time-shift buffer's read position is ahead of playback by 
+   * whatever has already been decoded, so a rewind moves it back by that 
+   * much more.  The decoded audio is then thrown away (keeping to whole 
+   * MP3 frames), and the jitter buffer refills from the new position.
+   * 
+   * @param jitter  The jitter buffer feeding the sink.
+   * 
+   * @return  true if playback moved, false otherwise.
+   */
+  
+  private boolean
+  applySeek (JitterBuffer jitter)
+  {
+    long rewindMicros;
+    boolean live;
+    
+    controlLock.lock ();
+    
+    try
+      {
+        rewindMicros = pendingRewindMicros;
+        live = pendingLive;
+        pendingRewindMicros = 0;
+        pendingLive = false;
+      }
+    finally
+      {
+        controlLock.unlock ();
+      }
+    
+    StreamSource current = source;
+    TimeShiftBuffer shift = current.getTimeShift ();
+    
+    if (shift == null || (rewindMicros == 0 && live == false))
+      return false;
+    
+    ByteRingBuffer pcm = current.getPCMBuffer ();
+    
+    if (live)
+      shift.seekToLive ();
+    else
+      shift.seekBack (rewindMicros + jitter.getFillMillis () * 1000L);
+    
+    int frameBytes = current.getPCMBytesPerFrame ();
+    int decoded = pcm.available ();
+    
+    pcm.skip (decoded - (decoded % frameBytes));
+    jitter.rebuffer ();
+    return true;
+  }
+  
+  
+  /**
+   * Let the bitrate controller sample the stream, if it is due, and switch 
+   * tier if it says to.
+   * 
+   * @param controller  The bitrate controller.
+   * @param jitter      The jitter buffer feeding the sink.
+   */
+  
+  private void
+  adaptBitrate (BitrateController controller, JitterBuffer jitter)
+  {
+    long now = System.currentTimeMillis ();
+    
+    if (controller.isSampleDue (now) == false)
+      return;
+    
+    StreamSource current = source;
+    
+    // Wait for any switch in progress to finish before judging the stream, 
+    // and don't switch while time-shifted, as that would jump to live.
+    
+    if (pendingSource != null || paused || getTimeShiftMillis () > 0)
+      {
+        controller.reset (now, current.getBytesReceived ());
+        return;
+      }
+    
+    String newURL = controller.sample (now, 
+                                       current.getURL (),
+                                       current.getBytesReceived (),
+                                       current.getBitrate (),
+                                       jitter.getFillMillis (),
+                                       jitter.getTargetMillis (),
+                                       current.isNetworkBufferFull ());
+    
+    if (newURL != null)
+      setURL (newURL);
+  }
+  
+  
+  /**
+   * Let the drift controller sample the jitter buffer, if it is due, and 
+   * keep the ratio it decides on for the resampler.
+   * 
+   * @param controller  The drift controller.
+   * @param jitter      The jitter buffer feeding the sink.
+   */
+  
+  private void
+  compensateDrift (DriftController controller, JitterBuffer jitter)
+  {
+    long now = System.currentTimeMillis ();
+    
+    if (controller.isSampleDue (now) == false)
+      return;
+    
+    // A buffer that is refilling, draining or being switched over says 
+    // nothing about drift, and time-shifted playback is not held to the 
+    // live stream; so just carry on correcting for the drift found so far.
+    
+    if (jitter.isBuffering () || jitter.isDraining () || pendingSource != null 
+        || paused || getTimeShiftMillis () > 0)
+      controller.reset (now);
+    else
+      controller.sample (now, jitter.getFillMillis (), jitter.getTargetMillis ());
+    
+    driftRatio = controller.getRatio ();
+  }
+  
+  
+  /**
+   * Splice playback over to the pending stream, if it has buffered enough 
+   * audio to take over.
+   * 
+   * The old stream is played out to the end of its current MP3 frame, and 
+   * the new stream is trimmed so that the amount of audio buffered stays 
+   * the same.  If the new stream has the old one's sample rate the two are 
+   * crossfaded briefly; if it had to be converted to fit the sink, they are 
+   * butted together; and if even that was not possible, the sink is 
+   * reopened in the new format.  If the sink cannot be reopened in the new 
+   * format, it is reopened in the old one and the switch is abandoned.
+   * 
+   * @param jitter    The jitter buffer feeding the sink.
+   * @param data      A scratch buffer for the outgoing stream.
+   * @param fadeData  A scratch buffer for the incoming stream.
+   * 
+   * @return  true if playback switched streams, false otherwise.
+   * 
+   * @throws InterruptedException
+   * @throws LineUnavailableException
+   * @throws IOException
+   */
+  
+  private boolean
+  switchSource (JitterBuffer jitter, byte[] data, byte[] fadeData) throws InterruptedException, LineUnavailableException, IOException
+  {
+    StreamSource next = pendingSource;
+    AudioFormat nextFormat = next.getFormat ();
+    
+    if (nextFormat == null)
+      {
+        if (next.hasFailed ())
+          abandonSwitch (next);
+        
+        return false;
+      }
+    
+    StreamSource old = source;
+    ByteRingBuffer oldPCM = old.getPCMBuffer ();
+    ByteRingBuffer nextPCM = next.getPCMBuffer ();
+    AudioFormat lineFormat = output.getFormat ();
+    
+    int nextBytesPerMilli = (int) (nextFormat.getFrameRate () * nextFormat.getFrameSize () / 1000);
+    int lineBytesPerMilli = (int) (lineFormat.getFrameRate () * lineFormat.getFrameSize () / 1000);
+    
+    if (nextPCM.available () < jitter.getTargetMillis () * nextBytesPerMilli
+        && nextPCM.isClosed () == false)
+      return false;
+    
+    // Play the old stream out to its next frame boundary.
+    
+    int oldFrameBytes = old.getPCMBytesPerFrame ();
+    int toBoundary = (int) ((oldFrameBytes - (oldPCM.getReadCount () % oldFrameBytes)) % oldFrameBytes);
+    toBoundary = Math.min (toBoundary, oldPCM.available ());
+    toBoundary -= toBoundary % lineFormat.getFrameSize ();
+    
+    while (toBoundary > 0)
+      {
+        int count = oldPCM.read (data, 0, Math.min (toBoundary, data.length));
+        writeToSink (data, count);
+        toBoundary -= count;
+      }
+    
+    // Drop the new stream's oldest audio until it holds as much as the old 
+    // one did, so the switch doesn't change the latency; but keep the 
+    // jitter buffer's target, in case the old stream had run dry (as when 
+    // failing over).
+    
+    int nextFrameBytes = next.getPCMBytesPerFrame ();
+    int keepMillis = Math.max (oldPCM.available () / Math.max (1, lineBytesPerMilli), 
+                               jitter.getTargetMillis ());
+    int excess = nextPCM.available () - (keepMillis * nextBytesPerMilli);
+    
+    if (excess > 0)
+      nextPCM.skip (excess - (excess % nextFrameBytes));
+    
+    if (lineFormat.matches (nextFormat))
+      {
+        if (next.isConverted () == false)
+          crossfade (oldPCM, nextPCM, lineFormat, data, fadeData);
+      }
+    else
+      {
+        output.stop ();
+        output.close ();
+        
+        try
+          {
+            output.open (nextFormat);
+          }
+        catch (LineUnavailableException e)
+          {
+            // Carry on playing the old stream in the old format, rather 
+            // than stopping altogether.
+            
+            output.open (lineFormat);
+            output.start ();
+            abandonSwitch (next);
+            return false;
+          }
+        
+        output.start ();
+        gainStage.setFormat (nextFormat);
+      }
+    
+    jitter.setBuffer (nextPCM, nextFormat);
+    
+    replaceSource (old, next);
+    return true;
+  }
+  
+  
+  /**
+   * Make another stream source the one playing, and close the old one.
+   * 
+   * @param old   The stream source that was playing.
+   * @param next  The stream source to play.
+   */
+  
+  private void
+  replaceSource (StreamSource old, StreamSource next)
+  {
+    synchronized (this)
+      {
+        source = next;
+        
+        if (pendingSource == next)
+          pendingSource = null;
+        
+        // Recordings and relays follow the stream being played.
+        
+        for (FrameListener listener : frameListeners)
+          {
+            old.removeFrameListener (listener);
+            next.addFrameListener (listener);
+          }
+      }
+    
+    // So does the time-shift buffer, starting afresh.
+    
+    old.setTimeShift (null);
+    attachTimeShift (next);
+    
+    events.qualitySwitched (old.getURL (), next.getURL ());
+    closeInBackground (old);
+  }
+  
+  
+  /**
+   * Wait for the stream to start, failing over to its mirrors in turn if 
+   * it does not start in time.
+   * 
+   * @return  the format of the decoded stream, or null if it could not 
+   *          be decoded.
+   * 
+   * @throws InterruptedException  if the player is stopped.
+   */
+  
+  private AudioFormat
+  awaitFirstFormat () throws InterruptedException
+  {
+    Thread thisThread = Thread.currentThread ();
+    
+    while (thread == thisThread)
+      {
+        StreamSource current = source;
+        String next = nextMirror (current.getURL ());
+        
+        if (next == null)
+          return current.awaitFormat (0);
+        
+        AudioFormat decodedFormat = current.awaitFormat (StreamSource.CONNECT_TIMEOUT + failoverMillis);
+        
+        if (decodedFormat != null)
+          return decodedFormat;
+        
+        failovers++;
+        System.err.println ("Stream " + current.getURL () + " did not start; trying " + next);
+        
+        StreamSource replacement = newSource (next, null);
+        replaceSource (current, replacement);
+        replacement.start ();
+      }
+    
+    return null;
+  }
+  
+  
+  /**
+   * Keep an eye on the stream playing, bringing up the warm standby when 
+   * it falters, dropping the standby once it has recovered, and failing 
+   * over to the next mirror if it stalls for longer than the failover 
+   * time.  The failover itself is carried out by switchSource, at a frame 
+   * boundary.
+   * 
+   * Playback that has been paused or rewound is left alone, as failing 
+   * over would jump back to live.
+   */
+  
+  private void
+  checkFailover ()
+  {
+    StreamSource current = source;
+    String next = nextMirror (current.getURL ());
+    StreamSource spare = standby;
+    
+    // A standby left over from another stream is no use.
+    
+    if (spare != null && spare.getURL ().equals (next) == false)
+      {
+        standby = null;
+        closeInBackground (spare);
+        spare = null;
+      }
+    
+    if (next == null || paused || getTimeShiftMillis () > 0)
+      return;
+    
+    long now = System.nanoTime () / 1000000L;
+    long stalled = current.getMillisSinceLastFrame ();
+    
+    if (stalled >= failoverMillis / 2)
+      lastTroubleTime = now;
+    
+    if (spare == null && warmStandby && stalled >= failoverMillis / 2)
+      {
+        spare = newSource (next, output.getFormat ());
+        spare.start ();
+        standby = spare;
+      }
+    else if (spare != null && now - lastTroubleTime >= STANDBY_HOLD_MILLIS)
+      {
+        standby = null;
+        closeInBackground (spare);
+        spare = null;
+      }
+    
+    if (stalled < failoverMillis)
+      return;
+    
+    // If a stream is already being switched to, give it time to start, 
+    // and only move on to its mirror if it does not.
+    
+    StreamSource pending = pendingSource;
+    
+    if (pending != null)
+      {
+        if (pending.getFormat () != null
+            || pending.getMillisSinceLastFrame () < StreamSource.CONNECT_TIMEOUT + failoverMillis)
+          return;
+        
+        next = nextMirror (pending.getURL ());
+        
+        if (next == null || next.equals (current.getURL ()))
+          return;
+      }
+    
+    synchronized (this)
+      {
+        if (pendingSource != pending)
+          return;
+        
+        failovers++;
+        System.err.println ("Stream " + current.getURL () + " stalled; failing over to " + next);
+        
+        if (spare != null && pending == null)
+          {
+            pendingSource = spare;
+            standby = null;
+          }
+        else
+          {
+            pendingSource = newSource (next, output.getFormat ());
+            pendingSource.start ();
+          }
+        
+        if (pending != null)
+          closeInBackground (pending);
+      }
+  }
+  
+  
+  /**
+   * @param url  A stream URL.
+   * 
+   * @return  the URL to fail over to from the given one, or null if it has 
+   *          no mirrors.
+   */
+  
+  private synchronized String
+  nextMirror (String url)
+  {
+    for (List<String> group : mirrors.values ())
+      {
+        int index = group.indexOf (url);
+        
+        if (index != -1 && group.size () > 1)
+          return group.get ((index + 1) % group.size ());
+      }
+    
+    return null;
+  }
+  
+  
+  /**
+   * Crossfade from the old stream to the new one, playing the result.
+   * 
+   * Only audio that has already been buffered is used, so this never 
+   * waits on either stream.
+   * 
+   * @param oldPCM    The outgoing stream's buffer.
+   * @param nextPCM   The incoming stream's buffer.
+   * @param format    The format of both streams.
+   * @param data      A scratch buffer for the outgoing stream.
+   * @param fadeData  A scratch buffer for the incoming stream.
+   * 
+   * @throws InterruptedException
+   * @throws IOException
+   */
+  
+  private void
+  crossfade (ByteRingBuffer oldPCM, ByteRingBuffer nextPCM, AudioFormat format, byte[] data, byte[] fadeData) throws InterruptedException, IOException
+  {
+    int frameSize = format.getFrameSize ();
+    int fadeBytes = (int) (format.getFrameRate () * Crossfade.CROSSFADE_MILLIS / 1000) * frameSize;
+    
+    fadeBytes = Math.min (fadeBytes, Math.min (oldPCM.available (), nextPCM.available ()));
+    fadeBytes -= fadeBytes % frameSize;
+    
+    long totalFrames = fadeBytes / frameSize;
+    long fadedFrames = 0;
+    
+    while (fadedFrames < totalFrames)
+      {
+        int count = (int) Math.min ((totalFrames - fadedFrames) * frameSize, 
+                                    data.length - (data.length % frameSize));
+        
+        oldPCM.read (data, 0, count);
+        nextPCM.read (fadeData, 0, count);
+        Crossfade.mix (data, fadeData, count, frameSize, fadedFrames, totalFrames);
+        writeToSink (data, count);
+        
+        fadedFrames += count / frameSize;
+      }
+  }
+  
+  
+  /**
+   * Give up on switching to a stream that could not be played.
+   * 
+   * @param next  The stream that was to be switched to.
+   */
+  
+  private synchronized void
+  abandonSwitch (StreamSource next)
+  {
+    if (pendingSource == next)
+      pendingSource = null;
+    
+    closeInBackground (next);
+  }
+  
+  
+  /**
+   * Create a stream source.  Only the source being played is given the 
+   * time-shift buffer (see attachTimeShift), so a standby or a stream 
+   * being switched to costs no more than a connection.
+   * 
+   * @param url           The stream URL to connect to.
+   * @param outputFormat  The preferred PCM format, or null to use 
+   *                      whatever the stream decodes to.
+   * 
+   * @return  the stream source, not yet started.
+   */
+  
+  private StreamSource
+  newSource (String url, AudioFormat outputFormat)
+  {
+    StreamSource newSource = new StreamSource (url, outputFormat, workers);
+    
+    newSource.setCounters (counters);
+    newSource.setTracer (tracer);
+    newSource.setBatchMillis (profile.getBatchMillis (getLatencyTargetMillis ()));
+    
+    return newSource;
+  }
+  
+  
+  /**
+   * Give the source about to be played the player's time-shift buffer, if 
+   * one is wanted, emptied of the last stream's audio.  The player keeps 
+   * one buffer for as long as it plays, rather than mapping a new file for 
+   * each stream, and only replaces it if its size has been changed.
+   * 
+   * @param playing  The source about to be played, which has been given 
+   *                 no time-shift buffer yet.
+   */
+  
+  private void
+  attachTimeShift (StreamSource playing)
+  {
+    int seconds = timeShiftSeconds;
+    TimeShiftBuffer shift = timeShift;
+    
+    if (shift != null && shift.getSeconds () != seconds)
+      {
+        shift.close ();
+        shift = null;
+      }
+    
+    if (shift == null && seconds > 0)
+      {
+        try
+          {
+            shift = new TimeShiftBuffer (seconds);
+          }
+        catch (IOException e)
+          {
+            System.err.println ("Cannot time-shift " + playing.getURL () + ": " + e);
+          }
+        catch (SecurityException e)
+          {
+            // This is normal (it occurs when running as an unsigned applet).
+          }
+      }
+    
+    timeShift = shift;
+    
+    if (shift != null)
+      {
+        shift.reset ();
+        playing.setTimeShift (shift);
+      }
+  }
+  
+  
+  /**
+   * Take the profile and its target latency from the system properties 
+   * named by PROFILE_PROPERTY and LATENCY_PROPERTY, if they are set and 
+   * readable.
+   */
+  
+  private void
+  loadProfile ()
+  {
+    String name;
+    String latency;
+    
+    try
+      {
+        name = System.getProperty (PROFILE_PROPERTY);
+        latency = System.getProperty (LATENCY_PROPERTY);
+      }
+    catch (SecurityException e)
+      {
+        // This is normal (it occurs when running as an unsigned applet).
+        
+        return;
+      }
+    
+    if (name != null)
+      {
+        PlaybackProfile named = PlaybackProfile.forName (name);
+        
+        if (named != null)
+          profile = named;
+        else
+          System.err.println ("Unknown playback profile " + name + "; using " + profile);
+      }
+    
+    if (latency != null)
+      {
+        try
+          {
+            latencyMillis = Math.max (0, Integer.parseInt (latency.trim ()));
+          }
+        catch (NumberFormatException e)
+          {
+            System.err.println ("Bad target latency " + latency + "; using the profile's");
+          }
+      }
+  }
+  
+  
+  /**
+   * @return  the mirrors of the URY streams, made from the prefixes in the 
+   *          system property named by MIRRORS_PROPERTY if it is set and 
+   *          readable.
+   */
+  
+  private static Map<String, List<String>>
+  loadMirrors ()
+  {
+    Map<String, List<String>> loaded = new HashMap<String, List<String>> ();
+    String property;
+    
+    try
+      {
+        property = System.getProperty (MIRRORS_PROPERTY);
+      }
+    catch (SecurityException e)
+      {
+        // This is normal (it occurs when running as an unsigned applet).
+        
+        property = null;
+      }
+    
+    if (property == null || property.trim ().length () == 0)
+      return loaded;
+    
+    String[] streams = { HIGH_STREAM, LOW_STREAM, MOBILE_STREAM };
+    
+    for (String stream : streams)
+      {
+        List<String> group = new ArrayList<String> ();
+        group.add (stream);
+        
+        for (String mirrorPrefix : property.split (","))
+          group.add (mirrorPrefix.trim () + stream.substring (PREFIX.length ()));
+        
+        loaded.put (stream, group);
+      }
+    
+    return loaded;
+  }
+  
+  
+  /**
+   * @return  the prefix for all stream URLs, taken from the system 
+   *          property named by PREFIX_PROPERTY if it is set and readable.
+   */
+  
+  private static String
+  loadPrefix ()
+  {
+    try
+      {
+        return System.getProperty (PREFIX_PROPERTY, DEFAULT_PREFIX);
+      }
+    catch (SecurityException e)
+      {
+        // This is normal (it occurs when running as an unsigned applet).
+        
+        return DEFAULT_PREFIX;
+      }
+  }
+  
+  
+  /**
+   * Close a stream source without holding up the calling thread, as 
+   * closing can wait on a connection attempt.
+   * 
+   * @param oldSource  The stream source to close.
+   */
+  
+  private void
+  closeInBackground (final StreamSource oldSource)
+  {
+    workers.execute (new Runnable ()
+    {
+      @Override
+      public void
+      run ()
+      {
+        oldSource.close ();
+      }
+    }, "StreamSource close: " + oldSource.getURL ());
+  }
+
+  
+  /**
+   * Open a sink in the format the stream is most likely to be in, before 
+   * the actual format is known.
+   * 
+   * @param newOutput  The sink to open.
+   * 
+   * @return  true if the sink was opened, false otherwise.
+   */
+  
+  private static boolean
+  prewarmSink (AudioSink newOutput)
+  {
+    try
+      {
+        newOutput.open (PREWARM_FORMAT);
+        return true;
+      }
+    catch (LineUnavailableException e)
+      {
+        // The sink will be opened the usual way once the format is known.
+        
+        return false;
+      }
+    catch (IllegalArgumentException e)
+      {
+        // The sink does not support the format; as above.
+        
+        return false;
+      }
+  }
+  
+  
+  /**
+   * @return  the number of times playback has run out of buffered audio, 
+   *          or 0 if the player has not started playing.
+   */
+  
+  @Override
+  public long
+  getUnderruns ()
+  {
+    JitterBuffer jitter = jitterBuffer;
+    
+    if (jitter != null)
+      return jitter.getUnderruns ();
+    else
+      return 0;
+  }
+  
+  
+  /**
+   * @return  the number of times a connection to a stream has been 
+   *          remade, over every stream played.
+   */
+  
+  @Override
+  public long
+  getReconnects ()
+  {
+    return counters.getReconnects ().sum ();
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getUptimeMillis()
+   */
+  
+  @Override
+  public long
+  getUptimeMillis ()
+  {
+    if (thread == null)
+      return 0;
+    else
+      return (System.nanoTime () - startTime) / 1000000L;
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getBytesReceived()
+   */
+  
+  @Override
+  public long
+  getBytesReceived ()
+  {
+    return counters.getBytesReceived ().sum ();
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getFramesDecoded()
+   */
+  
+  @Override
+  public long
+  getFramesDecoded ()
+  {
+    return counters.getFramesDecoded ().sum ();
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getDecodeNanos()
+   */
+  
+  @Override
+  public long
+  getDecodeNanos ()
+  {
+    return counters.getDecodeNanos ().sum ();
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getDecodeNanosPerFrame()
+   */
+  
+  @Override
+  public long
+  getDecodeNanosPerFrame ()
+  {
+    long frames = counters.getFramesDecoded ().sum ();
+    
+    if (frames == 0)
+      return 0;
+    else
+      return counters.getDecodeNanos ().sum () / frames;
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getBitrate()
+   */
+  
+  @Override
+  public int
+  getBitrate ()
+  {
+    StreamSource current = source;
+    
+    if (current != null)
+      return current.getBitrate ();
+    else
+      return 0;
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getLineBufferFillMillis()
+   */
+  
+  @Override
+  public int
+  getLineBufferFillMillis ()
+  {
+    AudioSink current = output;
+    
+    if (current instanceof LineSink)
+      return ((LineSink) current).getFillMillis ();
+    else
+      return 0;
+  }
+  
+  
+  /**
+   * @return  the tracer following audio through the player, over every 
+   *          stream played.
+   */
+  
+  public LatencyTracer
+  getLatencyTracer ()
+  {
+    return tracer;
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#getLatencyReport()
+   */
+  
+  @Override
+  public String
+  getLatencyReport ()
+  {
+    return tracer.getReport ();
+  }
+  
+  
+  /**
+   * @see uryPlayer.core.PlayerCoreMXBean#resetLatency()
+   */
+  
+  @Override
+  public void
+  resetLatency ()
+  {
+    tracer.reset ();
+  }
+  
+  
+  /**
+   * Register the PlayerCore with the platform MBean server, so that it can 
+   * be watched through JMX, as uryPlayer:type=PlayerCore,id=N.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public synchronized boolean
+  registerMBean ()
+  {
+    if (mbeanName != null)
+      return true;
+    
+    try
+      {
+        ObjectName name = new ObjectName (MBEAN_DOMAIN + ":type=PlayerCore,id=" 
+                                          + mbeanCount.incrementAndGet ());
+        
+        ManagementFactory.getPlatformMBeanServer ().registerMBean (this, name);
+        mbeanName = name;
+        return true;
+      }
+    catch (JMException e)
+      {
+        e.printStackTrace ();
+        return false;
+      }
+    catch (SecurityException e)
+      {
+        // This is normal (it occurs when running as an unsigned applet).
+        
+        return false;
+      }
+  }
+  
+  
+  /**
+   * Remove the PlayerCore from the platform MBean server, if it was 
+   * registered.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public synchronized boolean
+  unregisterMBean ()
+  {
+    if (mbeanName == null)
+      return true;
+    
+    try
+      {
+        ManagementFactory.getPlatformMBeanServer ().unregisterMBean (mbeanName);
+        mbeanName = null;
+        return true;
+      }
+    catch (JMException e)
+      {
+        e.printStackTrace ();
+        return false;
+      }
+  }
+  
+  
+  /**
+   * @return  the amount of decoded audio waiting to be played, in 
+   *          milliseconds, or 0 if the player has not started playing.
+   */
+  
+  @Override
+  public int
+  getBufferFillMillis ()
+  {
+    JitterBuffer jitter = jitterBuffer;
+    
+    if (jitter != null)
+      return jitter.getFillMillis ();
+    else
+      return 0;
+  }
+  
+  
+  /**
+   * @return  the amount of audio the jitter buffer is aiming to hold, in 
+   *          milliseconds.
+   */
+  
+  @Override
+  public int
+  getBufferTargetMillis ()
+  {
+    JitterBuffer jitter = jitterBuffer;
+    
+    if (jitter != null)
+      return jitter.getTargetMillis ();
+    else
+      return JitterBuffer.DEFAULT_TARGET_MILLIS;
   }
   
   
@@ -385,6 +2280,7 @@ public class PlayerCore implements Runnable
    * @return  true if the player is expected to be running, false otherwise.
    */
   
+  @Override
   public boolean 
   isRunning ()
   {
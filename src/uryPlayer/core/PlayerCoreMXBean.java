@@ -0,0 +1,205 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+
+/**
+ * The management interface of a PlayerCore, through which JMX tools (such
+ * as JConsole) can watch what a running player is doing.
+ *
+ * Every attribute is read-only, and reading one never holds up playback.
+ */
+
+public interface PlayerCoreMXBean
+{
+  /**
+   * @return  the URL of the stream the player was asked to play.
+   */
+
+  public String
+  getURL ();
+
+
+  /**
+   * @return  true if the player is running.
+   */
+
+  public boolean
+  isRunning ();
+
+
+  /**
+   * @return  the time since the player was started, in milliseconds, or 0
+   *          if it is not running.
+   */
+
+  public long
+  getUptimeMillis ();
+
+
+  /**
+   * @return  the number of bytes of MP3 frames received, over every stream
+   *          played.
+   */
+
+  public long
+  getBytesReceived ();
+
+
+  /**
+   * @return  the number of MP3 frames decoded, over every stream played.
+   */
+
+  public long
+  getFramesDecoded ();
+
+
+  /**
+   * @return  the time spent decoding MP3 frames, in nanoseconds, over every
+   *          stream played.
+   */
+
+  public long
+  getDecodeNanos ();
+
+
+  /**
+   * @return  the mean time spent decoding each MP3 frame, in nanoseconds.
+   */
+
+  public long
+  getDecodeNanosPerFrame ();
+
+
+  /**
+   * @return  the bitrate of the stream playing, in kilobits per second.
+   */
+
+  public int
+  getBitrate ();
+
+
+  /**
+   * @return  the amount of audio in the sound card's buffer, in
+   *          milliseconds, or 0 if the player is not playing to the sound
+   *          card.
+   */
+
+  public int
+  getLineBufferFillMillis ();
+
+
+  /**
+   * @return  the amount of decoded audio waiting to be played, in
+   *          milliseconds.
+   */
+
+  public int
+  getBufferFillMillis ();
+
+
+  /**
+   * @return  the amount of decoded audio the jitter buffer is aiming to
+   *          hold, in milliseconds.
+   */
+
+  public int
+  getBufferTargetMillis ();
+
+
+  /**
+   * @return  how much faster (or, if negative, slower) than the stream the
+   *          audio is being played to make up for clock drift, in parts
+   *          per million.
+   */
+
+  public int
+  getDriftCorrectionPPM ();
+
+
+  /**
+   * @return  how long the audio now playing took from being read off the
+   *          socket to reaching the speaker, in milliseconds, as near as
+   *          can be told (not counting the sound card's own delay), or -1
+   *          if nothing has been played.
+   */
+
+  public long
+  getEndToEndLatencyMillis ();
+
+
+  /**
+   * @return  the number of times playback has run out of buffered audio.
+   */
+
+  public long
+  getUnderruns ();
+
+
+  /**
+   * @return  the number of times a connection to a stream has been remade.
+   */
+
+  public long
+  getReconnects ();
+
+
+  /**
+   * @return  the number of times playback has failed over to a mirror.
+   */
+
+  public long
+  getFailovers ();
+
+
+  /**
+   * @return  the time from the player starting to the first audio being
+   *          played, in milliseconds, or -1 if none has been played.
+   */
+
+  public long
+  getTimeToFirstAudio ();
+
+
+  /**
+   * @return  how far behind the live stream playback has been moved, in
+   *          milliseconds.
+   */
+
+  public long
+  getTimeShiftMillis ();
+
+
+  /**
+   * @return  the median, 99th percentile and longest latency of each stage 
+   *          of the pipeline, from the socket to the sink, one stage per 
+   *          line.
+   */
+
+  public String
+  getLatencyReport ();
+
+
+  /**
+   * Empty the latency histograms, to start measuring afresh.
+   */
+
+  public void
+  resetLatency ();
+}
@@ -0,0 +1,96 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+
+/**
+ * The running totals kept for a PlayerCore, across every stream it plays.
+ *
+ * The PlayerCore hands these to each of its StreamSources, which count
+ * into them from their network and decode threads; they are read back
+ * through the PlayerCore's MBean.  All of them are StripedCounters, so
+ * counting never takes a lock.
+ */
+
+public class PlayerCounters
+{
+  private final StripedCounter bytesReceived;
+  private final StripedCounter framesDecoded;
+  private final StripedCounter decodeNanos;
+  private final StripedCounter reconnects;
+
+
+  /**
+   * Create a new set of counters, all at 0.
+   */
+
+  public
+  PlayerCounters ()
+  {
+    bytesReceived = new StripedCounter ();
+    framesDecoded = new StripedCounter ();
+    decodeNanos = new StripedCounter ();
+    reconnects = new StripedCounter ();
+  }
+
+
+  /**
+   * @return  the number of bytes of MP3 frames received.
+   */
+
+  public StripedCounter
+  getBytesReceived ()
+  {
+    return bytesReceived;
+  }
+
+
+  /**
+   * @return  the number of MP3 frames decoded.
+   */
+
+  public StripedCounter
+  getFramesDecoded ()
+  {
+    return framesDecoded;
+  }
+
+
+  /**
+   * @return  the time spent decoding, in nanoseconds, not counting time
+   *          spent waiting for the stream.
+   */
+
+  public StripedCounter
+  getDecodeNanos ()
+  {
+    return decodeNanos;
+  }
+
+
+  /**
+   * @return  the number of times a connection to a stream has been remade.
+   */
+
+  public StripedCounter
+  getReconnects ()
+  {
+    return reconnects;
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.lang.reflect.InvocationTargetException;
+
+
+/**
+ * Reports what the player is doing to a profiler, as events: connecting,
+ * the first bytes and first audio of a stream, underruns, reconnects,
+ * switches between streams, decoding statistics every second, and webcam
+ * fetches.
+ *
+ * The events go to Java Flight Recorder, so that a single recording shows
+ * the player's audio dropouts alongside garbage collection pauses and the
+ * like.  Flight Recorder only exists on newer JVMs, so its events live in
+ * the separately built uryPlayer.jfr package (see the README), which is
+ * looked up by reflection.  Without it, every method here does nothing.
+ * Even with it, an event costs next to nothing unless a recording is
+ * taking it.
+ */
+
+public class PlayerEvents
+{
+  /**
+   * The class reporting events to Flight Recorder, if it has been built.
+   */
+
+  public static final String FLIGHT_RECORDER_CLASS = "uryPlayer.jfr.FlightRecorderEvents";
+
+
+  private static PlayerEvents defaultEvents = null;
+
+
+  /**
+   * @return  the events reporter shared by the whole player, which reports
+   *          to Flight Recorder if it can.
+   */
+
+  public static synchronized PlayerEvents
+  getDefault ()
+  {
+    if (defaultEvents == null)
+      defaultEvents = loadFlightRecorderEvents ();
+
+    return defaultEvents;
+  }
+
+
+  /**
+   * Report a connection to a stream being made.
+   *
+   * @param url           The stream URL.
+   * @param connectNanos  How long connecting took, in nanoseconds.
+   */
+
+  public void
+  connected (String url, long connectNanos)
+  {
+    // Not reported.
+  }
+
+
+  /**
+   * Report the first MP3 frame arriving on a connection.
+   *
+   * @param url        The stream URL.
+   * @param waitNanos  How long it took to arrive, from starting to
+   *                   connect, in nanoseconds.
+   */
+
+  public void
+  firstByte (String url, long waitNanos)
+  {
+    // Not reported.
+  }
+
+
+  /**
+   * Report the first audio of a stream being played.
+   *
+   * @param url        The stream URL.
+   * @param waitNanos  How long it took to play, from the player being
+   *                   started, in nanoseconds.
+   */
+
+  public void
+  firstAudio (String url, long waitNanos)
+  {
+    // Not reported.
+  }
+
+
+  /**
+   * Report playback running out of buffered audio.
+   *
+   * @param underruns     The number of underruns so far.
+   * @param targetMillis  The new amount of audio to buffer, in
+   *                      milliseconds.
+   */
+
+  public void
+  underrun (long underruns, int targetMillis)
+  {
+    // Not reported.
+  }
+
+
+  /**
+   * Report a connection to a stream being lost, before reconnecting.
+   *
+   * @param url          The stream URL.
+   * @param cause        Why the connection was lost, or null if the
+   *                     stream just ended.
+   * @param delayMillis  How long until reconnecting, in milliseconds.
+   */
+
+  public void
+  reconnect (String url, String cause, long delayMillis)
+  {
+    // Not reported.
+  }
+
+
+  /**
+   * Report playback moving to another stream, such as another quality or
+   * a mirror.
+   *
+   * @param fromURL  The URL of the stream that was playing.
+   * @param toURL    The URL of the stream now playing.
+   */
+
+  public void
+  qualitySwitched (String fromURL, String toURL)
+  {
+    // Not reported.
+  }
+
+
+  /**
+   * Report a webcam image being fetched.
+   *
+   * @param url         The webcam URL.
+   * @param fetchNanos  How long fetching took, in nanoseconds.
+   * @param bytes       The size of the image, in bytes.
+   * @param succeeded   Whether the image was fetched.
+   */
+
+  public void
+  webcamFetched (String url, long fetchNanos, long bytes, boolean succeeded)
+  {
+    // Not reported.
+  }
+
+
+  /**
+   * Start reporting a player's decoding statistics every second, while it
+   * plays.
+   *
+   * @param player  The player.
+   */
+
+  public void
+  addPlayer (PlayerCoreMXBean player)
+  {
+    // Not reported.
+  }
+
+
+  /**
+   * Stop reporting a player's decoding statistics.
+   *
+   * @param player  The player.
+   */
+
+  public void
+  removePlayer (PlayerCoreMXBean player)
+  {
+    // Not reported.
+  }
+
+
+  /**
+   * Load the Flight Recorder events reporter, if both it and Flight
+   * Recorder are there.
+   *
+   * @return  the reporter, or one reporting nothing if it cannot be
+   *          loaded.
+   */
+
+  private static PlayerEvents
+  loadFlightRecorderEvents ()
+  {
+    try
+      {
+        Class.forName ("jdk.jfr.Event");
+
+        Class<?> reporter = Class.forName (FLIGHT_RECORDER_CLASS);
+
+        return (PlayerEvents) reporter.getDeclaredConstructor ().newInstance ();
+      }
+    catch (ClassNotFoundException e)
+      {
+        // This is normal (it occurs on JVMs without Flight Recorder, or
+        // when the uryPlayer.jfr package has not been built).
+
+        return new PlayerEvents ();
+      }
+    catch (NoSuchMethodException e)
+      {
+        // The reporter has no usable no-argument constructor.
+
+        return new PlayerEvents ();
+      }
+    catch (InstantiationException e)
+      {
+        // Likewise.
+
+        return new PlayerEvents ();
+      }
+    catch (IllegalAccessException e)
+      {
+        // Likewise.
+
+        return new PlayerEvents ();
+      }
+    catch (InvocationTargetException e)
+      {
+        // The reporter failed to start (such as when Flight Recorder is
+        // turned off).
+
+        return new PlayerEvents ();
+      }
+    catch (SecurityException e)
+      {
+        // This is normal (it occurs when running as an unsigned applet).
+
+        return new PlayerEvents ();
+      }
+    catch (LinkageError e)
+      {
+        // The uryPlayer.jfr package was built for a newer JVM than this.
+
+        return new PlayerEvents ();
+      }
+  }
+}
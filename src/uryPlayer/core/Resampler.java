@@ -0,0 +1,282 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+
+
+/**
+ * Changes the speed of 16-bit little-endian PCM by a tiny amount, for
+ * clock-drift compensation (see DriftController) and for draining excess
+ * audio from the jitter buffer (see JitterBuffer).
+ *
+ * Each output frame is interpolated from the four input frames around it
+ * (4-point cubic Hermite), which keeps the treble intact far better than
+ * interpolating between two.  The last few frames of each run are kept
+ * for the start of the next, so audio can be resampled a chunk at a time
+ * without clicks at the joins, and nothing is allocated once the format
+ * is set.  At a ratio of exactly 1, the audio passes through unchanged
+ * (if a few frames late).
+ */
+
+public class Resampler
+{
+  /**
+   * The furthest the ratio may be from 1.
+   */
+
+  public static final double MAX_DEVIATION = 0.01;
+
+
+  /**
+   * The number of input frames kept from one run for the next.
+   */
+
+  private static final int HISTORY_FRAMES = 3;
+
+
+  private int channels;
+  private int[] history;
+  private boolean primed;
+  private double position;
+  private volatile double ratio;
+
+
+  /**
+   * Create a new resampler, at a ratio of 1.
+   *
+   * @param format  The format of the audio to be resampled.
+   */
+
+  public
+  Resampler (AudioFormat format)
+  {
+    ratio = 1;
+    setFormat (format);
+  }
+
+
+  /**
+   * Change the format of the audio to be resampled, starting afresh.
+   *
+   * @param format  The new format.
+   */
+
+  public void
+  setFormat (AudioFormat format)
+  {
+    channels = format.getChannels ();
+    history = new int[HISTORY_FRAMES * channels];
+    reset ();
+  }
+
+
+  /**
+   * Forget the audio kept from the last run, such as after the audio
+   * jumps (a seek or a switch of stream).
+   */
+
+  public void
+  reset ()
+  {
+    Arrays.fill (history, 0);
+    primed = false;
+    position = 0;
+  }
+
+
+  /**
+   * Set how many input frames to move on for each output frame: above 1
+   * plays faster, below 1 slower.  This may be called from any thread.
+   *
+   * @param newRatio  The ratio, which is kept within MAX_DEVIATION of 1.
+   */
+
+  public void
+  setRatio (double newRatio)
+  {
+    ratio = Math.max (1 - MAX_DEVIATION, Math.min (1 + MAX_DEVIATION, newRatio));
+  }
+
+
+  /**
+   * @return  the current ratio of input frames to output frames.
+   */
+
+  public double
+  getRatio ()
+  {
+    return ratio;
+  }
+
+
+  /**
+   * @param inLen  A number of bytes of input (a whole number of frames).
+   *
+   * @return  the most bytes of output that process can make from it.
+   */
+
+  public int
+  getMaxOutput (int inLen)
+  {
+    int frameSize = 2 * channels;
+    int inFrames = inLen / frameSize;
+
+    return ((int) Math.ceil (inFrames / (1 - MAX_DEVIATION)) + HISTORY_FRAMES) * frameSize;
+  }
+
+
+  /**
+   * Resample a run of audio.
+   *
+   * @param in      The array holding the input.
+   * @param inOff   The offset of the first byte of input.
+   * @param inLen   The number of bytes of input (a whole number of frames).
+   * @param out     The array to write the output to, which must have room
+   *                for getMaxOutput (inLen) bytes.
+   * @param outOff  The offset at which to write the first byte of output.
+   *
+   * @return  the number of bytes of output (a whole number of frames).
+   */
+
+  public int
+  process (byte[] in, int inOff, int inLen, byte[] out, int outOff)
+  {
+    int frameSize = 2 * channels;
+    int inFrames = inLen / frameSize;
+    double step = ratio;
+    int o = outOff;
+
+    if (inFrames == 0)
+      return 0;
+
+    // Start the very first run from its first frame, as though that frame
+    // had been playing for a while.
+
+    if (primed == false)
+      {
+        for (int h = 0; h < HISTORY_FRAMES; h++)
+          for (int c = 0; c < channels; c++)
+            history[h * channels + c] = sample (in, inOff + 2 * c);
+
+        primed = true;
+      }
+
+    // Frames -HISTORY_FRAMES to -1 are those kept from the last run.  Each
+    // output frame lies between frames i and i + 1, and needs frames i - 1
+    // and i + 2 as well.
+
+    while (position < inFrames - 2)
+      {
+        int i = (int) Math.floor (position);
+        float t = (float) (position - i);
+
+        for (int c = 0; c < channels; c++)
+          {
+            int value = interpolate (frame (in, inOff, i - 1, c),
+                                     frame (in, inOff, i, c),
+                                     frame (in, inOff, i + 1, c),
+                                     frame (in, inOff, i + 2, c),
+                                     t);
+
+            out[o] = (byte) value;
+            out[o + 1] = (byte) (value >> 8);
+            o += 2;
+          }
+
+        position += step;
+      }
+
+    // Keep the last frames for the next run.  Each is copied from no
+    // earlier than where it is written, so none is overwritten before it
+    // is copied.
+
+    for (int h = 0; h < HISTORY_FRAMES; h++)
+      for (int c = 0; c < channels; c++)
+        history[h * channels + c] = frame (in, inOff, inFrames - HISTORY_FRAMES + h, c);
+
+    position -= inFrames;
+
+    return o - outOff;
+  }
+
+
+  /**
+   * Get a sample of an input frame, which may be one kept from the last
+   * run.
+   *
+   * @param in     The array holding the input.
+   * @param inOff  The offset of the first byte of input.
+   * @param index  The index of the frame in the input, from
+   *               -HISTORY_FRAMES (the oldest kept frame).
+   * @param c      The channel.
+   *
+   * @return  the sample.
+   */
+
+  private int
+  frame (byte[] in, int inOff, int index, int c)
+  {
+    if (index < 0)
+      return history[(index + HISTORY_FRAMES) * channels + c];
+    else
+      return sample (in, inOff + (index * channels + c) * 2);
+  }
+
+
+  /**
+   * @param b  The array holding the sample.
+   * @param i  The offset of the sample's low byte.
+   *
+   * @return  the sample.
+   */
+
+  private static int
+  sample (byte[] b, int i)
+  {
+    return (short) ((b[i] & 0xFF) | (b[i + 1] << 8));
+  }
+
+
+  /**
+   * Interpolate between two samples, by a 4-point cubic Hermite curve.
+   *
+   * @param y0  The sample before the first.
+   * @param y1  The first sample.
+   * @param y2  The second sample.
+   * @param y3  The sample after the second.
+   * @param t   How far between the first and second samples to
+   *            interpolate, from 0 to 1.
+   *
+   * @return  the interpolated sample, clipped to 16 bits.
+   */
+
+  private static int
+  interpolate (int y0, int y1, int y2, int y3, float t)
+  {
+    float c1 = 0.5f * (y2 - y0);
+    float c2 = y0 - 2.5f * y1 + 2 * y2 - 0.5f * y3;
+    float c3 = 0.5f * (y3 - y0) + 1.5f * (y1 - y2);
+    int value = Math.round (((c3 * t + c2) * t + c1) * t + y1);
+
+    return Math.max (Short.MIN_VALUE, Math.min (Short.MAX_VALUE, value));
+  }
+}
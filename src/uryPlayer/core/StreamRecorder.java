@@ -0,0 +1,423 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+
+/**
+ * Records a stream to disk exactly as it arrives, as MP3, split into
+ * segment files.
+ *
+ * The recorder listens to the MP3 frames read by a StreamSource (the
+ * PlayerCore attaches it to whichever stream is playing), so recording
+ * takes no extra connection and no re-encoding.  Frames are copied into
+ * a ring buffer of the recorder's own, whole or not at all, and split
+ * back out of it by an MpegFrameReader to be written to disk on a thread
+ * of its own, through a FileChannel.  Nothing on the network thread ever
+ * waits for the disk, or for the recorder: if the disk falls so far
+ * behind that the buffer fills, frames are dropped from the recording
+ * (and counted) rather than holding up playback.
+ *
+ * A new segment file is started every so often (on the hour, by default)
+ * and whenever a segment reaches a size limit, always between frames, so
+ * that every segment plays on its own.  Segments are named after the
+ * time they start, such as ury-20100925-140000.mp3.
+ */
+
+public class StreamRecorder implements FrameListener, Runnable
+{
+  /**
+   * The default length of each segment, in milliseconds (an hour).
+   */
+
+  public static final long DEFAULT_SEGMENT_MILLIS = 60 * 60 * 1000L;
+
+
+  /**
+   * The size of the buffer between the network thread and the disk, in
+   * bytes (around thirty seconds of the high-quality stream).
+   */
+
+  public static final int BUFFER_SIZE = 512 * 1024;
+
+
+  /**
+   * The most written to disk at a time, in bytes.
+   */
+
+  public static final int WRITE_SIZE = 64 * 1024;
+
+
+  /**
+   * How long to wait before trying again to write to disk after a
+   * failure, in milliseconds.  Frames arriving meanwhile are dropped.
+   */
+
+  public static final int RETRY_MILLIS = 5000;
+
+
+  private final File directory;
+  private final String prefix;
+  private final long segmentMillis;
+  private final long segmentBytes;
+  private final ByteRingBuffer buffer;
+  private final ByteBuffer writeBuffer;
+
+  private volatile Thread thread;
+  private final StripedCounter droppedFrames;
+  private volatile long bytesWritten;
+  private volatile File currentFile;
+
+  private FileChannel channel;
+  private long segmentEnd;
+  private long segmentSize;
+  private long retryTime;
+
+
+  /**
+   * Create a new recorder, starting a new segment every hour and with no
+   * size limit.
+   *
+   * @param directory  The directory to write the segments to.
+   */
+
+  public
+  StreamRecorder (File directory)
+  {
+    this (directory, "ury", DEFAULT_SEGMENT_MILLIS, 0);
+  }
+
+
+  /**
+   * Create a new recorder.
+   *
+   * @param directory      The directory to write the segments to.
+   * @param prefix         The start of each segment's file name.
+   * @param segmentMillis  How often to start a new segment, in
+   *                       milliseconds, or 0 to only split by size.
+   *                       Segments start on multiples of this length, so
+   *                       hourly segments start on the hour.
+   * @param segmentBytes   The most audio in each segment, in bytes, or 0
+   *                       to only split by time.
+   */
+
+  public
+  StreamRecorder (File directory, String prefix, long segmentMillis, long segmentBytes)
+  {
+    this.directory = directory;
+    this.prefix = prefix;
+    this.segmentMillis = segmentMillis;
+    this.segmentBytes = segmentBytes;
+
+    buffer = new ByteRingBuffer (BUFFER_SIZE);
+    writeBuffer = ByteBuffer.allocateDirect (WRITE_SIZE);
+
+    thread = null;
+    droppedFrames = new StripedCounter ();
+    bytesWritten = 0;
+    currentFile = null;
+    channel = null;
+    segmentEnd = 0;
+    segmentSize = 0;
+    retryTime = 0;
+  }
+
+
+  /**
+   * Start the thread writing the recording to disk.
+   */
+
+  public synchronized void
+  start ()
+  {
+    if (thread != null)
+      return;
+
+    thread = Workers.getDefault ().newThread (this, "StreamRecorder: " + directory);
+    thread.start ();
+  }
+
+
+  /**
+   * Stop recording, writing out whatever has been buffered and closing the
+   * current segment.  This waits for the disk, but outside the recorder's
+   * monitor, so frames arriving meanwhile are dropped rather than held up.
+   */
+
+  public void
+  close ()
+  {
+    Thread writer;
+
+    synchronized (this)
+      {
+        buffer.close ();
+
+        writer = thread;
+        thread = null;
+      }
+
+    if (writer == null)
+      return;
+
+    // Wait even if interrupted, so the last segment is closed, but keep 
+    // the interrupt for the caller.
+
+    boolean interrupted = Thread.interrupted ();
+
+    while (true)
+      {
+        try
+          {
+            writer.join ();
+            break;
+          }
+        catch (InterruptedException e)
+          {
+            interrupted = true;
+          }
+      }
+
+    if (interrupted)
+      Thread.currentThread ().interrupt ();
+  }
+
+
+  /**
+   * Copy a frame into the recorder's buffer, or drop it if the buffer is
+   * full.  This never blocks, and takes no lock of the recorder's, so it
+   * may be called from more than one network thread at once (as while 
+   * switching streams).
+   *
+   * @see uryPlayer.core.FrameListener#frameReceived(byte[], int, int, MpegFrameHeader)
+   */
+
+  @Override
+  public void
+  frameReceived (byte[] b, int off, int len, MpegFrameHeader header)
+  {
+    if (buffer.offer (b, off, len) == false && buffer.isClosed () == false)
+      droppedFrames.increment ();
+  }
+
+
+  /**
+   * The writing thread: move frames from the buffer to disk until the
+   * recorder is closed.
+   */
+
+  @Override
+  public void
+  run ()
+  {
+    MpegFrameReader reader = new MpegFrameReader (buffer.asInputStream ());
+
+    try
+      {
+        int len;
+
+        while ((len = reader.readFrame ()) != -1)
+          {
+            writeFrame (reader.getBuffer (), reader.getFrameOffset (), len);
+
+            // Write out whenever the buffer runs dry, so the recording on 
+            // disk is never far behind.
+
+            if (buffer.available () == 0)
+              flush ();
+          }
+      }
+    catch (IOException e)
+      {
+        // This is normal (the buffer only ends the stream when the 
+        // recorder is closed).
+      }
+    finally
+      {
+        flush ();
+        closeSegment ();
+      }
+  }
+
+
+  /**
+   * @return  the number of frames left out of the recording because the
+   *          disk could not keep up or could not be written to.
+   */
+
+  public long
+  getDroppedFrames ()
+  {
+    return droppedFrames.sum ();
+  }
+
+
+  /**
+   * @return  the number of bytes recorded to disk.
+   */
+
+  public long
+  getBytesWritten ()
+  {
+    return bytesWritten;
+  }
+
+
+  /**
+   * @return  the segment currently being recorded to, or null if there is
+   *          none.
+   */
+
+  public File
+  getCurrentFile ()
+  {
+    return currentFile;
+  }
+
+
+  /**
+   * Queue a frame for writing, starting a new segment first if it is due.
+   *
+   * @param b    The array holding the frame.
+   * @param off  The offset of the frame.
+   * @param len  The length of the frame.
+   */
+
+  private void
+  writeFrame (byte[] b, int off, int len)
+  {
+    long now = System.currentTimeMillis ();
+
+    if (channel == null && now < retryTime)
+      {
+        droppedFrames.increment ();
+        return;
+      }
+
+    if (channel == null
+        || (segmentMillis > 0 && now >= segmentEnd)
+        || (segmentBytes > 0 && segmentSize > 0 && segmentSize + len > segmentBytes))
+      {
+        flush ();
+        closeSegment ();
+        openSegment (now);
+
+        if (channel == null)
+          {
+            droppedFrames.increment ();
+            return;
+          }
+      }
+
+    if (writeBuffer.remaining () < len)
+      flush ();
+
+    writeBuffer.put (b, off, len);
+    segmentSize += len;
+  }
+
+
+  /**
+   * Write out whatever is waiting in the write buffer.  If this fails, the
+   * segment is abandoned, and a new one is started with the next frame.
+   */
+
+  private void
+  flush ()
+  {
+    writeBuffer.flip ();
+
+    try
+      {
+        while (channel != null && writeBuffer.hasRemaining ())
+          bytesWritten += channel.write (writeBuffer);
+      }
+    catch (IOException e)
+      {
+        System.err.println ("Recording to " + currentFile + " failed: " + e);
+        closeSegment ();
+        retryTime = System.currentTimeMillis () + RETRY_MILLIS;
+      }
+    finally
+      {
+        writeBuffer.clear ();
+      }
+  }
+
+
+  /**
+   * Start a new segment file.
+   *
+   * @param now  The current time, in milliseconds.
+   */
+
+  private void
+  openSegment (long now)
+  {
+    String name = String.format ("%s-%tY%<tm%<td-%<tH%<tM%<tS", prefix, new Date (now));
+    File file = new File (directory, name + ".mp3");
+
+    for (int i = 1; file.exists (); i++)
+      file = new File (directory, name + "-" + i + ".mp3");
+
+    try
+      {
+        channel = new FileOutputStream (file).getChannel ();
+        currentFile = file;
+      }
+    catch (IOException e)
+      {
+        System.err.println ("Cannot record to " + file + ": " + e);
+        retryTime = now + RETRY_MILLIS;
+      }
+
+    segmentSize = 0;
+
+    if (segmentMillis > 0)
+      segmentEnd = ((now / segmentMillis) + 1) * segmentMillis;
+  }
+
+
+  /**
+   * Close the current segment file, if there is one.
+   */
+
+  private void
+  closeSegment ()
+  {
+    try
+      {
+        if (channel != null)
+          channel.close ();
+      }
+    catch (IOException e)
+      {
+        // Nothing more can be done with the file at this point.
+      }
+
+    channel = null;
+    currentFile = null;
+  }
+}
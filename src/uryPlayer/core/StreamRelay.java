@@ -0,0 +1,723 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * Serves the stream being played to other machines over HTTP, so that many
+ * listeners on a local network share one connection to the URY server.
+ *
+ * The relay listens to the MP3 frames read by a StreamSource (the
+ * PlayerCore attaches it to whichever stream is playing), and keeps them
+ * in one ring buffer shared by every client.  Each client is just a
+ * position in the ring: its data is sent straight out of the ring with a
+ * gathering write, so the audio is never copied per client.  All the
+ * clients are served by one thread, with non-blocking sockets.
+ *
+ * Like Icecast, the relay sends a burst of recent audio to each new client,
+ * starting on a frame boundary, so that its player can start at once.  A
+ * client that falls so far behind that its audio is about to be
+ * overwritten is skipped ahead to the same point, and one that keeps
+ * falling behind (or stops reading altogether) is dropped.  A slow client
+ * only ever holds up itself.
+ */
+
+public class StreamRelay implements FrameListener, Runnable
+{
+  /**
+   * The size of the ring buffer shared by the clients, in bytes (around 
+   * forty seconds of the high-quality stream).
+   */
+
+  public static final int BUFFER_SIZE = 1024 * 1024;
+
+
+  /**
+   * The amount of audio sent to each client on connecting, in bytes 
+   * (Icecast's default burst size).
+   */
+
+  public static final int BURST_BYTES = 64 * 1024;
+
+
+  /**
+   * How far a client may fall behind before it is skipped ahead, in bytes.
+   * This leaves some slack before the client's audio is overwritten, as 
+   * the stream carries on arriving while the client is being served.
+   */
+
+  public static final int MAX_LAG_BYTES = BUFFER_SIZE - 256 * 1024;
+
+
+  /**
+   * The number of times a client may be skipped ahead, without catching 
+   * up to the live edge in between, before it is dropped as stuck.
+   */
+
+  public static final int MAX_SKIPS = 3;
+
+
+  /**
+   * The size of the request headers read, in bytes.
+   */
+
+  private static final int MAX_REQUEST_SIZE = 8192;
+
+
+  /**
+   * The number of recent frame starts remembered, for finding where to 
+   * start a burst.  This must cover at least BURST_BYTES of the smallest 
+   * frames.
+   */
+
+  private static final int FRAME_INDEX_SIZE = 1024;
+
+
+  /**
+   * The response sent to each client before the audio.
+   */
+
+  private static final String RESPONSE = "HTTP/1.0 200 OK\r\n"
+                                         + "Content-Type: audio/mpeg\r\n"
+                                         + "Cache-Control: no-cache\r\n"
+                                         + "\r\n";
+
+
+  /**
+   * A client of the relay.
+   */
+
+  private class Client
+  {
+    private final SocketChannel channel;
+    private final ByteBuffer request;
+    private final ByteBuffer[] views;
+    private SelectionKey key;
+    private long position;
+    private int skips;
+
+
+    /**
+     * Create a new client, which is not sent anything until its request 
+     * has been read.
+     *
+     * @param channel  The client's socket.
+     */
+
+    private
+    Client (SocketChannel channel)
+    {
+      this.channel = channel;
+
+      request = ByteBuffer.allocate (MAX_REQUEST_SIZE);
+
+      // The response header goes out in the same gathering write as the 
+      // start of the audio; the audio is sent from two views of the ring, 
+      // as it may wrap around the end.
+
+      views = new ByteBuffer[] { response.duplicate (),
+                                 ring.duplicate (),
+                                 ring.duplicate () };
+      key = null;
+      position = -1;
+      skips = 0;
+    }
+  }
+
+
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+  private final ByteBuffer ring;
+  private final ByteBuffer ringIn;
+  private final ByteBuffer response;
+  private final long[] frameStarts;
+  private final List<Client> clients;
+
+  private volatile Thread thread;
+  private volatile long writePosition;
+  private long frameCount;
+  private volatile long connections;
+  private volatile long bytesSent;
+  private volatile long skips;
+  private volatile long drops;
+
+
+  /**
+   * Create a new relay, listening on every interface.  The relay does not
+   * accept connections until started.
+   *
+   * @param port  The port to listen on, or 0 for any free port.
+   *
+   * @throws IOException  if the port cannot be listened on.
+   */
+
+  public
+  StreamRelay (int port) throws IOException
+  {
+    ring = ByteBuffer.allocateDirect (BUFFER_SIZE);
+    ringIn = ring.duplicate ();
+    response = ByteBuffer.wrap (RESPONSE.getBytes ("US-ASCII")).asReadOnlyBuffer ();
+    frameStarts = new long[FRAME_INDEX_SIZE];
+    clients = new ArrayList<Client> ();
+
+    selector = Selector.open ();
+    serverChannel = ServerSocketChannel.open ();
+
+    try
+      {
+        serverChannel.socket ().setReuseAddress (true);
+        serverChannel.socket ().bind (new InetSocketAddress (port));
+        serverChannel.configureBlocking (false);
+        serverChannel.register (selector, SelectionKey.OP_ACCEPT);
+      }
+    catch (IOException e)
+      {
+        serverChannel.close ();
+        selector.close ();
+        throw e;
+      }
+
+    thread = null;
+    writePosition = 0;
+    frameCount = 0;
+    connections = 0;
+    bytesSent = 0;
+    skips = 0;
+    drops = 0;
+  }
+
+
+  /**
+   * Start serving clients, in the background.
+   */
+
+  public synchronized void
+  start ()
+  {
+    if (thread != null)
+      return;
+
+    thread = Workers.getDefault ().newThread (this, "StreamRelay: " + getPort ());
+    thread.start ();
+  }
+
+
+  /**
+   * Stop the relay, dropping every client.
+   */
+
+  public void
+  close ()
+  {
+    Thread server;
+
+    synchronized (this)
+      {
+        try
+          {
+            serverChannel.close ();
+            selector.close ();
+          }
+        catch (IOException e)
+          {
+            // Nothing more can be done with the sockets at this point.
+          }
+
+        server = thread;
+        thread = null;
+      }
+
+    // Wait outside the monitor, which frameReceived needs, so that the 
+    // network thread is not held up meanwhile.
+
+    if (server == null)
+      return;
+
+    try
+      {
+        server.join ();
+      }
+    catch (InterruptedException e)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+  }
+
+
+  /**
+   * @return  the port the relay is listening on.
+   */
+
+  public int
+  getPort ()
+  {
+    return serverChannel.socket ().getLocalPort ();
+  }
+
+
+  /**
+   * @return  the number of connections accepted.
+   */
+
+  public long
+  getConnections ()
+  {
+    return connections;
+  }
+
+
+  /**
+   * @return  the number of clients currently connected.
+   */
+
+  public int
+  getClientCount ()
+  {
+    synchronized (clients)
+      {
+        return clients.size ();
+      }
+  }
+
+
+  /**
+   * @return  the number of stream bytes sent, over all clients.
+   */
+
+  public long
+  getBytesSent ()
+  {
+    return bytesSent;
+  }
+
+
+  /**
+   * @return  the number of times a client has been skipped ahead for 
+   *          falling behind.
+   */
+
+  public long
+  getSkips ()
+  {
+    return skips;
+  }
+
+
+  /**
+   * @return  the number of clients dropped for falling behind.
+   */
+
+  public long
+  getDrops ()
+  {
+    return drops;
+  }
+
+
+  /**
+   * Copy a frame into the ring, overwriting the oldest audio, and wake the
+   * serving thread.  This never blocks on the clients.
+   *
+   * @see uryPlayer.core.FrameListener#frameReceived(byte[], int, int, MpegFrameHeader)
+   */
+
+  @Override
+  public synchronized void
+  frameReceived (byte[] b, int off, int len, MpegFrameHeader header)
+  {
+    long start = writePosition;
+    int position = (int) (start % BUFFER_SIZE);
+    int first = Math.min (len, BUFFER_SIZE - position);
+
+    ringIn.clear ();
+    ringIn.position (position);
+    ringIn.put (b, off, first);
+
+    if (first < len)
+      {
+        ringIn.position (0);
+        ringIn.put (b, off + first, len - first);
+      }
+
+    synchronized (frameStarts)
+      {
+        frameStarts[(int) (frameCount % FRAME_INDEX_SIZE)] = start;
+        frameCount++;
+      }
+
+    // Publishing the new position last means the serving thread never 
+    // sends part of a frame that is still being copied.
+
+    writePosition = start + len;
+    selector.wakeup ();
+  }
+
+
+  /**
+   * Serve clients until the relay is closed.
+   */
+
+  @Override
+  public void
+  run ()
+  {
+    try
+      {
+        while (serverChannel.isOpen ())
+          {
+            selector.select ();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys ().iterator ();
+
+            while (keys.hasNext ())
+              {
+                SelectionKey key = keys.next ();
+                keys.remove ();
+
+                if (key.isValid () == false)
+                  continue;
+
+                if (key.isAcceptable ())
+                  accept ();
+                else
+                  {
+                    Client client = (Client) key.attachment ();
+
+                    if (key.isReadable ())
+                      read (client);
+                    if (key.isValid () && key.isWritable ())
+                      send (client);
+                  }
+              }
+
+            sendNewAudio ();
+          }
+      }
+    catch (ClosedSelectorException e)
+      {
+        // This is normal (it occurs when the relay is closed).
+      }
+    catch (IOException e)
+      {
+        if (serverChannel.isOpen ())
+          e.printStackTrace ();
+      }
+    finally
+      {
+        synchronized (clients)
+          {
+            for (Client client : new ArrayList<Client> (clients))
+              disconnect (client);
+          }
+      }
+  }
+
+
+  /**
+   * Accept a waiting connection, if there is one.
+   *
+   * @throws IOException  if the relay's socket fails.
+   */
+
+  private void
+  accept () throws IOException
+  {
+    SocketChannel channel = serverChannel.accept ();
+
+    if (channel == null)
+      return;
+
+    Client client = new Client (channel);
+
+    try
+      {
+        channel.configureBlocking (false);
+        channel.socket ().setTcpNoDelay (true);
+        client.key = channel.register (selector, SelectionKey.OP_READ, client);
+      }
+    catch (IOException e)
+      {
+        channel.close ();
+        return;
+      }
+
+    synchronized (clients)
+      {
+        clients.add (client);
+      }
+
+    connections++;
+  }
+
+
+  /**
+   * Read from a client: its request, if it has not been read yet, and 
+   * otherwise anything it sends (which is ignored) or the end of its 
+   * connection.
+   *
+   * @param client  The client.
+   */
+
+  private void
+  read (Client client)
+  {
+    // Once streaming, anything the client sends is thrown away.
+
+    if (client.position != -1)
+      client.request.clear ();
+
+    try
+      {
+        if (client.channel.read (client.request) == -1)
+          {
+            disconnect (client);
+            return;
+          }
+      }
+    catch (IOException e)
+      {
+        disconnect (client);
+        return;
+      }
+
+    if (client.position != -1)
+      return;
+
+    if (isRequestComplete (client.request) == false)
+      {
+        // A request too large to be real is given up on.
+
+        if (client.request.hasRemaining () == false)
+          disconnect (client);
+
+        return;
+      }
+
+    if (client.request.get (0) != 'G' || client.request.get (1) != 'E'
+        || client.request.get (2) != 'T')
+      {
+        disconnect (client);
+        return;
+      }
+
+    client.request.clear ();
+    client.position = burstStart ();
+    send (client);
+  }
+
+
+  /**
+   * Send new audio to every streaming client that is not already waiting 
+   * for room in its socket, and drop any client that has been waiting so 
+   * long that its audio has been overwritten.
+   */
+
+  private void
+  sendNewAudio ()
+  {
+    long end = writePosition;
+    List<Client> current;
+
+    synchronized (clients)
+      {
+        current = new ArrayList<Client> (clients);
+      }
+
+    for (Client client : current)
+      {
+        if (client.position == -1 || client.key.isValid () == false)
+          continue;
+
+        if ((client.key.interestOps () & SelectionKey.OP_WRITE) == 0)
+          {
+            if (client.position < end)
+              send (client);
+          }
+        else if (end - client.position > BUFFER_SIZE)
+          {
+            drops++;
+            disconnect (client);
+          }
+      }
+  }
+
+
+  /**
+   * Send a client as much of its response and audio as its socket will 
+   * take, skipping it ahead (or dropping it) first if it has fallen too 
+   * far behind.
+   *
+   * @param client  The client.
+   */
+
+  private void
+  send (Client client)
+  {
+    long end = writePosition;
+
+    if (end - client.position > MAX_LAG_BYTES)
+      {
+        if (client.skips >= MAX_SKIPS)
+          {
+            drops++;
+            disconnect (client);
+            return;
+          }
+
+        client.skips++;
+        skips++;
+        client.position = burstStart ();
+      }
+
+    ByteBuffer header = client.views[0];
+    ByteBuffer first = client.views[1];
+    ByteBuffer second = client.views[2];
+
+    int pending = (int) (end - client.position);
+    int start = (int) (client.position % BUFFER_SIZE);
+    int firstLength = Math.min (pending, BUFFER_SIZE - start);
+
+    first.clear ();
+    first.position (start);
+    first.limit (start + firstLength);
+
+    second.clear ();
+    second.limit (pending - firstLength);
+
+    try
+      {
+        int headerBefore = header.remaining ();
+        long written = client.channel.write (client.views);
+        long audio = written - (headerBefore - header.remaining ());
+
+        client.position += audio;
+        bytesSent += audio;
+
+        // A client that catches up is not stuck, however often it has 
+        // fallen behind before.
+
+        if (client.position >= end)
+          client.skips = 0;
+      }
+    catch (IOException e)
+      {
+        disconnect (client);
+        return;
+      }
+
+    // Wait for room in the socket if not everything went.
+
+    if (header.hasRemaining () || client.position < end)
+      client.key.interestOps (SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    else
+      client.key.interestOps (SelectionKey.OP_READ);
+  }
+
+
+  /**
+   * @return  where in the stream to start sending from, for a new client 
+   *          or one that has fallen behind: the start of the oldest frame 
+   *          within BURST_BYTES of the live edge.
+   */
+
+  private long
+  burstStart ()
+  {
+    long end = writePosition;
+    long start = end;
+
+    synchronized (frameStarts)
+      {
+        for (long i = frameCount - 1; i >= 0 && i >= frameCount - FRAME_INDEX_SIZE; i--)
+          {
+            long frameStart = frameStarts[(int) (i % FRAME_INDEX_SIZE)];
+
+            if (frameStart < end - BURST_BYTES)
+              break;
+
+            // The newest frame may not have been published yet.
+
+            if (frameStart <= end)
+              start = frameStart;
+          }
+      }
+
+    return start;
+  }
+
+
+  /**
+   * Close a client's connection and forget about it.
+   *
+   * @param client  The client.
+   */
+
+  private void
+  disconnect (Client client)
+  {
+    synchronized (clients)
+      {
+        clients.remove (client);
+      }
+
+    if (client.key != null)
+      client.key.cancel ();
+
+    try
+      {
+        client.channel.close ();
+      }
+    catch (IOException e)
+      {
+        // Nothing more can be done with the socket at this point.
+      }
+  }
+
+
+  /**
+   * @param request  The buffer the request is being read into.
+   *
+   * @return  true if the buffer holds the whole of the request headers.
+   */
+
+  private static boolean
+  isRequestComplete (ByteBuffer request)
+  {
+    for (int i = 3; i < request.position (); i++)
+      {
+        if (request.get (i - 3) == '\r' && request.get (i - 2) == '\n'
+            && request.get (i - 1) == '\r' && request.get (i) == '\n')
+          return true;
+      }
+
+    return false;
+  }
+}
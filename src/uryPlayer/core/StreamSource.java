@@ -0,0 +1,1344 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import javazoom.spi.mpeg.sampled.convert.MpegFormatConversionProvider;
+import javazoom.spi.mpeg.sampled.file.MpegAudioFileReader;
+
+
+/**
+ * The network and decoding stages of the playback pipeline.
+ *
+ * A StreamSource runs two threads.  The network stage reads MP3 frames from
+ * the stream as fast as they arrive and places them in a raw ring buffer; the
+ * decode stage reads from that buffer, decodes to 16-bit PCM and places the
+ * result in a PCM ring buffer, from which the PlayerCore feeds the sound
+ * card.  A stall in one stage is therefore absorbed by the buffers either
+ * side of it instead of reaching the other stages.
+ *
+ * If the connection fails or the stream ends, the network stage reconnects
+ * (backing off between attempts) while the later stages carry on with what
+ * is buffered, so an outage is heard as a short gap rather than the end of
+ * playback.
+ *
+ * Given a TimeShiftBuffer, the source keeps the frames there instead of in
+ * the raw buffer, and decodes from its read position, so that playback can
+ * be paused and rewound while the network stage carries on at the live
+ * edge.  The buffer can be handed over while the source is running (as
+ * when the player switches to it), taking over at the next frame.
+ */
+
+public class StreamSource
+{
+  /**
+   * The size of the buffer between the network and decode stages, in bytes
+   * (a few seconds of the high-quality stream).
+   */
+
+  public static final int RAW_BUFFER_SIZE = 64 * 1024;
+
+
+  /**
+   * The size of the buffer between the decode and output stages, in bytes
+   * (around six seconds of 44.1kHz stereo PCM, enough to hold the jitter 
+   * buffer at its largest target).
+   */
+
+  public static final int PCM_BUFFER_SIZE = 1024 * 1024;
+
+
+  /**
+   * The size of the chunks moved by each stage, in bytes.
+   */
+
+  public static final int CHUNK_SIZE = 4096;
+
+
+  /**
+   * The time allowed for connecting to the stream, in milliseconds.
+   */
+
+  public static final int CONNECT_TIMEOUT = 5000;
+
+
+  /**
+   * The time the stream may go without sending anything before the
+   * connection is dropped and remade, in milliseconds.
+   */
+
+  public static final int READ_TIMEOUT = 5000;
+
+
+  /**
+   * How long a connection must last to reset the reconnection backoff, in
+   * milliseconds.
+   */
+
+  public static final long STABLE_CONNECTION_MILLIS = 30000;
+
+
+  /**
+   * How long a read of MP3 frames by the decode stage must wait for one
+   * to arrive, for the decoder to count as having caught up with the
+   * network stage, in nanoseconds.
+   */
+
+  private static final long CAUGHT_UP_NANOS = 1000000L;
+
+
+  /**
+   * The number of MP3 frames, and of decoded chunks, whose timestamps are
+   * kept for latency tracing.
+   */
+
+  private static final int TRACE_SIZE = 512;
+
+
+  private final String streamURL;
+  private final AudioFormat outputFormat;
+  private final Workers workers;
+  private final ByteRingBuffer rawBuffer;
+  private final ByteRingBuffer pcmBuffer;
+  private final Lock formatLock;
+  private final Condition formatKnown;
+  private final List<FrameListener> frameListeners;
+
+  private volatile boolean running;
+  private volatile HttpStreamConnection connection;
+  private volatile AudioFormat format;
+  private volatile boolean converted;
+  private volatile int samplesPerFrame;
+  private volatile int bitrate;
+  private volatile long bytesReceived;
+  private boolean formatFailed;
+  private volatile long reconnects;
+  private volatile long lastFrameTime;
+  private volatile TimeShiftBuffer timeShift;
+  private final Lock timeShiftLock;
+  private int batchMillis;
+  private PlayerCounters counters;
+  private LatencyTracer tracer;
+  private final TimestampRing arrivals;
+  private final TimestampRing decodes;
+  private final PlayerEvents events;
+
+  private Thread networkThread;
+  private Thread decodeThread;
+
+
+  /**
+   * Create a new StreamSource.
+   *
+   * The source does not connect to the stream until start is called.
+   *
+   * @param inURL  The stream URL to connect to.
+   */
+
+  public
+  StreamSource (String inURL)
+  {
+    this (inURL, null);
+  }
+
+
+  /**
+   * Create a new StreamSource that converts its output to a given format,
+   * if the stream decodes to something else and Java Sound can convert it.
+   *
+   * This lets a new stream take over an audio line already opened for
+   * another.
+   *
+   * @param inURL         The stream URL to connect to.
+   * @param outputFormat  The preferred PCM format, or null to use whatever
+   *                      the stream decodes to.
+   */
+
+  public
+  StreamSource (String inURL, AudioFormat outputFormat)
+  {
+    this (inURL, outputFormat, Workers.getDefault ());
+  }
+
+
+  /**
+   * Create a new StreamSource that runs its stages on a given set of
+   * workers.
+   *
+   * @param inURL         The stream URL to connect to.
+   * @param outputFormat  The preferred PCM format, or null to use whatever
+   *                      the stream decodes to.
+   * @param workers       The workers to run the network and decode stages
+   *                      on.
+   */
+
+  public
+  StreamSource (String inURL, AudioFormat outputFormat, Workers workers)
+  {
+    streamURL = inURL;
+    this.outputFormat = outputFormat;
+    this.workers = workers;
+    rawBuffer = new ByteRingBuffer (RAW_BUFFER_SIZE);
+    pcmBuffer = new ByteRingBuffer (PCM_BUFFER_SIZE);
+    formatLock = new ReentrantLock ();
+    formatKnown = formatLock.newCondition ();
+    frameListeners = new CopyOnWriteArrayList<FrameListener> ();
+
+    running = false;
+    connection = null;
+    format = null;
+    converted = false;
+    samplesPerFrame = 0;
+    bitrate = 0;
+    bytesReceived = 0;
+    formatFailed = false;
+    reconnects = 0;
+    lastFrameTime = 0;
+    timeShift = null;
+    timeShiftLock = new ReentrantLock ();
+    counters = new PlayerCounters ();
+    tracer = new LatencyTracer ();
+    arrivals = new TimestampRing (TRACE_SIZE);
+    decodes = new TimestampRing (TRACE_SIZE);
+    events = PlayerEvents.getDefault ();
+  }
+
+
+  /**
+   * @return  the stream URL this source reads from.
+   */
+
+  public String
+  getURL ()
+  {
+    return streamURL;
+  }
+
+
+  /**
+   * @return  the buffer into which decoded PCM is placed.
+   */
+
+  public ByteRingBuffer
+  getPCMBuffer ()
+  {
+    return pcmBuffer;
+  }
+
+
+  /**
+   * @return  the format of the PCM this source produces, or null if it is
+   *          not yet known.
+   */
+
+  public AudioFormat
+  getFormat ()
+  {
+    return format;
+  }
+
+
+  /**
+   * @return  true if the PCM this source produces has been converted from
+   *          the format the stream decodes to.
+   */
+
+  public boolean
+  isConverted ()
+  {
+    return converted;
+  }
+
+
+  /**
+   * @return  true if this source has stopped without ever determining
+   *          its format.
+   */
+
+  public boolean
+  hasFailed ()
+  {
+    formatLock.lock ();
+
+    try
+      {
+        return formatFailed;
+      }
+    finally
+      {
+        formatLock.unlock ();
+      }
+  }
+
+
+  /**
+   * Get the number of bytes of PCM each MP3 frame decodes to, so that
+   * positions in the PCM buffer can be lined up with frame boundaries.
+   *
+   * @return  the number of bytes per MP3 frame, or the size of a single
+   *          PCM frame if that is not known (or the PCM was converted).
+   */
+
+  public int
+  getPCMBytesPerFrame ()
+  {
+    AudioFormat current = format;
+
+    if (current == null)
+      return 1;
+    else if (samplesPerFrame == 0 || converted)
+      return current.getFrameSize ();
+    else
+      return samplesPerFrame * current.getFrameSize ();
+  }
+
+
+  /**
+   * @return  the bitrate of the last frame received, in kilobits per 
+   *          second, or 0 if no frames have been received.
+   */
+
+  public int
+  getBitrate ()
+  {
+    return bitrate;
+  }
+
+
+  /**
+   * @return  the number of bytes of MP3 frames received from the stream.
+   */
+
+  public long
+  getBytesReceived ()
+  {
+    return bytesReceived;
+  }
+
+
+  /**
+   * @return  true if the network stage has filled its buffer, and so is 
+   *          reading no faster than the stream is being decoded.  With a
+   *          time-shift buffer, which never fills, this is true whenever 
+   *          as much is waiting to be decoded as would fill the raw buffer.
+   */
+
+  public boolean
+  isNetworkBufferFull ()
+  {
+    if (timeShift != null)
+      return (timeShift.getUnreadBytes () > RAW_BUFFER_SIZE - MpegFrameReader.BUFFER_SIZE);
+    else
+      return (rawBuffer.free () < MpegFrameReader.BUFFER_SIZE);
+  }
+
+
+  /**
+   * Keep the stream's frames in a time-shift buffer, rather than the raw 
+   * buffer, from the next frame on; or, given null, stop keeping them in 
+   * one.  Once this returns null, no more frames reach the old buffer, 
+   * which is then free to be reset and given to another source.  The 
+   * buffer belongs to the caller, and is not closed with the source.
+   *
+   * The decode stage moves over to the time-shift buffer once it has 
+   * decoded what the raw buffer holds.  A source that stops keeping its 
+   * frames in a time-shift buffer stops decoding, so this is only done to 
+   * a source that is no longer wanted.
+   *
+   * @param buffer  The time-shift buffer, or null.
+   */
+
+  public void
+  setTimeShift (TimeShiftBuffer buffer)
+  {
+    timeShiftLock.lock ();
+
+    try
+      {
+        timeShift = buffer;
+      }
+    finally
+      {
+        timeShiftLock.unlock ();
+      }
+  }
+
+
+  /**
+   * Move the stream along in batches rather than a frame at a time, to 
+   * save power: the network stage pauses for this long whenever it has 
+   * read all that has arrived (see HttpStreamConnection.setReadPauseMillis), 
+   * and the decode stage sleeps for this long whenever it has decoded all 
+   * that has been read.  Both then wake a few times a second, not dozens, 
+   * and the audio reaches the PCM buffer up to twice this late.  This must 
+   * be called before start.
+   *
+   * @param millis  The batch length, in milliseconds, or 0 (the default) 
+   *                to move each frame on as soon as it arrives.
+   */
+
+  public synchronized void
+  setBatchMillis (int millis)
+  {
+    batchMillis = Math.max (0, millis);
+  }
+
+
+  /**
+   * @return  the batch length, in milliseconds, or 0 if the stream is not 
+   *          batched.
+   */
+
+  public synchronized int
+  getBatchMillis ()
+  {
+    return batchMillis;
+  }
+
+
+  /**
+   * Count into a given set of counters, such as those of the PlayerCore 
+   * playing this source, rather than a set of the source's own.  This must 
+   * be called before start.
+   *
+   * @param counters  The counters.
+   */
+
+  public synchronized void
+  setCounters (PlayerCounters counters)
+  {
+    this.counters = counters;
+  }
+
+
+  /**
+   * @return  the counters this source counts into.
+   */
+
+  public synchronized PlayerCounters
+  getCounters ()
+  {
+    return counters;
+  }
+
+
+  /**
+   * Record the latency of the network and decode stages in a given tracer,
+   * such as that of the PlayerCore playing this source, rather than one of
+   * the source's own.  This must be called before start.
+   *
+   * @param tracer  The tracer.
+   */
+
+  public synchronized void
+  setTracer (LatencyTracer tracer)
+  {
+    this.tracer = tracer;
+  }
+
+
+  /**
+   * Look up when the decoded audio at a position in the PCM buffer was 
+   * read from the socket (as an MP3 frame) and decoded, for latency 
+   * tracing.
+   *
+   * @param position  The position, counting bytes from the first ever 
+   *                  written to the PCM buffer.
+   * @param times     An array to put the read and decode times in, in 
+   *                  nanoseconds.
+   *
+   * @return  false if the times are not known.
+   */
+
+  public boolean
+  getPCMTimes (long position, long[] times)
+  {
+    return (decodes.lookup (position, times) && times[0] != 0);
+  }
+
+
+  /**
+   * @return  the time-shift buffer the stream's frames are kept in, or 
+   *          null if there is none.
+   */
+
+  public TimeShiftBuffer
+  getTimeShift ()
+  {
+    return timeShift;
+  }
+
+
+  /**
+   * @return  the time since a frame last arrived from the stream (or since 
+   *          the source was started, if none has), in milliseconds.
+   */
+
+  public long
+  getMillisSinceLastFrame ()
+  {
+    return currentMillis () - lastFrameTime;
+  }
+
+
+  /**
+   * @return  the number of times the connection to the stream has been 
+   *          remade.
+   */
+
+  public long
+  getReconnects ()
+  {
+    return reconnects;
+  }
+
+
+  /**
+   * Add a listener to be given each MP3 frame read from the stream, before
+   * it is decoded.  This may be called at any time, from any thread.
+   *
+   * @param listener  The listener.
+   */
+
+  public void
+  addFrameListener (FrameListener listener)
+  {
+    frameListeners.add (listener);
+  }
+
+
+  /**
+   * Remove a frame listener.  This may be called at any time, from any
+   * thread.
+   *
+   * @param listener  The listener.
+   */
+
+  public void
+  removeFrameListener (FrameListener listener)
+  {
+    frameListeners.remove (listener);
+  }
+
+
+  /**
+   * Start the network and decode stages.
+   */
+
+  public synchronized void
+  start ()
+  {
+    if (running)
+      return;
+
+    running = true;
+    lastFrameTime = currentMillis ();
+
+    networkThread = workers.newThread (new Runnable ()
+    {
+      @Override
+      public void
+      run ()
+      {
+        networkStage ();
+      }
+    }, "StreamSource network: " + streamURL);
+
+    decodeThread = workers.newThread (new Runnable ()
+    {
+      @Override
+      public void
+      run ()
+      {
+        decodeStage ();
+      }
+    }, "StreamSource decode: " + streamURL);
+
+    networkThread.start ();
+    decodeThread.start ();
+  }
+
+
+  /**
+   * Stop both stages and wait for them to finish.
+   *
+   * The wait is made outside the object's monitor, which would otherwise
+   * pin a virtual thread to its carrier; and it is not cut short by the
+   * caller having been interrupted (as a player's thread is when it is
+   * stopped), the interrupt being kept for the caller to notice.
+   */
+
+  public void
+  close ()
+  {
+    Thread network;
+    Thread decode;
+
+    synchronized (this)
+      {
+        running = false;
+
+        // Closing the connection unblocks a network stage waiting on it.
+
+        closeNetworkStream ();
+        rawBuffer.close ();
+        pcmBuffer.close ();
+
+        network = networkThread;
+        decode = decodeThread;
+        networkThread = null;
+        decodeThread = null;
+      }
+
+    if (network != null)
+      network.interrupt ();
+    if (decode != null)
+      decode.interrupt ();
+
+    awaitStage (network);
+    awaitStage (decode);
+  }
+
+
+  /**
+   * Wait for a stage's thread to finish, even if the calling thread is
+   * interrupted while waiting, keeping any interrupt for the caller.
+   *
+   * @param stage  The stage's thread, or null if it was never started.
+   */
+
+  private static void
+  awaitStage (Thread stage)
+  {
+    if (stage == null || stage == Thread.currentThread ())
+      return;
+
+    boolean interrupted = Thread.interrupted ();
+
+    while (true)
+      {
+        try
+          {
+            stage.join ();
+            break;
+          }
+        catch (InterruptedException e)
+          {
+            interrupted = true;
+          }
+      }
+
+    if (interrupted)
+      Thread.currentThread ().interrupt ();
+  }
+
+
+  /**
+   * Wait for the decode stage to read the stream header and determine the
+   * format of the decoded audio.
+   *
+   * @param timeout  The maximum time to wait, in milliseconds, or 0 to wait
+   *                 until the format is known or the source is closed.
+   *
+   * @return  the decoded PCM format, or null if the stream could not be
+   *          decoded or the timeout expired.
+   *
+   * @throws InterruptedException  if the waiting thread is interrupted.
+   */
+
+  public AudioFormat
+  awaitFormat (long timeout) throws InterruptedException
+  {
+    long remaining = TimeUnit.MILLISECONDS.toNanos (timeout);
+
+    formatLock.lock ();
+
+    try
+      {
+        while (format == null && formatFailed == false && running)
+          {
+            if (timeout == 0)
+              formatKnown.await ();
+            else if (remaining > 0)
+              remaining = formatKnown.awaitNanos (remaining);
+            else
+              break;
+          }
+
+        return format;
+      }
+    finally
+      {
+        formatLock.unlock ();
+      }
+  }
+
+
+  /**
+   * The network stage: copy whole MP3 frames from the stream into the raw
+   * buffer, reconnecting whenever the stream fails or ends.
+   *
+   * Only whole frames reach the raw buffer, and each new connection is
+   * resynchronised to its first frame header, so the decode stage sees one
+   * unbroken stream of frames across reconnections.
+   */
+
+  private void
+  networkStage ()
+  {
+    Backoff backoff = new Backoff ();
+    StripedCounter reconnectCount = getCounters ().getReconnects ();
+    ByteBuffer networkBuffer = ByteBuffer.allocateDirect (HttpStreamConnection.BUFFER_SIZE);
+
+    try
+      {
+        while (running)
+          {
+            long connectTime = System.currentTimeMillis ();
+            long connectNanos = System.nanoTime ();
+            String cause = null;
+
+            try
+              {
+                copyFrames (connect (networkBuffer), connectNanos);
+              }
+            catch (IOException e)
+              {
+                // A read failing because close shut the stream is expected.
+
+                if (running)
+                  System.err.println ("Stream " + streamURL + " failed: " + e);
+
+                cause = e.toString ();
+              }
+            finally
+              {
+                closeNetworkStream ();
+              }
+
+            if (running)
+              {
+                // A connection that lasted a while counts as a success, so
+                // the next failure starts backing off from scratch.
+
+                if (System.currentTimeMillis () - connectTime >= STABLE_CONNECTION_MILLIS)
+                  backoff.reset ();
+
+                long delay = backoff.nextDelay ();
+
+                reconnects++;
+                reconnectCount.increment ();
+                events.reconnect (streamURL, cause, delay);
+                Thread.sleep (delay);
+              }
+          }
+      }
+    catch (InterruptedException e)
+      {
+        // This is normal (it occurs when the source is closed).
+      }
+    finally
+      {
+        closeNetworkStream ();
+        rawBuffer.close ();
+      }
+  }
+
+
+  /**
+   * Open a connection to the stream.
+   *
+   * The connection is published before connecting, so that closing the 
+   * source can abort a connection attempt.
+   *
+   * @param networkBuffer  The direct buffer to read the stream into.
+   *
+   * @return  the stream of MP3 data.
+   *
+   * @throws IOException  if the connection fails or the source is closed.
+   */
+
+  private InputStream
+  connect (ByteBuffer networkBuffer) throws IOException
+  {
+    HttpStreamConnection newConnection = new HttpStreamConnection (networkBuffer, CONNECT_TIMEOUT, READ_TIMEOUT);
+    connection = newConnection;
+
+    // If the source was closed before the connection was published, 
+    // nobody else will close it.
+
+    if (running == false)
+      closeNetworkStream ();
+
+    newConnection.setReadPauseMillis (getBatchMillis ());
+    newConnection.setBlocking (workers.isVirtual ());
+
+    long connectNanos = System.nanoTime ();
+
+    newConnection.connect (streamURL);
+    events.connected (streamURL, System.nanoTime () - connectNanos);
+
+    return newConnection.getInputStream ();
+  }
+
+
+  /**
+   * Copy frames from a connection into the raw buffer (or the time-shift
+   * buffer) until the connection ends or the source is closed.
+   *
+   * @param in            The stream of MP3 data.
+   * @param connectNanos  When connecting started, from System.nanoTime.
+   *
+   * @throws IOException           if the connection fails.
+   * @throws InterruptedException  if the source is closed.
+   */
+
+  private void
+  copyFrames (InputStream in, long connectNanos) throws IOException, InterruptedException
+  {
+    MpegFrameReader reader = new MpegFrameReader (in);
+    StripedCounter byteCount = getCounters ().getBytesReceived ();
+    int frameLength = 0;
+    boolean first = true;
+
+    while (running && frameLength != -1)
+      {
+        frameLength = reader.readFrame ();
+
+        if (frameLength != -1)
+          {
+            MpegFrameHeader header = reader.getHeader ();
+
+            if (first)
+              {
+                events.firstByte (streamURL, System.nanoTime () - connectNanos);
+                first = false;
+              }
+
+            if (samplesPerFrame == 0)
+              samplesPerFrame = header.getSamplesPerFrame ();
+
+            bitrate = header.getBitrate ();
+            arrivals.add (bytesReceived, System.nanoTime (), 0);
+            bytesReceived += frameLength;
+            byteCount.add (frameLength);
+            lastFrameTime = currentMillis ();
+
+            for (FrameListener listener : frameListeners)
+              listener.frameReceived (reader.getBuffer (), reader.getFrameOffset (), frameLength, header);
+
+            if (shiftFrame (reader.getBuffer (), reader.getFrameOffset (), frameLength, header) == false)
+              rawBuffer.write (reader.getBuffer (), reader.getFrameOffset (), frameLength);
+          }
+      }
+  }
+
+
+  /**
+   * Hand a frame to the time-shift buffer, if there is one.  The first 
+   * time, the raw buffer is closed, so that the decode stage moves over to 
+   * the time-shift buffer once it has decoded what the raw buffer holds.
+   *
+   * @param b       The array holding the frame.
+   * @param off     The offset of the frame.
+   * @param len     The length of the frame.
+   * @param header  The frame's header.
+   *
+   * @return  true if the frame went to the time-shift buffer; false if 
+   *          there is none, and it should go to the raw buffer.
+   */
+
+  private boolean
+  shiftFrame (byte[] b, int off, int len, MpegFrameHeader header)
+  {
+    timeShiftLock.lock ();
+
+    try
+      {
+        TimeShiftBuffer shift = timeShift;
+
+        if (shift == null)
+          return false;
+
+        if (rawBuffer.isClosed () == false)
+          rawBuffer.close ();
+
+        shift.frameReceived (b, off, len, header);
+        return true;
+      }
+    finally
+      {
+        timeShiftLock.unlock ();
+      }
+  }
+
+
+  /**
+   * The decode stage: decode the raw buffer into the PCM buffer.
+   *
+   * The time spent decoding each chunk is counted, less the time spent 
+   * waiting on the network stage, as is the number of MP3 frames decoded.  
+   * The frames are counted from the PCM decoded so far, scaled back to the 
+   * stream's own sample rate if it was converted.  Each chunk is also 
+   * stamped with when the frame it came from was read from the socket (as 
+   * near as the decoder's read-ahead allows) and when it was decoded, for 
+   * the output stage to trace.
+   */
+
+  private void
+  decodeStage ()
+  {
+    byte[] chunk = new byte[CHUNK_SIZE];
+    AudioInputStream in = null;
+    PlayerCounters decodeCounters = getCounters ();
+    StripedCounter frameCount = decodeCounters.getFramesDecoded ();
+    StripedCounter nanoCount = decodeCounters.getDecodeNanos ();
+    LatencyTracer decodeTracer = getTracer ();
+    int batch = getBatchMillis ();
+    long[] times = new long[2];
+
+    try
+      {
+        FrameInput input = new FrameInput ();
+        WaitTimer frames = new WaitTimer (input);
+
+        in = new MpegAudioFileReader ().getAudioInputStream (frames);
+
+        AudioFormat baseFormat = in.getFormat ();
+        AudioFormat decodedFormat = new AudioFormat (AudioFormat.Encoding.PCM_SIGNED,
+                                                     baseFormat.getSampleRate (),
+                                                     16,
+                                                     baseFormat.getChannels (),
+                                                     baseFormat.getChannels () * 2,
+                                                     baseFormat.getSampleRate (),
+                                                     false);
+        AudioInputStream din = new MpegFormatConversionProvider ().getAudioInputStream (decodedFormat, in);
+
+        if (outputFormat != null
+            && outputFormat.matches (decodedFormat) == false
+            && AudioSystem.isConversionSupported (outputFormat, decodedFormat))
+          {
+            din = AudioSystem.getAudioInputStream (outputFormat, din);
+            converted = true;
+          }
+
+        setFormat (din.getFormat ());
+
+        // The PCM frames decoded at the stream's own sample rate for each 
+        // one read back, in case it has been converted to another.
+
+        AudioFormat pcmFormat = din.getFormat ();
+        double rateRatio = baseFormat.getSampleRate () / pcmFormat.getSampleRate ();
+        int pcmFrameSize = pcmFormat.getFrameSize ();
+
+        int nBytesRead = 0;
+        long pcmPosition = 0;
+        long framesCounted = 0;
+
+        while (running && nBytesRead != -1)
+          {
+            long startTime = System.nanoTime ();
+            long startWait = frames.getWaitNanos ();
+
+            nBytesRead = din.read (chunk, 0, chunk.length);
+
+            long decodedTime = System.nanoTime ();
+            long waitNanos = frames.getWaitNanos () - startWait;
+            nanoCount.add ((decodedTime - startTime) - waitNanos);
+
+            if (nBytesRead > 0)
+              {
+                long readTime = readTime (input.getTimeShift (), frames, times);
+
+                if (readTime != 0)
+                  decodeTracer.recordDecode (readTime, decodedTime);
+
+                decodes.add (pcmPosition, readTime, decodedTime);
+                pcmBuffer.write (chunk, 0, nBytesRead);
+                pcmPosition += nBytesRead;
+
+                // Count from the total so far, so no partial frame is lost 
+                // between chunks.  (The network stage learns the frame 
+                // size before handing over the first frame.)
+
+                int frameSamples = samplesPerFrame;
+
+                if (frameSamples > 0)
+                  {
+                    long decoded = (long) ((pcmPosition / pcmFrameSize) * rateRatio / frameSamples);
+
+                    frameCount.add (decoded - framesCounted);
+                    framesCounted = decoded;
+                  }
+              }
+
+            // Having had to wait for frames, let the next batch pile up 
+            // rather than waking for each frame as it arrives.
+
+            if (batch > 0 && waitNanos >= CAUGHT_UP_NANOS)
+              Thread.sleep (batch);
+          }
+
+        din.close ();
+      }
+    catch (UnsupportedAudioFileException e)
+      {
+        if (running)
+          e.printStackTrace ();
+      }
+    catch (IOException e)
+      {
+        if (running)
+          e.printStackTrace ();
+      }
+    catch (InterruptedException e)
+      {
+        // This is normal (it occurs when the source is closed).
+      }
+    finally
+      {
+        formatLock.lock ();
+
+        try
+          {
+            formatFailed = (format == null);
+            formatKnown.signalAll ();
+          }
+        finally
+          {
+            formatLock.unlock ();
+          }
+
+        pcmBuffer.close ();
+      }
+  }
+
+
+  /**
+   * @return  the latency tracer this source records in.
+   */
+
+  private synchronized LatencyTracer
+  getTracer ()
+  {
+    return tracer;
+  }
+
+
+  /**
+   * Work out when the frame the decoder last read was read from the 
+   * socket.
+   *
+   * @param shift   The time-shift buffer being decoded from, or null.
+   * @param frames  The stream of frames being decoded.
+   * @param times   A scratch array of two timestamps.
+   *
+   * @return  the time, in nanoseconds, or 0 if it is not known, or if 
+   *          playback has been time-shifted (when the latency would be 
+   *          the time shift rather than the pipeline's).
+   */
+
+  private long
+  readTime (TimeShiftBuffer shift, WaitTimer frames, long[] times)
+  {
+    if (shift != null)
+      return (shift.getDelayMillis () == 0 ? shift.getReadArrivalTime () : 0);
+    else if (arrivals.lookup (frames.getBytesRead () - 1, times))
+      return times[0];
+    else
+      return 0;
+  }
+
+
+  /**
+   * Publish the decoded format to anyone waiting in awaitFormat.
+   *
+   * @param decodedFormat  The format of the decoded PCM.
+   */
+
+  private void
+  setFormat (AudioFormat decodedFormat)
+  {
+    formatLock.lock ();
+
+    try
+      {
+        format = decodedFormat;
+        formatKnown.signalAll ();
+      }
+    finally
+      {
+        formatLock.unlock ();
+      }
+  }
+
+
+  /**
+   * Close the network connection, if it is open.  This wakes the network
+   * stage if it is waiting on the connection.
+   */
+
+  private void
+  closeNetworkStream ()
+  {
+    HttpStreamConnection temp = connection;
+    connection = null;
+
+    if (temp != null)
+      temp.close ();
+  }
+
+
+  /**
+   * The frames for the decode stage: those in the raw buffer, and then, 
+   * once the network stage has moved over to a time-shift buffer (and so 
+   * closed the raw buffer), those in the time-shift buffer.
+   */
+
+  private class FrameInput extends InputStream
+  {
+    private final InputStream raw;
+    private final byte[] single;
+    private TimeShiftBuffer shift;
+    private InputStream shifted;
+
+
+    /**
+     * Start reading from the raw buffer.
+     */
+
+    private
+    FrameInput ()
+    {
+      raw = rawBuffer.asInputStream ();
+      single = new byte[1];
+      shift = null;
+      shifted = null;
+    }
+
+
+    /**
+     * @return  the time-shift buffer being read from, or null if the raw 
+     *          buffer is.
+     */
+
+    private TimeShiftBuffer
+    getTimeShift ()
+    {
+      return shift;
+    }
+
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+
+    @Override
+    public int
+    read () throws IOException
+    {
+      int count = read (single, 0, 1);
+
+      if (count == -1)
+        return -1;
+      else
+        return single[0] & 0xFF;
+    }
+
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+
+    @Override
+    public int
+    read (byte[] b, int off, int len) throws IOException
+    {
+      if (shifted == null)
+        {
+          int count = raw.read (b, off, len);
+
+          if (count != -1)
+            return count;
+
+          // The raw buffer ends when the source is closed, or when the 
+          // network stage moves over to a time-shift buffer.
+
+          TimeShiftBuffer next = timeShift;
+
+          if (running == false || next == null)
+            return -1;
+
+          shift = next;
+          shifted = next.asInputStream ();
+        }
+
+      return shifted.read (b, off, len);
+    }
+
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+
+    @Override
+    public int
+    available () throws IOException
+    {
+      return (shifted != null ? shifted.available () : raw.available ());
+    }
+  }
+
+
+  /**
+   * Passes reads through to another stream, keeping count of the time 
+   * spent in them, so that the decoder's time spent waiting for frames can 
+   * be told apart from its time spent decoding, and of the bytes read.
+   */
+
+  private static class WaitTimer extends InputStream
+  {
+    private final InputStream in;
+    private long waitNanos;
+    private long bytesRead;
+
+
+    /**
+     * @param in  The stream to read from.
+     */
+
+    private
+    WaitTimer (InputStream in)
+    {
+      this.in = in;
+      waitNanos = 0;
+      bytesRead = 0;
+    }
+
+
+    /**
+     * @return  the time spent reading so far, in nanoseconds.
+     */
+
+    private long
+    getWaitNanos ()
+    {
+      return waitNanos;
+    }
+
+
+    /**
+     * @return  the number of bytes read so far.
+     */
+
+    private long
+    getBytesRead ()
+    {
+      return bytesRead;
+    }
+
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+
+    @Override
+    public int
+    read () throws IOException
+    {
+      long start = System.nanoTime ();
+
+      try
+        {
+          int b = in.read ();
+
+          if (b != -1)
+            bytesRead++;
+
+          return b;
+        }
+      finally
+        {
+          waitNanos += System.nanoTime () - start;
+        }
+    }
+
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+
+    @Override
+    public int
+    read (byte[] b, int off, int len) throws IOException
+    {
+      long start = System.nanoTime ();
+
+      try
+        {
+          int count = in.read (b, off, len);
+
+          if (count > 0)
+            bytesRead += count;
+
+          return count;
+        }
+      finally
+        {
+          waitNanos += System.nanoTime () - start;
+        }
+    }
+
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+
+    @Override
+    public int
+    available () throws IOException
+    {
+      return in.available ();
+    }
+  }
+
+  /**
+   * @return  a monotonic timestamp, in milliseconds.
+   */
+
+  private static long
+  currentMillis ()
+  {
+    return System.nanoTime () / 1000000L;
+  }
+}
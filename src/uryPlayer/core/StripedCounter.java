@@ -0,0 +1,147 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A counter that many threads can add to at once without contending.
+ *
+ * The count is split over several cells, each on a cache line of its own,
+ * and each thread adds to the cell its ID picks.  Adding is a single
+ * atomic add that never takes a lock, and threads on different cells never
+ * touch the same cache line, so counting costs the audio threads next to
+ * nothing.  Reading the total adds up the cells, so it costs more, but is
+ * only done when the count is looked at.
+ *
+ * The total is not a snapshot: counts added while it is being read may or
+ * may not be included.
+ */
+
+public class StripedCounter
+{
+  /**
+   * The spacing between cells, in longs, so that each sits on a cache line
+   * of its own (64 bytes, on most processors).
+   */
+
+  private static final int PADDING = 8;
+
+
+  /**
+   * The number of cells: the number of processors, rounded up to a power
+   * of two.
+   */
+
+  private static final int STRIPES = stripesFor (Runtime.getRuntime ().availableProcessors ());
+
+
+  private final AtomicLongArray cells;
+
+
+  /**
+   * Create a new counter, starting at 0.
+   */
+
+  public
+  StripedCounter ()
+  {
+    cells = new AtomicLongArray ((STRIPES + 1) * PADDING);
+  }
+
+
+  /**
+   * Add to the counter.
+   *
+   * @param n  The amount to add.
+   */
+
+  public void
+  add (long n)
+  {
+    cells.getAndAdd (index (), n);
+  }
+
+
+  /**
+   * Add 1 to the counter.
+   */
+
+  public void
+  increment ()
+  {
+    cells.getAndIncrement (index ());
+  }
+
+
+  /**
+   * @return  the total of the counter.
+   */
+
+  public long
+  sum ()
+  {
+    long total = 0;
+
+    for (int i = 1; i <= STRIPES; i++)
+      total += cells.get (i * PADDING);
+
+    return total;
+  }
+
+
+  /**
+   * @return  the index of the current thread's cell.  The first cache 
+   *          line of the array is left empty, so that no cell shares a 
+   *          line with the array's header.
+   */
+
+  private static int
+  index ()
+  {
+    long id = Thread.currentThread ().getId ();
+    int hash = (int) (id ^ (id >>> 32));
+
+    // Spread out consecutive thread IDs.
+
+    hash *= 0x9E3779B9;
+    hash ^= hash >>> 16;
+
+    return ((hash & (STRIPES - 1)) + 1) * PADDING;
+  }
+
+
+  /**
+   * @param processors  The number of processors.
+   *
+   * @return  the number of cells to use.
+   */
+
+  private static int
+  stripesFor (int processors)
+  {
+    int stripes = 1;
+
+    while (stripes < processors)
+      stripes <<= 1;
+
+    return stripes;
+  }
+}
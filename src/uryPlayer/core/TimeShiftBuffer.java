@@ -0,0 +1,702 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Keeps the last few minutes of a stream's MP3 frames, so that playback
+ * can be paused, rewound and brought back to live.
+ *
+ * The frames are kept in a ring in a memory-mapped temporary file, so even
+ * hours of audio take up no Java heap.  An index of where each frame
+ * starts (kept off the heap too) means any frame can be found straight
+ * away, without scanning.  New frames always go in, overwriting the
+ * oldest; the network stage never waits on the buffer.
+ *
+ * The decode stage reads the frames back through an InputStream, from a
+ * read position that trails the live edge by however far playback has
+ * been shifted.  Seeks take effect at the next frame boundary, so the
+ * decoder always sees whole frames.
+ *
+ * A player keeps one buffer for as long as it plays, and resets it when
+ * it moves on to another stream, rather than mapping a new file each
+ * time; closing the buffer unmaps the file and deletes it.
+ */
+
+public class TimeShiftBuffer implements FrameListener
+{
+  /**
+   * The highest MP3 bitrate, in kilobits per second, used to size the
+   * ring so that it holds the requested time at any bitrate.
+   */
+
+  public static final int MAX_BITRATE = 320;
+
+
+  /**
+   * The most MP3 frames in a second, used to size the index.
+   */
+
+  public static final int MAX_FRAMES_PER_SECOND = 42;
+
+
+  /**
+   * The size of each index entry: the frame's start (as a long), its
+   * length and its duration in microseconds (as ints), and when it arrived
+   * (as a long, in nanoseconds).
+   */
+
+  private static final int INDEX_ENTRY_SIZE = 24;
+
+
+  private final int seconds;
+  private final int capacity;
+  private final int maxFrames;
+  private final MappedByteBuffer data;
+  private final ByteBuffer index;
+  private final File backing;
+  private final RandomAccessFile file;
+  private final ReentrantLock lock;
+  private final Condition frameAdded;
+
+  private long writePosition;
+  private long nextFrame;
+  private long oldestFrame;
+  private long readFrame;
+  private long seekFrame;
+  private boolean closed;
+  private long generation;
+  private long overruns;
+  private volatile long readArrivalTime;
+
+
+  /**
+   * Create a new time-shift buffer, backed by a temporary file.
+   *
+   * @param seconds  How much audio to keep, in seconds.
+   *
+   * @throws IOException  if the temporary file cannot be created or
+   *                      mapped.
+   */
+
+  public
+  TimeShiftBuffer (int seconds) throws IOException
+  {
+    long bytes = (long) seconds * MAX_BITRATE * 1000 / 8;
+
+    this.seconds = seconds;
+    capacity = (int) Math.min (Integer.MAX_VALUE, bytes);
+    maxFrames = seconds * MAX_FRAMES_PER_SECOND + 1;
+
+    backing = File.createTempFile ("ury-timeshift", ".buf");
+    backing.deleteOnExit ();
+
+    file = new RandomAccessFile (backing, "rw");
+
+    try
+      {
+        file.setLength (capacity);
+        data = file.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, capacity);
+      }
+    catch (IOException e)
+      {
+        file.close ();
+        backing.delete ();
+        throw e;
+      }
+
+    // The mapping keeps the file's contents alive, so on systems that allow 
+    // it the file can go at once.  (Elsewhere, it goes once it is closed.)
+
+    backing.delete ();
+
+    index = ByteBuffer.allocateDirect (maxFrames * INDEX_ENTRY_SIZE);
+    lock = new ReentrantLock ();
+    frameAdded = lock.newCondition ();
+
+    writePosition = 0;
+    nextFrame = 0;
+    oldestFrame = 0;
+    readFrame = 0;
+    seekFrame = -1;
+    closed = false;
+    generation = 0;
+    overruns = 0;
+    readArrivalTime = 0;
+  }
+
+
+  /**
+   * @return  how much audio the buffer keeps, in seconds.
+   */
+
+  public int
+  getSeconds ()
+  {
+    return seconds;
+  }
+
+
+  /**
+   * Forget every frame kept, such as when the player moves on to another
+   * stream, so that the next frame read is the next to arrive.  Streams
+   * from asInputStream that were reading the old frames end.
+   */
+
+  public void
+  reset ()
+  {
+    lock.lock ();
+
+    try
+      {
+        writePosition = 0;
+        nextFrame = 0;
+        oldestFrame = 0;
+        readFrame = 0;
+        seekFrame = -1;
+        generation++;
+        readArrivalTime = 0;
+        frameAdded.signalAll ();
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Add a frame at the live edge, overwriting the oldest frames if need
+   * be.  This never blocks for long.
+   *
+   * @see uryPlayer.core.FrameListener#frameReceived(byte[], int, int, MpegFrameHeader)
+   */
+
+  @Override
+  public void
+  frameReceived (byte[] b, int off, int len, MpegFrameHeader header)
+  {
+    lock.lock ();
+
+    try
+      {
+        if (closed || len > capacity)
+          return;
+
+        // Keep every frame in one piece, leaving a gap at the end of the 
+        // ring if need be.
+
+        int position = (int) (writePosition % capacity);
+
+        if (position + len > capacity)
+          {
+            writePosition += capacity - position;
+            position = 0;
+          }
+
+        data.position (position);
+        data.put (b, off, len);
+
+        int entry = (int) (nextFrame % maxFrames) * INDEX_ENTRY_SIZE;
+
+        index.putLong (entry, writePosition);
+        index.putInt (entry + 8, len);
+        index.putInt (entry + 12, (int) header.getDurationMicros ());
+        index.putLong (entry + 16, System.nanoTime ());
+
+        writePosition += len;
+        nextFrame++;
+
+        // Forget the frames that have just been overwritten.
+
+        while (oldestFrame < nextFrame
+               && (nextFrame - oldestFrame > maxFrames
+                   || frameStart (oldestFrame) < writePosition - capacity))
+          oldestFrame++;
+
+        frameAdded.signalAll ();
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Move the read position back by an amount of audio, as far as the
+   * oldest frame kept.  The move happens at the next frame boundary.
+   *
+   * @param micros  The amount of audio, in microseconds.
+   */
+
+  public void
+  seekBack (long micros)
+  {
+    lock.lock ();
+
+    try
+      {
+        long target = (seekFrame != -1 ? seekFrame : readFrame);
+        long remaining = micros;
+
+        // Frames are all much the same length, so work out how many to go 
+        // back from the one at the read position, rather than adding them 
+        // up one by one.
+
+        if (target > oldestFrame)
+          {
+            long frameMicros = Math.max (1, frameDuration (Math.min (target, nextFrame - 1)));
+            target -= remaining / frameMicros;
+          }
+
+        seekFrame = Math.max (oldestFrame, target);
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Move the read position up to the live edge, so that the next frame
+   * read is the next to arrive.  The move happens at the next frame
+   * boundary.
+   */
+
+  public void
+  seekToLive ()
+  {
+    lock.lock ();
+
+    try
+      {
+        seekFrame = nextFrame;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * @return  how far the read position is behind the live edge, in
+   *          milliseconds.
+   */
+
+  public long
+  getDelayMillis ()
+  {
+    lock.lock ();
+
+    try
+      {
+        long from = (seekFrame != -1 ? seekFrame : readFrame);
+
+        if (from >= nextFrame)
+          return 0;
+
+        return ((nextFrame - Math.max (from, oldestFrame)) * frameDuration (nextFrame - 1)) / 1000;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * @return  the number of bytes of frames between the read position and
+   *          the live edge.
+   */
+
+  public long
+  getUnreadBytes ()
+  {
+    lock.lock ();
+
+    try
+      {
+        if (readFrame >= nextFrame)
+          return 0;
+
+        return writePosition - frameStart (Math.max (readFrame, oldestFrame));
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * @return  when the frame last read arrived, in nanoseconds, or 0 if 
+   *          none has been read.
+   */
+
+  public long
+  getReadArrivalTime ()
+  {
+    return readArrivalTime;
+  }
+
+
+  /**
+   * @return  the number of times the read position fell so far behind that
+   *          the frames at it were overwritten.
+   */
+
+  public long
+  getOverruns ()
+  {
+    lock.lock ();
+
+    try
+      {
+        return overruns;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Close the buffer, waking any reader, and release the temporary file: 
+   * its mapping, its disk space and the file itself.  Where the JVM does 
+   * not allow the mapping to be released at once, it is released when 
+   * garbage collected.
+   */
+
+  public void
+  close ()
+  {
+    lock.lock ();
+
+    try
+      {
+        if (closed)
+          return;
+
+        closed = true;
+        frameAdded.signalAll ();
+
+        // Every other use of the mapping is made under the lock, and 
+        // checks first that the buffer is open, so it can go now.
+
+        unmap (data);
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+
+    try
+      {
+        file.close ();
+      }
+    catch (IOException e)
+      {
+        // Nothing more can be done with the file at this point.
+      }
+
+    backing.delete ();
+  }
+
+
+  /**
+   * Get a stream reading frames from the read position onwards, for the
+   * decoder.  Only one such stream should be read at a time.
+   *
+   * An interrupt of the reading thread is reported as an end of stream.
+   *
+   * @return  the stream.
+   */
+
+  public InputStream
+  asInputStream ()
+  {
+    final long readerGeneration = getGeneration ();
+
+    return new InputStream ()
+    {
+      private final byte[] frame = new byte[MpegFrameReader.BUFFER_SIZE];
+      private int frameLength = 0;
+      private int framePosition = 0;
+
+      @Override
+      public int
+      read () throws IOException
+      {
+        if (fill () == false)
+          return -1;
+
+        return frame[framePosition++] & 0xFF;
+      }
+
+      @Override
+      public int
+      read (byte[] b, int off, int len) throws IOException
+      {
+        if (len == 0)
+          return 0;
+
+        if (fill () == false)
+          return -1;
+
+        int count = Math.min (len, frameLength - framePosition);
+
+        System.arraycopy (frame, framePosition, b, off, count);
+        framePosition += count;
+
+        return count;
+      }
+
+      @Override
+      public int
+      available ()
+      {
+        return frameLength - framePosition;
+      }
+
+      /**
+       * Make sure part of a frame is waiting to be read, fetching the
+       * next frame if need be.
+       *
+       * @return  false at the end of the stream.
+       */
+
+      private boolean
+      fill ()
+      {
+        if (framePosition < frameLength)
+          return true;
+
+        try
+          {
+            frameLength = nextFrame (frame, readerGeneration);
+          }
+        catch (InterruptedException e)
+          {
+            Thread.currentThread ().interrupt ();
+            frameLength = -1;
+          }
+
+        framePosition = 0;
+
+        if (frameLength == -1)
+          {
+            frameLength = 0;
+            return false;
+          }
+
+        return true;
+      }
+    };
+  }
+
+
+  /**
+   * Copy out the frame at the read position and move on past it, first
+   * carrying out any seek, and waiting for a frame to arrive if the read
+   * position is at the live edge.
+   *
+   * @param b                 The array to copy the frame into.
+   * @param readerGeneration  The generation the reader started in.
+   *
+   * @return  the length of the frame, or -1 if the buffer is closed or has
+   *          been reset since the reader started.
+   *
+   * @throws InterruptedException  if the reading thread is interrupted.
+   */
+
+  private int
+  nextFrame (byte[] b, long readerGeneration) throws InterruptedException
+  {
+    lock.lock ();
+
+    try
+      {
+        if (generation != readerGeneration)
+          return -1;
+
+        if (seekFrame != -1)
+          {
+            readFrame = seekFrame;
+            seekFrame = -1;
+          }
+
+        while (readFrame >= nextFrame && closed == false && generation == readerGeneration)
+          frameAdded.await ();
+
+        if (closed || generation != readerGeneration)
+          return -1;
+
+        if (readFrame < oldestFrame)
+          {
+            readFrame = oldestFrame;
+            overruns++;
+          }
+
+        int entry = (int) (readFrame % maxFrames) * INDEX_ENTRY_SIZE;
+        int length = index.getInt (entry + 8);
+
+        data.position ((int) (index.getLong (entry) % capacity));
+        data.get (b, 0, length);
+        readArrivalTime = index.getLong (entry + 16);
+        readFrame++;
+
+        return length;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * @return  how many times the buffer has been reset.
+   */
+
+  private long
+  getGeneration ()
+  {
+    lock.lock ();
+
+    try
+      {
+        return generation;
+      }
+    finally
+      {
+        lock.unlock ();
+      }
+  }
+
+
+  /**
+   * Release a mapping at once, rather than when it is garbage collected, 
+   * by the JVM's own means (which differ between versions).  If neither 
+   * is allowed, the mapping is left to the garbage collector.  Nothing may 
+   * use the mapping afterwards.
+   *
+   * @param mapping  The mapping.
+   */
+
+  private static void
+  unmap (MappedByteBuffer mapping)
+  {
+    try
+      {
+        try
+          {
+            // Java 9 onwards.
+
+            Class<?> unsafeClass = Class.forName ("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField ("theUnsafe");
+            theUnsafe.setAccessible (true);
+
+            Method invokeCleaner = unsafeClass.getMethod ("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke (theUnsafe.get (null), mapping);
+          }
+        catch (NoSuchMethodException e)
+          {
+            // Java 8 and earlier.
+
+            Method cleaner = mapping.getClass ().getMethod ("cleaner");
+            cleaner.setAccessible (true);
+
+            Object mappingCleaner = cleaner.invoke (mapping);
+            mappingCleaner.getClass ().getMethod ("clean").invoke (mappingCleaner);
+          }
+      }
+    catch (ClassNotFoundException e)
+      {
+        // This JVM has neither means, so leave it to the garbage collector.
+      }
+    catch (NoSuchFieldException e)
+      {
+        // Likewise.
+      }
+    catch (NoSuchMethodException e)
+      {
+        // Likewise.
+      }
+    catch (IllegalAccessException e)
+      {
+        // Likewise.
+      }
+    catch (InvocationTargetException e)
+      {
+        // Likewise.
+      }
+    catch (SecurityException e)
+      {
+        // This is normal (it occurs when running as an unsigned applet).
+      }
+  }
+
+
+  /**
+   * @param frame  The number of a frame still in the index.
+   *
+   * @return  where the frame starts, counting from the first byte ever
+   *          written.
+   */
+
+  private long
+  frameStart (long frame)
+  {
+    return index.getLong ((int) (frame % maxFrames) * INDEX_ENTRY_SIZE);
+  }
+
+
+  /**
+   * @param frame  The number of a frame still in the index.
+   *
+   * @return  the duration of the frame, in microseconds.
+   */
+
+  private int
+  frameDuration (long frame)
+  {
+    if (frame < 0)
+      return 0;
+
+    return index.getInt ((int) (frame % maxFrames) * INDEX_ENTRY_SIZE + 12);
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+
+/**
+ * Remembers when recent positions in a stream of bytes passed a point in
+ * the pipeline, so that a later stage can tell how long ago the bytes it
+ * is handling did so.
+ *
+ * One thread adds entries, each a position with two timestamps, in order
+ * of position; any thread can look up the entry covering a position.  The
+ * entries are kept in preallocated arrays, so neither side allocates or
+ * takes a lock.  Once the ring is full, the oldest entries are forgotten.
+ */
+
+public class TimestampRing
+{
+  private final long[] positions;
+  private final long[] firstTimes;
+  private final long[] secondTimes;
+  private volatile long count;
+
+
+  /**
+   * Create a new, empty ring.
+   *
+   * @param size  The number of entries kept.
+   */
+
+  public
+  TimestampRing (int size)
+  {
+    positions = new long[size];
+    firstTimes = new long[size];
+    secondTimes = new long[size];
+    count = 0;
+  }
+
+
+  /**
+   * Add an entry.  This must only be called from one thread, with
+   * positions that never go down.
+   *
+   * @param position    The position in the stream.
+   * @param firstTime   The first timestamp, in nanoseconds.
+   * @param secondTime  The second timestamp, in nanoseconds.
+   */
+
+  public void
+  add (long position, long firstTime, long secondTime)
+  {
+    long index = count;
+    int slot = (int) (index % positions.length);
+
+    positions[slot] = position;
+    firstTimes[slot] = firstTime;
+    secondTimes[slot] = secondTime;
+
+    // Publishing the count last makes the entry visible to readers whole.
+
+    count = index + 1;
+  }
+
+
+  /**
+   * Look up the timestamps of the last entry at or before a position.
+   *
+   * @param position  The position in the stream.
+   * @param times     An array to put the first and second timestamps in.
+   *
+   * @return  false if no entry covers the position (it is older than any
+   *          kept), in which case the timestamps are not to be trusted.
+   */
+
+  public boolean
+  lookup (long position, long[] times)
+  {
+    long end = count;
+    long low = Math.max (0, end - positions.length);
+    long high = end - 1;
+    long found = -1;
+
+    while (low <= high)
+      {
+        long middle = (low + high) >>> 1;
+
+        if (positions[(int) (middle % positions.length)] <= position)
+          {
+            found = middle;
+            low = middle + 1;
+          }
+        else
+          high = middle - 1;
+      }
+
+    if (found == -1)
+      return false;
+
+    int slot = (int) (found % positions.length);
+
+    times[0] = firstTimes[slot];
+    times[1] = secondTimes[slot];
+
+    // If the writer has lapped the entry meanwhile, it has been replaced.
+
+    return (count - found <= positions.length);
+  }
+}
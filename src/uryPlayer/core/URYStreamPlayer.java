@@ -102,4 +102,52 @@ public interface URYStreamPlayer
   
   public boolean
   setStream (String streamURL);
+  
+  
+  /**
+   * Turn automatic quality selection on or off.
+   * 
+   * @param isAutomatic  true to let the player choose between the high, 
+   *                     low and mobile streams as the network allows.
+   *                     
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setAutoQuality (boolean isAutomatic);
+  
+  
+  /**
+   * Pause or resume playback.  While paused, the stream is kept, so that 
+   * playback resumes from where it was paused.
+   * 
+   * @param isPaused  true to pause, false to resume.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  setPaused (boolean isPaused);
+  
+  
+  /**
+   * Move playback back through the stream.
+   * 
+   * @param seconds  How far to move back, in seconds.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  rewind (int seconds);
+  
+  
+  /**
+   * Move playback back up to the live stream after pausing or rewinding.
+   * 
+   * @return true if the operation succeeded, false otherwise.
+   */
+  
+  public boolean
+  jumpToLive ();
 }
@@ -0,0 +1,350 @@
+/**
+ * This file is part of URY Player for Java.
+ * Copyright (C) 2010 Matt Windsor, URY Computing
+ *
+ * URY Player for Java is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * URY Player for Java is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * URY Player for Java.  If not, see <http://www.gnu.org/licences/>.
+ */
+
+package uryPlayer.core;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs the player's background work: the long-running workers (the
+ * PlayerCore output stage, the StreamSource network and decode stages, the
+ * webcam fetcher and the applet's control thread), and short chores such
+ * as closing a stream that is no longer wanted.
+ *
+ * Where the JVM has virtual threads, everything runs on them, so that
+ * hundreds of streams in one JVM do not cost hundreds of OS threads.
+ * That only holds while the work waits in ways that let a virtual thread
+ * free its OS thread: on java.util.concurrent locks rather than object
+ * monitors, and in blocking channel I/O rather than on a Selector.
+ * Otherwise, the long-running workers get ordinary threads of their own,
+ * and the chores share a small pool of threads that are let go when idle.
+ * Either way, every thread is named after what it does, and the number
+ * running is counted.
+ *
+ * Virtual threads can be turned off by setting the system property
+ * uryPlayer.virtualThreads to false.
+ */
+
+public class Workers
+{
+  /**
+   * The system property that, if false, turns off virtual threads for the
+   * default Workers.
+   */
+
+  public static final String VIRTUAL_PROPERTY = "uryPlayer.virtualThreads";
+
+
+  /**
+   * The most threads running chores at once, when virtual threads are not
+   * in use.
+   */
+
+  public static final int POOL_SIZE = 4;
+
+
+  /**
+   * How long an idle chore thread is kept before being let go, in
+   * seconds.
+   */
+
+  public static final int POOL_KEEP_ALIVE_SECONDS = 30;
+
+
+  private static Workers defaultWorkers = null;
+
+  private final ThreadFactory baseFactory;
+  private final ThreadFactory threadFactory;
+  private final boolean virtual;
+  private final AtomicInteger liveThreads;
+  private final AtomicLong startedThreads;
+  private final AtomicInteger nextThreadNumber;
+
+  private ThreadPoolExecutor pool;
+
+
+  /**
+   * Create a new set of workers.
+   *
+   * @param useVirtual  Whether to run on virtual threads, if the JVM has
+   *                    them.
+   */
+
+  public
+  Workers (boolean useVirtual)
+  {
+    ThreadFactory virtualFactory = (useVirtual ? virtualThreadFactory () : null);
+
+    virtual = (virtualFactory != null);
+    baseFactory = (virtual ? virtualFactory : Executors.defaultThreadFactory ());
+    liveThreads = new AtomicInteger ();
+    startedThreads = new AtomicLong ();
+    nextThreadNumber = new AtomicInteger ();
+    pool = null;
+
+    threadFactory = new ThreadFactory ()
+    {
+      @Override
+      public Thread
+      newThread (Runnable task)
+      {
+        Thread thread = baseFactory.newThread (counted (task));
+        thread.setName ("URY worker " + nextThreadNumber.incrementAndGet ());
+        return thread;
+      }
+    };
+  }
+
+
+  /**
+   * @return  the workers shared by the whole player, made the first time
+   *          they are asked for.
+   */
+
+  public static synchronized Workers
+  getDefault ()
+  {
+    if (defaultWorkers == null)
+      defaultWorkers = new Workers (loadUseVirtual ());
+
+    return defaultWorkers;
+  }
+
+
+  /**
+   * @return  a factory for the threads of long-running workers.  The
+   *          threads are counted while they run.
+   */
+
+  public ThreadFactory
+  getThreadFactory ()
+  {
+    return threadFactory;
+  }
+
+
+  /**
+   * Make a thread for a long-running worker.  The thread is not started.
+   *
+   * @param task  The worker.
+   * @param name  The name of the thread.
+   *
+   * @return  the thread.
+   */
+
+  public Thread
+  newThread (Runnable task, String name)
+  {
+    Thread thread = threadFactory.newThread (task);
+    thread.setName (name);
+    return thread;
+  }
+
+
+  /**
+   * Run a short chore in the background.
+   *
+   * @param task  The chore.
+   * @param name  The name of the thread while it runs the chore.
+   */
+
+  public void
+  execute (final Runnable task, final String name)
+  {
+    if (virtual)
+      {
+        newThread (task, name).start ();
+        return;
+      }
+
+    getPool ().execute (new Runnable ()
+    {
+      @Override
+      public void
+      run ()
+      {
+        Thread thread = Thread.currentThread ();
+        String oldName = thread.getName ();
+
+        thread.setName (name);
+
+        try
+          {
+            task.run ();
+          }
+        finally
+          {
+            thread.setName (oldName);
+          }
+      }
+    });
+  }
+
+
+  /**
+   * @return  true if the workers run on virtual threads.
+   */
+
+  public boolean
+  isVirtual ()
+  {
+    return virtual;
+  }
+
+
+  /**
+   * @return  the number of worker threads (including any idle chore
+   *          threads) currently running.
+   */
+
+  public int
+  getLiveThreads ()
+  {
+    return liveThreads.get ();
+  }
+
+
+  /**
+   * @return  the number of worker threads started so far.
+   */
+
+  public long
+  getStartedThreads ()
+  {
+    return startedThreads.get ();
+  }
+
+
+  /**
+   * @return  the pool running chores, made the first time it is needed.
+   */
+
+  private synchronized ThreadPoolExecutor
+  getPool ()
+  {
+    if (pool == null)
+      {
+        pool = new ThreadPoolExecutor (POOL_SIZE, POOL_SIZE,
+                                       POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue<Runnable> (),
+                                       new ThreadFactory ()
+        {
+          @Override
+          public Thread
+          newThread (Runnable task)
+          {
+            Thread thread = threadFactory.newThread (task);
+
+            // Chores should never keep the program running.
+
+            thread.setDaemon (true);
+            return thread;
+          }
+        });
+
+        pool.allowCoreThreadTimeOut (true);
+      }
+
+    return pool;
+  }
+
+
+  /**
+   * Wrap a task so that its thread is counted while it runs.
+   *
+   * @param task  The task.
+   *
+   * @return  the wrapped task.
+   */
+
+  private Runnable
+  counted (final Runnable task)
+  {
+    return new Runnable ()
+    {
+      @Override
+      public void
+      run ()
+      {
+        liveThreads.incrementAndGet ();
+        startedThreads.incrementAndGet ();
+
+        try
+          {
+            task.run ();
+          }
+        finally
+          {
+            liveThreads.decrementAndGet ();
+          }
+      }
+    };
+  }
+
+
+  /**
+   * @return  false if the system property named by VIRTUAL_PROPERTY says
+   *          not to use virtual threads, true otherwise.
+   */
+
+  private static boolean
+  loadUseVirtual ()
+  {
+    try
+      {
+        return "false".equals (System.getProperty (VIRTUAL_PROPERTY)) == false;
+      }
+    catch (SecurityException e)
+      {
+        // This is normal (it occurs when running as an unsigned applet).
+
+        return true;
+      }
+  }
+
+
+  /**
+   * Get a factory for virtual threads.  These only exist on newer JVMs, so
+   * they are looked up by reflection.
+   *
+   * @return  the factory, or null if the JVM has no virtual threads.
+   */
+
+  private static ThreadFactory
+  virtualThreadFactory ()
+  {
+    try
+      {
+        Object builder = Thread.class.getMethod ("ofVirtual").invoke (null);
+        Class<?> builderClass = Class.forName ("java.lang.Thread$Builder");
+
+        return (ThreadFactory) builderClass.getMethod ("factory").invoke (builder);
+      }
+    catch (Exception e)
+      {
+        return null;
+      }
+  }
+}
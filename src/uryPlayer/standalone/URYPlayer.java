@@ -19,8 +19,25 @@
 
 package uryPlayer.standalone;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.sampled.Mixer;
+
 import uryPlayer.core.AbstractStreamPlayer;
+import uryPlayer.core.AudioSink;
+import uryPlayer.core.DeviceOutput;
+import uryPlayer.core.FileSink;
+import uryPlayer.core.LineSink;
+import uryPlayer.core.MultiOutputSink;
+import uryPlayer.core.NullSink;
+import uryPlayer.core.PacedSink;
+import uryPlayer.core.PipeSink;
 import uryPlayer.core.PlayerCore;
+import uryPlayer.core.StreamRecorder;
+import uryPlayer.core.StreamRelay;
 import uryPlayer.core.URYStreamPlayer;
 
 
@@ -49,14 +66,255 @@ public class URYPlayer extends AbstractStreamPlayer implements URYStreamPlayer
   /**
    * The main function of the program.
    * 
+   * With no arguments, this opens the user interface.  Given 
+   * "--output TARGET", it instead plays the high-quality stream headless 
+   * to TARGET, which is either a file (WAV if its name ends in .wav, raw 
+   * PCM otherwise), "-" for raw PCM on standard output, or "null" to 
+   * discard the audio.  The output is paced to real time unless "--fast" 
+   * is also given.  "--record DIRECTORY" also records the stream, as 
+   * hourly MP3 files in DIRECTORY.  "--relay PORT" serves the stream to
+   * other players over HTTP on PORT, from the one connection to the URY 
+   * server.  Either of these on its own implies "--output null".
+   * 
+   * "--device NAME", given once or more, instead plays the stream headless 
+   * on each of the named sound cards at once (see "--list-devices" for 
+   * their names; any part of a name will do), decoding it only once.  
+   * "--volume V" (from 0 to 1) and "--delay MS" after a device set its 
+   * volume and delay trim.  It cannot be used with "--output".
+   * 
    * @param args  The arguments to pass to the URY player.
    */
   
   public static void
   main (String[] args)
   {
-    URYPlayer app = new URYPlayer ();
-    app.init ();
+    String output = null;
+    String record = null;
+    int relayPort = -1;
+    boolean paced = true;
+    List<DeviceOutput> devices = new ArrayList<DeviceOutput> ();
+    DeviceOutput device = null;
+    
+    for (int i = 0; i < args.length; i++)
+      {
+        if (args[i].equals ("--output") && i + 1 < args.length)
+          output = args[++i];
+        else if (args[i].equals ("--fast"))
+          paced = false;
+        else if (args[i].equals ("--record") && i + 1 < args.length)
+          record = args[++i];
+        else if (args[i].equals ("--relay") && i + 1 < args.length)
+          {
+            try
+              {
+                relayPort = Integer.parseInt (args[++i]);
+              }
+            catch (NumberFormatException e)
+              {
+                printUsage ();
+                return;
+              }
+          }
+        else if (args[i].equals ("--device") && i + 1 < args.length)
+          {
+            String name = args[++i];
+            Mixer.Info mixer = LineSink.findMixer (name);
+            
+            if (mixer == null)
+              {
+                System.err.println ("No sound card named " + name + "; see --list-devices");
+                return;
+              }
+            
+            device = new DeviceOutput (mixer.getName (), new LineSink (mixer), 
+                                       DeviceOutput.DEFAULT_BUFFER_MILLIS);
+            devices.add (device);
+          }
+        else if (args[i].equals ("--volume") && device != null && i + 1 < args.length)
+          {
+            try
+              {
+                device.setVolume (Float.parseFloat (args[++i]));
+              }
+            catch (NumberFormatException e)
+              {
+                printUsage ();
+                return;
+              }
+          }
+        else if (args[i].equals ("--delay") && device != null && i + 1 < args.length)
+          {
+            try
+              {
+                device.setDelayMillis (Integer.parseInt (args[++i]));
+              }
+            catch (NumberFormatException e)
+              {
+                printUsage ();
+                return;
+              }
+          }
+        else if (args[i].equals ("--list-devices"))
+          {
+            for (Mixer.Info mixer : LineSink.getMixers ())
+              System.out.println (mixer.getName () + " (" + mixer.getDescription () + ")");
+            
+            return;
+          }
+        else
+          {
+            printUsage ();
+            return;
+          }
+      }
+    
+    if (devices.isEmpty () == false)
+      {
+        if (output != null)
+          {
+            System.err.println ("--output cannot be used with --device");
+            return;
+          }
+        
+        MultiOutputSink multi = new MultiOutputSink ();
+        
+        for (DeviceOutput each : devices)
+          multi.addOutput (each);
+        
+        runHeadless (new PacedSink (multi), record, relayPort);
+        return;
+      }
+    
+    if (output == null && (relayPort != -1 || record != null))
+      output = "null";
+    
+    if (output != null)
+      runHeadless (newSink (output, paced), record, relayPort);
+    else
+      {
+        URYPlayer app = new URYPlayer ();
+        app.init ();
+      }
+  }
+  
+  
+  /**
+   * Print the command-line usage to standard error.
+   */
+  
+  private static void
+  printUsage ()
+  {
+    System.err.println ("Usage: URYPlayer [--output FILE|-|null [--fast] [--record DIRECTORY] [--relay PORT]]");
+    System.err.println ("                 [--device NAME [--volume V] [--delay MS]]... [--list-devices]");
+  }
+  
+  
+  /**
+   * Make the sink for a headless output.
+   * 
+   * @param output  The output to send the audio to (see main).
+   * @param paced   Whether to pace the output to real time.
+   * 
+   * @return  the sink.
+   */
+  
+  private static AudioSink
+  newSink (String output, boolean paced)
+  {
+    AudioSink sink;
+    
+    if (output.equals ("-"))
+      sink = new PipeSink ();
+    else if (output.equals ("null"))
+      sink = new NullSink ();
+    else
+      sink = new FileSink (new File (output));
+    
+    if (paced)
+      sink = new PacedSink (sink);
+    
+    return sink;
+  }
+  
+  
+  /**
+   * Play the high-quality stream without a user interface, until the 
+   * program is killed.
+   * 
+   * @param sink    The sink to send the audio to.
+   * @param record  The directory to record the stream to, or null.
+   * @param relayPort  The port to relay the stream on, or -1 to not 
+   *                   relay it.
+   */
+  
+  private static void
+  runHeadless (AudioSink sink, String record, int relayPort)
+  {
+    final PlayerCore player = new PlayerCore (PlayerCore.HIGH_STREAM);
+    player.setSink (sink);
+    player.registerMBean ();
+    
+    final StreamRecorder recorder = (record != null ? new StreamRecorder (new File (record)) : null);
+    
+    if (recorder != null)
+      {
+        recorder.start ();
+        player.setRecorder (recorder);
+      }
+    
+    StreamRelay relay = null;
+    
+    if (relayPort != -1)
+      {
+        try
+          {
+            relay = new StreamRelay (relayPort);
+          }
+        catch (IOException e)
+          {
+            System.err.println ("Cannot relay on port " + relayPort + ": " + e);
+            return;
+          }
+        
+        relay.start ();
+        player.addFrameListener (relay);
+        System.err.println ("Relaying on port " + relay.getPort ());
+      }
+    
+    final StreamRelay finalRelay = relay;
+    
+    // Stop the player on exit, so that the output is finished properly.
+    
+    Runtime.getRuntime ().addShutdownHook (new Thread (new Runnable ()
+    {
+      @Override
+      public void
+      run ()
+      {
+        player.stop ();
+        System.err.print (player.getLatencyReport ());
+        
+        if (recorder != null)
+          recorder.close ();
+        if (finalRelay != null)
+          finalRelay.close ();
+      }
+    }));
+    
+    player.start ();
+    
+    // The player may run on daemon (virtual) threads, so keep the program 
+    // running until it finishes.
+    
+    try
+      {
+        player.join ();
+      }
+    catch (InterruptedException e)
+      {
+        // Let the program end.
+      }
   }
 
   
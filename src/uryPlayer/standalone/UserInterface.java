@@ -62,6 +62,8 @@ public class UserInterface
   
   private static final int VOLUME_MULTIPLIER = 1000; /* Multiplier to map from volume float to volume slider int.*/
   
+  private static final int REWIND_SECONDS = 30; /* How far the rewind button moves back. */
+  
   private URYStreamPlayer parent;
   
   private JFrame frame;
@@ -76,6 +78,11 @@ public class UserInterface
   
   private JSlider volumeSlider;
   
+  private JButton pauseButton;
+  private JButton rewindButton;
+  private JButton liveButton;
+  private boolean paused;
+  
   private WebcamFetcher webcam;
   private JLabel webcamImage;
   private Dimension webcamPreviousDimension;
@@ -91,6 +98,7 @@ public class UserInterface
   UserInterface (URYStreamPlayer inParent)
   {
     parent = inParent;
+    paused = false;
     frame = new JFrame ("URY Java Player");
   }
   
@@ -109,6 +117,7 @@ public class UserInterface
     createWebcamView ();
     createQualitySelectors ();
     createVolumeControl ();
+    createTimeShiftControls ();
     createControlButtons ();
 
     frame.pack ();
@@ -147,13 +156,14 @@ public class UserInterface
     "Quality");
     
     qualityButtons = new ButtonGroup ();
-    qualityPanel = new JPanel (new GridLayout(3, 1));
+    qualityPanel = new JPanel (new GridLayout(4, 1));
     qualityPanel.setBorder (BorderFactory.createCompoundBorder (BorderFactory.createEmptyBorder (0, 10, 10, 10), 
         titledBorder));
     
     createQualitySelector ("High Quality (192KB/s)", KeyEvent.VK_H, PlayerCore.HIGH_STREAM, true);
     createQualitySelector ("Low Quality (96KB/s)", KeyEvent.VK_L, PlayerCore.LOW_STREAM, false);
     createQualitySelector ("Mobile Quality (48KB/s)", KeyEvent.VK_M, PlayerCore.MOBILE_STREAM, false);
+    createQualitySelector ("Automatic", KeyEvent.VK_A, null, false);
     
     frame.getContentPane ().add (qualityPanel);
   }
@@ -164,7 +174,8 @@ public class UserInterface
    * 
    * @param label       The string to assign to the selector label.
    * @param mnemonic    The mnemonic to assign to the selector label.
-   * @param streamURI   The stream that the selector will connect to.
+   * @param streamURI   The stream that the selector will connect to, or 
+   *                    null to select the quality automatically.
    * @param isSelected  Whether or not the selector should begin selected.
    */
   
@@ -180,7 +191,10 @@ public class UserInterface
       public void
       actionPerformed (ActionEvent event)
       {
-        parent.setStream (streamURI);
+        parent.setAutoQuality (streamURI == null);
+        
+        if (streamURI != null)
+          parent.setStream (streamURI);
       }
     });
   
@@ -233,6 +247,75 @@ public class UserInterface
   }
   
   
+  /**
+   * Create the pause, rewind and live buttons.
+   */
+  
+  private void
+  createTimeShiftControls ()
+  {
+    Border titledBorder = BorderFactory.createTitledBorder (BorderFactory.createEtchedBorder (),
+    "Time Shift");
+    
+    // Pause button
+    
+    pauseButton = new JButton ("Pause");
+    pauseButton.addActionListener (new ActionListener ()
+    {
+      @Override
+      public void
+      actionPerformed (ActionEvent arg0)
+      {
+        paused = (paused == false);
+        parent.setPaused (paused);
+        pauseButton.setText (paused ? "Resume" : "Pause");
+      }
+    });
+    
+    
+    // Rewind button
+    
+    rewindButton = new JButton ("Back " + REWIND_SECONDS + "s");
+    rewindButton.addActionListener (new ActionListener ()
+    {
+      @Override
+      public void
+      actionPerformed (ActionEvent arg0)
+      {
+        parent.rewind (REWIND_SECONDS);
+      }
+    });
+    
+    
+    // Live button
+    
+    liveButton = new JButton ("Live");
+    liveButton.addActionListener (new ActionListener ()
+    {
+      @Override
+      public void
+      actionPerformed (ActionEvent arg0)
+      {
+        parent.jumpToLive ();
+      }
+    });
+    
+    
+    // Positioning
+    
+    JPanel timeShiftPanel = new JPanel (new GridLayout (1, 3));
+    
+    timeShiftPanel.add (pauseButton);
+    timeShiftPanel.add (rewindButton);
+    timeShiftPanel.add (liveButton);
+    
+    timeShiftPanel.setBorder (BorderFactory.createCompoundBorder (BorderFactory.createEmptyBorder (0, 10, 10, 10), 
+        titledBorder));
+    
+    frame.getContentPane ().add (timeShiftPanel);
+  }
+  
+  
   /**
    * Create the deck of control buttons.
    */
@@ -363,12 +446,16 @@ public class UserInterface
       public void
       done ()
       {
-        // Only re-enable the on/off button.
-        // This is so people don't try to change the URL during playback, 
-        // which at the time of writing does not work.
+        // The quality can be changed during playback, so re-enable 
+        // everything.
         
         onOffButton.setText ("Stop Player");
-        onOffButton.setEnabled (true);
+        setControlsEnabled (true);
+        
+        // The player always starts unpaused.
+        
+        paused = false;
+        pauseButton.setText ("Pause");
       }
     };
     
@@ -29,6 +29,9 @@ import java.net.URL;
 import java.net.URLConnection;
 import javax.swing.ImageIcon;
 
+import uryPlayer.core.PlayerEvents;
+import uryPlayer.core.Workers;
+
 
 /**
  * A threaded class for periodically fetching the URY webcam feed and 
@@ -106,7 +109,7 @@ public class WebcamFetcher implements Runnable
   {
     if (thread == null)
       {      
-        thread = new Thread (this);
+        thread = Workers.getDefault ().newThread (this, "WebcamFetcher");
         thread.start ();
       }
   }
@@ -201,6 +204,9 @@ public class WebcamFetcher implements Runnable
    * a webcam image - code calling this should handle this by not updating 
    * the webcam.
    * 
+   * Each fetch is reported to Java Flight Recorder, where that is 
+   * available (see PlayerEvents).
+   * 
    * @param webcamURL  The URL of the webcam image.
    * @return  the Image taken from the webcam, or null in case of error.
    */
@@ -211,6 +217,8 @@ public class WebcamFetcher implements Runnable
     URLConnection webcamConn = null;
     BufferedInputStream in = null;
     Image result = null;    
+    long bytes = 0;
+    long fetchNanos = System.nanoTime ();
     
     try
       {
@@ -243,9 +251,16 @@ public class WebcamFetcher implements Runnable
           }
 
         if (byteArrayOut != null)
-          result = Toolkit.getDefaultToolkit ().createImage (byteArrayOut.toByteArray ());       
+          {
+            bytes = byteArrayOut.size ();
+            result = Toolkit.getDefaultToolkit ().createImage (byteArrayOut.toByteArray ());       
+          }
       }
     
+    PlayerEvents.getDefault ().webcamFetched (String.valueOf (webcamURL), 
+                                              System.nanoTime () - fetchNanos, 
+                                              bytes, result != null);
+    
     // If an error came up, this will still be null.
     return result;
   }